@@ -15,11 +15,12 @@ compile_code() {
     cp "$script_dir/src/HikariCP-5.1.0.jar" "$script_dir/compiled/"
     cp "$script_dir/src/slf4j-api-1.7.30.jar" "$script_dir/compiled/"
     cp "$script_dir/src/slf4j-simple-1.7.30.jar" "$script_dir/compiled/"
+    cp "$script_dir/src/commons-pool2-2.12.0.jar" "$script_dir/compiled/"
     
-    # Compile the Java code
-    javac -d "$script_dir/compiled/OrderService" -cp "$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/src/json-20231013.jar:$script_dir/src/postgresql-42.7.2.jar:$script_dir/src/HikariCP-5.1.0.jar:$script_dir/src/slf4j-api-1.7.30.jar:$script_dir/src/slf4j-simple-1.7.30.jar" "$script_dir/src/OrderService"/*.java
-    javac -d "$script_dir/compiled/ProductService" -cp "$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/src/json-20231013.jar:$script_dir/src/postgresql-42.7.2.jar:$script_dir/src/HikariCP-5.1.0.jar:$script_dir/src/slf4j-api-1.7.30.jar:$script_dir/src/slf4j-simple-1.7.30.jar" "$script_dir/src/ProductService"/*.java
-    javac -d "$script_dir/compiled/UserService" -cp "$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/src/json-20231013.jar:$script_dir/src/postgresql-42.7.2.jar:$script_dir/src/HikariCP-5.1.0.jar:$script_dir/src/slf4j-api-1.7.30.jar:$script_dir/src/slf4j-simple-1.7.30.jar" "$script_dir/src/UserService"/*.java
+    # Compile the Java code (each service also gets the shared classes in src/Common)
+    javac -d "$script_dir/compiled/OrderService" -cp "$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/src/json-20231013.jar:$script_dir/src/postgresql-42.7.2.jar:$script_dir/src/HikariCP-5.1.0.jar:$script_dir/src/slf4j-api-1.7.30.jar:$script_dir/src/slf4j-simple-1.7.30.jar:$script_dir/src/commons-pool2-2.12.0.jar" "$script_dir/src/OrderService"/*.java "$script_dir/src/Common"/*.java
+    javac -d "$script_dir/compiled/ProductService" -cp "$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/src/json-20231013.jar:$script_dir/src/postgresql-42.7.2.jar:$script_dir/src/HikariCP-5.1.0.jar:$script_dir/src/slf4j-api-1.7.30.jar:$script_dir/src/slf4j-simple-1.7.30.jar:$script_dir/src/commons-pool2-2.12.0.jar" "$script_dir/src/ProductService"/*.java "$script_dir/src/Common"/*.java
+    javac -d "$script_dir/compiled/UserService" -cp "$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/src/json-20231013.jar:$script_dir/src/postgresql-42.7.2.jar:$script_dir/src/HikariCP-5.1.0.jar:$script_dir/src/slf4j-api-1.7.30.jar:$script_dir/src/slf4j-simple-1.7.30.jar:$script_dir/src/commons-pool2-2.12.0.jar" "$script_dir/src/UserService"/*.java "$script_dir/src/Common"/*.java
 
     if [ "$?" -eq 0 ]; then
         echo "Compilation successful."
@@ -36,7 +37,7 @@ start_us() {
 	DOCKER_IP=$2
 	DB_PORT=$3
 	RD_PORT=$4
-	java -cp "$script_dir/compiled/UserService:$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/compiled/json-20231013.jar:$script_dir/compiled/postgresql-42.7.2.jar:$script_dir/compiled/HikariCP-5.1.0.jar:$script_dir/compiled/slf4j-api-1.7.30.jar:$script_dir/compiled/slf4j-simple-1.7.30.jar" UserService "$USER_PORT" "$DOCKER_IP" "$DB_PORT" "$RD_PORT"
+	java $JAVA_OPTS -cp "$script_dir/compiled/UserService:$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/compiled/json-20231013.jar:$script_dir/compiled/postgresql-42.7.2.jar:$script_dir/compiled/HikariCP-5.1.0.jar:$script_dir/compiled/slf4j-api-1.7.30.jar:$script_dir/compiled/slf4j-simple-1.7.30.jar:$script_dir/compiled/commons-pool2-2.12.0.jar" UserService "$USER_PORT" "$DOCKER_IP" "$DB_PORT" "$RD_PORT"
 }
 
 # Function to start the ProductService
@@ -46,7 +47,7 @@ start_ps() {
 	DOCKER_IP=$2
 	DB_PORT=$3
 	RD_PORT=$4
-	java -cp "$script_dir/compiled/ProductService:$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/compiled/json-20231013.jar:$script_dir/compiled/postgresql-42.7.2.jar:$script_dir/compiled/HikariCP-5.1.0.jar:$script_dir/compiled/slf4j-api-1.7.30.jar:$script_dir/compiled/slf4j-simple-1.7.30.jar" ProductService "$PRODUCT_PORT" "$DOCKER_IP" "$DB_PORT" "$RD_PORT"
+	java $JAVA_OPTS -cp "$script_dir/compiled/ProductService:$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/compiled/json-20231013.jar:$script_dir/compiled/postgresql-42.7.2.jar:$script_dir/compiled/HikariCP-5.1.0.jar:$script_dir/compiled/slf4j-api-1.7.30.jar:$script_dir/compiled/slf4j-simple-1.7.30.jar:$script_dir/compiled/commons-pool2-2.12.0.jar" ProductService "$PRODUCT_PORT" "$DOCKER_IP" "$DB_PORT" "$RD_PORT"
 }
 
 # Function to start the OrderService
@@ -56,7 +57,7 @@ start_os() {
 	DOCKER_IP=$2
 	DB_PORT=$3
 	RD_PORT=$4
-	java -cp "$script_dir/compiled/OrderService:$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/compiled/json-20231013.jar:$script_dir/compiled/postgresql-42.7.2.jar:$script_dir/compiled/HikariCP-5.1.0.jar:$script_dir/compiled/slf4j-api-1.7.30.jar:$script_dir/compiled/slf4j-simple-1.7.30.jar" OrderService "$ORDER_PORT" "$DOCKER_IP" "$DB_PORT" "$RD_PORT"
+	java $JAVA_OPTS -cp "$script_dir/compiled/OrderService:$script_dir/src/jedis-5.2.0-beta1.jar:$script_dir/compiled/json-20231013.jar:$script_dir/compiled/postgresql-42.7.2.jar:$script_dir/compiled/HikariCP-5.1.0.jar:$script_dir/compiled/slf4j-api-1.7.30.jar:$script_dir/compiled/slf4j-simple-1.7.30.jar:$script_dir/compiled/commons-pool2-2.12.0.jar" OrderService "$ORDER_PORT" "$DOCKER_IP" "$DB_PORT" "$RD_PORT"
 
 }
 
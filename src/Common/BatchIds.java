@@ -0,0 +1,51 @@
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * BatchIds reads the id list of a batch read, given as a query parameter: GET /product?ids=1,2,3.
+ * Ids are answered in the order they are listed, repeats included.
+ *
+ * The size of a batch can be capped with the following system property:
+ *   batch.maxIds  the most ids a single request may ask for (default 100)
+ */
+class BatchIds {
+
+    static final int maxIds = Integer.getInteger("batch.maxIds", 100);
+
+    private BatchIds() {
+    }
+
+    /**
+     * Parses the ids parameter of a request.
+     * @param exchange is the exchange whose query is read.
+     * @return The ids, or null if the parameter is missing, empty, malformed or lists more than maxIds ids.
+     */
+    static int[] parse(HttpExchange exchange) {
+        String list;
+        try {
+            list = QueryParams.parse(exchange.getRequestURI().getRawQuery()).get("ids");
+        } catch (IllegalArgumentException e) {
+            return null;  // A malformed percent-encoding
+        }
+        return list == null ? null : parse(list);
+    }
+
+    /**
+     * @param list is the decoded value of the ids parameter.
+     * @return The ids, or null if the list is empty, malformed or lists more than maxIds ids.
+     */
+    static int[] parse(String list) {
+        String[] parts = list.split(",", -1);
+        if (parts.length == 0 || parts.length > maxIds) {
+            return null;
+        }
+        int[] ids = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                ids[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ids;
+    }
+}
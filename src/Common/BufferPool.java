@@ -0,0 +1,57 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool recycles fixed-size direct byte buffers, which are expensive to allocate and free.
+ * At most maxPooled idle buffers are kept, anything beyond that is left to the garbage collector.
+ */
+class BufferPool {
+
+    private final ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int bufferSize;
+    private final int maxPooled;
+
+    /**
+     * @param bufferSize is the capacity of every buffer in bytes.
+     * @param maxPooled is the largest number of idle buffers kept for reuse.
+     */
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return A cleared buffer, taken from the pool if one is idle.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            Metrics.increment("bufferpool.allocations");
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it afterwards.
+     * @param buffer is a buffer previously returned by acquire.
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer != null && idleCount.incrementAndGet() <= maxPooled) {
+            idle.add(buffer);
+        } else if (buffer != null) {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return The number of idle buffers in the pool.
+     */
+    int idle() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,259 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * CacheWriter takes the Redis writes that follow a database write (invalidations, stores of new rows and
+ * write-through or read-fill stores) off the request path. Callers only update the L1 cache of this
+ * instance and queue the write; one background thread sends the queued writes in batches, one pipeline
+ * per batch.
+ *
+ * Writes are queued per key, so a key written several times before a batch goes out is only sent once,
+ * with its latest write; an invalidation that must be announced stays announced when a later fill of the
+ * same key replaces it. A queued invalidation is only replaced by a fill of a version at least as new as
+ * its own, so a fill read before the write can never undo it. Other instances therefore see a change only
+ * once its batch has gone out, usually well under a millisecond after the database commit.
+ *
+ * The queue is bounded: a caller that finds it full waits for the writer to make room, which slows writes
+ * down to what Redis can take instead of letting the queue grow. When the service shuts down, everything
+ * queued is sent before the Redis pool closes. A batch that fails is dropped and its keys are cleared from
+ * the L1 cache, as the synchronous writes did.
+ *
+ * The writer can be tuned with the following system properties:
+ *   cache.writer.enabled       whether writes are queued at all; if not they are sent by the caller (default true)
+ *   cache.writer.maxPending    the most keys waiting to be written (default 10000)
+ *   cache.writer.maxBatch      the most keys sent in one pipeline (default 512)
+ *   cache.writer.lingerMicros  how long the writer waits for more writes before sending a batch (default 200)
+ */
+class CacheWriter {
+
+    private enum Kind { DELETE, VERSIONED }
+
+    /**
+     * The write queued for a key.
+     */
+    private static final class Write {
+        final Kind kind;
+        final String json;
+        final long version;
+        final boolean publish;
+
+        Write(Kind kind, String json, long version, boolean publish) {
+            this.kind = kind;
+            this.json = json;
+            this.version = version;
+            this.publish = publish;
+        }
+
+        /**
+         * Folds a later write of the same key into this one. The later write wins, unless it stores an older
+         * version of the row than this one wrote or invalidated, or this one is a delete of unknown version.
+         * The newer of the two versions is kept, and an invalidation that either of them had to publish is
+         * still published.
+         */
+        Write then(Write later) {
+            // A fill read before a write-through or a delete of the same row must not replace it
+            boolean stale = later.kind == Kind.VERSIONED && (later.version < version || (kind == Kind.DELETE && version == 0));
+            Write winner = stale ? this : later;
+            boolean announce = publish || later.publish;
+            long newest = Math.max(version, later.version);
+            return winner.publish == announce && winner.version == newest
+                    ? winner : new Write(winner.kind, winner.json, newest, announce);
+        }
+    }
+
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty("cache.writer.enabled", "true"));
+    private static final int maxPending = Integer.getInteger("cache.writer.maxPending", 10000);
+    private static final int maxBatch = Integer.getInteger("cache.writer.maxBatch", 512);
+    private static final long lingerNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("cache.writer.lingerMicros", 200L));
+
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final Condition notEmpty = lock.newCondition();
+    private static final Condition notFull = lock.newCondition();
+    private static final Map<String, Write> pending = new LinkedHashMap<>();
+    private static boolean running = enabled;
+    private static Thread thread;
+
+    static {
+        Metrics.gauge("cache.writer.pending", () -> {
+            lock.lock();
+            try {
+                return pending.size();
+            } finally {
+                lock.unlock();
+            }
+        });
+        if (enabled) {
+            thread = new Thread(CacheWriter::run, "cache-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private CacheWriter() {
+    }
+
+    /**
+     * Deletes a key and tells the other instances to drop their local copies.
+     * @param version is the version of the write that invalidates the key (see VersionedCache), or 0 if the
+     *        row has no version.
+     */
+    static void delete(String key, long version) {
+        NearCache.invalidate(key);
+        queue(key, new Write(Kind.DELETE, null, version, true));
+    }
+
+    /**
+     * Stores a payload unless a newer version of the row is already cached (see VersionedCache).
+     * @param publish is whether the other instances drop their local copies, as they must after a write.
+     */
+    static void storeVersioned(String key, String json, long version, boolean publish) {
+        if (publish) {
+            NearCache.invalidate(key);
+        }
+        queue(key, new Write(Kind.VERSIONED, json, version, publish));
+    }
+
+    private static void queue(String key, Write write) {
+        lock.lock();
+        try {
+            while (running && pending.size() >= maxPending && !pending.containsKey(key)) {
+                Metrics.increment("cache.writer.waits");
+                notFull.awaitUninterruptibly();
+            }
+            if (running) {
+                Write queued = pending.remove(key);
+                if (queued != null) {
+                    Metrics.increment("cache.writer.coalesced");
+                    // The key moves to the back, so the writes of different keys keep their order
+                    write = queued.then(write);
+                }
+                pending.put(key, write);
+                notEmpty.signal();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        // With the writer disabled or shut down, the caller sends its own write
+        Map<String, Write> single = new LinkedHashMap<>();
+        single.put(key, write);
+        send(single);
+    }
+
+    /**
+     * The loop of the writer thread. It keeps sending after shutdown starts until nothing is queued.
+     */
+    private static void run() {
+        while (true) {
+            Map<String, Write> batch = new LinkedHashMap<>();
+            lock.lock();
+            try {
+                while (pending.isEmpty()) {
+                    if (!running) {
+                        return;
+                    }
+                    notEmpty.awaitUninterruptibly();
+                }
+                // Give writes made at about the same time the chance to join the batch
+                long remaining = lingerNanos;
+                while (running && pending.size() < maxBatch && remaining > 0) {
+                    try {
+                        remaining = notEmpty.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                Iterator<Map.Entry<String, Write>> entries = pending.entrySet().iterator();
+                while (entries.hasNext() && batch.size() < maxBatch) {
+                    Map.Entry<String, Write> entry = entries.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    entries.remove();
+                }
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            send(batch);
+        }
+    }
+
+    /**
+     * Sends a batch of writes in one pipeline.
+     */
+    private static void send(Map<String, Write> batch) {
+        Metrics.histogram("cache.writer.batch.size").record(batch.size());
+        List<String> versionedKeys = new ArrayList<>();
+        List<Response<Object>> versionedResults = new ArrayList<>();
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, Write> entry : batch.entrySet()) {
+                String key = entry.getKey();
+                Write write = entry.getValue();
+                // Refuse fills of older versions before the key is cleared
+                if (write.kind == Kind.DELETE && write.version > 0) {
+                    VersionedCache.raise(pipeline, key, write.version);
+                }
+                switch (write.kind) {
+                    case DELETE:
+                        pipeline.del(key);
+                        break;
+                    case VERSIONED:
+                        versionedKeys.add(key);
+                        versionedResults.add(VersionedCache.store(pipeline, key, write.json, write.version));
+                        break;
+                }
+                if (write.publish) {
+                    pipeline.publish(NearCache.CHANNEL, key);
+                }
+            }
+            pipeline.sync();
+            for (int i = 0; i < versionedKeys.size(); i++) {
+                String key = versionedKeys.get(i);
+                if (Long.valueOf(1).equals(versionedResults.get(i).get())) {
+                    NearCache.put(key, batch.get(key).json);
+                } else {
+                    Metrics.increment("versionedcache.staleWrites");
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to write to Redis: " + e.getMessage());
+            Metrics.counter("cache.writer.failures").add(batch.size());
+            // The cached copies may now be stale, so at least do not serve them from this instance
+            for (String key : batch.keySet()) {
+                NearCache.invalidate(key);
+            }
+        }
+    }
+
+    /**
+     * Stops queueing and waits until everything already queued has been sent. Call it before the Redis pool
+     * is shut down.
+     */
+    static void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * ChangeListener invalidates cached rows from Postgres change notifications, so the cache follows every
+ * committed change, including ones made outside the services (e.g. with psql), instead of relying on each
+ * write path to invalidate what it touched.
+ *
+ * Triggers on each watched table send the operation, id and version of every changed row with pg_notify
+ * on the channel "cache_<table>" once the transaction commits; another trigger gives every update a new
+ * version, even if the statement does not set one. One instance of each service LISTENs, on its own
+ * connection, and applies the notifications it received in one Redis pipeline:
+ *   - an insert only removes a tombstone, since nothing else can be cached for a new row;
+ *   - an update removes the cached row unless a version at least as new is cached (a write-through of the
+ *     same change), and records the version so that an older read cannot fill the cache again;
+ *   - a delete always removes the cached row, and records a version taken after it, so that no read that
+ *     started before it can fill the cache with the deleted row.
+ * Every removal is published on the near cache channel, so every instance drops its L1 copy.
+ *
+ * The listener is a backstop: the services still invalidate what they write inline, so a change they make
+ * is never left to a notification alone. The instances of a service elect their listener with a session
+ * advisory lock (pg_try_advisory_lock) named after the watched tables; the others wait on their connection
+ * and take over when its holder disconnects. A batch that fails to reach Redis is kept and retried, merged
+ * with later notifications.
+ *
+ * Notifications sent while no listener is connected are lost, so a listener catches up after every
+ * (re)connect: the highest version it applied of each versioned table is kept in Redis under
+ * "changes:<table>:version", and the rows whose versions are above it, less cache.listen.catchUpVersions
+ * (versions are taken before their transactions commit, so a few may commit out of order), are invalidated
+ * again. Deletes of versioned rows are kept in the table cache_deletions for that, and pruned after
+ * cache.listen.retentionMinutes. Tables cached with a change counter are not caught up; their entries
+ * expire with the counter.
+ *
+ * The listener can be tuned with the following system properties:
+ *   cache.listen.enabled           whether changes are listened for at all (default true)
+ *   cache.listen.pollMillis        how long the listener waits for notifications before checking the connection (default 500)
+ *   cache.listen.catchUpVersions   how far below the last applied version a catch up starts (default 10000)
+ *   cache.listen.retentionMinutes  how long deletes are kept for catching up (default 1440)
+ */
+class ChangeListener {
+
+    // KEYS: payload, version. ARGV: operation, version ('' if the table has none), version ttl ('0' if it has one).
+    // Returns 1 if the cached row was removed.
+    private static final String INVALIDATE =
+            "if ARGV[1] == 'INSERT' then " +
+            "  if redis.call('GET', KEYS[1]) ~= '" + NegativeCache.TOMBSTONE + "' then return 0 end " +
+            "elseif ARGV[2] ~= '' then " +
+            "  if tonumber(redis.call('GET', KEYS[2]) or '-1') < tonumber(ARGV[2]) then redis.call('SET', KEYS[2], ARGV[2]) " +
+            "  elseif ARGV[1] ~= 'DELETE' then return 0 end " +
+            "elseif ARGV[3] ~= '0' then " +
+            "  redis.call('INCR', KEYS[2]) " +
+            "  redis.call('PEXPIRE', KEYS[2], ARGV[3]) " +
+            "end " +
+            "redis.call('DEL', KEYS[1]) " +
+            "redis.call('PUBLISH', '" + NearCache.CHANNEL + "', KEYS[1]) " +
+            "return 1";
+
+    /**
+     * A watched table and how its rows are cached.
+     */
+    private static final class Table {
+        final String keyPrefix;
+        // Rows without versions are cached with a change counter in "<key>:version" that lives this long
+        final long counterTtlMillis;
+
+        Table(String keyPrefix, long counterTtlMillis) {
+            this.keyPrefix = keyPrefix;
+            this.counterTtlMillis = counterTtlMillis;
+        }
+    }
+
+    /**
+     * The latest change of one cached row in a batch of notifications.
+     */
+    private static final class Change {
+        final String operation;
+        final String version;
+        final Table table;
+        final String tableName;
+
+        Change(String operation, String version, Table table, String tableName) {
+            this.operation = operation;
+            this.version = version;
+            this.table = table;
+            this.tableName = tableName;
+        }
+
+        /**
+         * Folds a later notification of the same row into this one: a delete wins, then the newest version.
+         */
+        Change then(Change later) {
+            if ("DELETE".equals(operation) || "DELETE".equals(later.operation)) {
+                return "DELETE".equals(later.operation) ? later : this;
+            }
+            if (!version.isEmpty() && !later.version.isEmpty()
+                    && Long.parseLong(later.version) < Long.parseLong(version)) {
+                return this;
+            }
+            return "INSERT".equals(later.operation) && !"INSERT".equals(operation) ? this : later;
+        }
+    }
+
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty("cache.listen.enabled", "true"));
+    private static final int pollMillis = Integer.getInteger("cache.listen.pollMillis", 500);
+    private static final long catchUpVersions = Long.getLong("cache.listen.catchUpVersions", 10000L);
+    private static final int retentionMinutes = Integer.getInteger("cache.listen.retentionMinutes", 1440);
+    // How long a standby instance waits before trying to become the listener again, and between reconnects
+    private static final long RETRY_MILLIS = 1000;
+
+    private static final Map<String, Table> tables = new ConcurrentHashMap<>();
+    // Changes received but not applied yet, e.g. because Redis failed; only the listener thread uses it
+    private static final Map<String, Change> pending = new LinkedHashMap<>();
+    private static volatile boolean connected;
+    private static volatile boolean running;
+    private static Thread thread;
+
+    private ChangeListener() {
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Creates the triggers that send change notifications for a table. Installing them again is harmless.
+     * @param con is a connection of the service that owns the table.
+     * @param table is the table name.
+     * @param idColumn is the column whose value completes the cache key, e.g. "id" for "product:<id>".
+     * @param versioned is whether the table has a version column taken from the sequence <table>_version_seq.
+     * @param skipManaged is whether changes made by sessions with app.cache_managed = 'on' are not sent,
+     *        because those sessions update the cache themselves. The services' own pools set it, so that
+     *        their commits do not take the global lock of the notification queue that NOTIFY takes at commit
+     *        and only changes made outside the services are sent.
+     * Changes made by transactions with app.cache_bulk = 'on' are never sent: bulk writes such as imports
+     * invalidate their rows themselves, once per batch instead of once per row.
+     */
+    static void install(Connection con, String table, String idColumn, boolean versioned, boolean skipManaged)
+            throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            if (versioned) {
+                statement.execute("CREATE OR REPLACE FUNCTION " + table + "_bump_version() RETURNS trigger AS $$ " +
+                        "BEGIN " +
+                        "IF NEW.version = OLD.version THEN NEW.version := nextval('" + table + "_version_seq'); END IF; " +
+                        "RETURN NEW; " +
+                        "END $$ LANGUAGE plpgsql");
+                createTrigger(statement, table, table + "_bump_version", "BEFORE UPDATE");
+            }
+            String version = versioned ? "NEW.version::text" : "''";
+            // A deleted row has no version left, so a delete sends one taken after it, and records it for catching up
+            String deleted = versioned ? "nextval('" + table + "_version_seq')::text" : "''";
+            if (versioned) {
+                statement.execute("CREATE TABLE IF NOT EXISTS cache_deletions (" +
+                        "tbl TEXT NOT NULL, " +
+                        "id TEXT NOT NULL, " +
+                        "version BIGINT NOT NULL, " +
+                        "deleted_at TIMESTAMPTZ NOT NULL DEFAULT now())");
+                statement.execute("CREATE INDEX IF NOT EXISTS cache_deletions_version_idx ON cache_deletions (tbl, version)");
+            }
+            statement.execute("CREATE OR REPLACE FUNCTION " + table + "_notify_change() RETURNS trigger AS $$ " +
+                    "DECLARE deleted_version text; " +
+                    "BEGIN " +
+                    "IF current_setting('app.cache_bulk', true) = 'on' THEN RETURN NULL; END IF; " +
+                    (skipManaged ? "IF current_setting('app.cache_managed', true) = 'on' THEN RETURN NULL; END IF; " : "") +
+                    "IF TG_OP = 'DELETE' THEN " +
+                    "deleted_version := " + deleted + "; " +
+                    (versioned ? "INSERT INTO cache_deletions(tbl, id, version) VALUES ('" + table + "', OLD." + idColumn
+                            + "::text, deleted_version::bigint); " : "") +
+                    "PERFORM pg_notify('cache_" + table + "', 'DELETE:' || OLD." + idColumn + " || ':' || deleted_version); " +
+                    "ELSE " +
+                    "PERFORM pg_notify('cache_" + table + "', TG_OP || ':' || NEW." + idColumn + " || ':' || " + version + "); " +
+                    "END IF; " +
+                    "RETURN NULL; " +
+                    "END $$ LANGUAGE plpgsql");
+            createTrigger(statement, table, table + "_notify_change", "AFTER INSERT OR UPDATE OR DELETE");
+        }
+    }
+
+    private static void createTrigger(Statement statement, String table, String name, String when) throws SQLException {
+        statement.execute("DO $$ BEGIN " +
+                "IF NOT EXISTS (SELECT 1 FROM pg_trigger WHERE tgname = '" + name + "' AND tgrelid = '" + table + "'::regclass) THEN " +
+                "CREATE TRIGGER " + name + " " + when + " ON " + table + " FOR EACH ROW EXECUTE FUNCTION " + name + "(); " +
+                "END IF; " +
+                "END $$");
+    }
+
+    /**
+     * Listens for the changes of a table whose rows are cached with versions, under "<keyPrefix><id>" where
+     * id is the table's id column.
+     */
+    static void watch(String table, String keyPrefix) {
+        tables.put(table, new Table(keyPrefix, 0));
+    }
+
+    /**
+     * Listens for the changes of a table whose rows are cached with a change counter in "<key>:version"
+     * instead of versions (e.g. purchase histories); every change bumps the counter.
+     */
+    static void watchCounted(String table, String keyPrefix, long counterTtlMillis) {
+        tables.put(table, new Table(keyPrefix, counterTtlMillis));
+    }
+
+    /**
+     * Starts listening for the watched tables, once this instance is elected, reconnecting until the service
+     * shuts down.
+     */
+    static synchronized void start(String url, String user, String password) {
+        if (!enabled || thread != null || tables.isEmpty()) {
+            return;
+        }
+        running = true;
+        Metrics.gauge("changes.connected", () -> connected ? 1 : 0);
+        thread = new Thread(() -> listen(url, user, password), "change-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void listen(String url, String user, String password) {
+        // The instances that watch the same tables share one lock, so each service elects its own listener
+        String lockName = "cache_listener:" + String.join(",", new TreeSet<>(tables.keySet()));
+        while (running) {
+            try (Connection con = DriverManager.getConnection(url, user, password);
+                 Statement statement = con.createStatement()) {
+                if (!elect(con, lockName)) {
+                    continue;
+                }
+                for (String table : tables.keySet()) {
+                    statement.execute("LISTEN cache_" + table);
+                }
+                PGConnection notifications = con.unwrap(PGConnection.class);
+                connected = true;
+                System.out.println("Listening for changes of " + tables.keySet());
+                // Notifications sent before the LISTEN are lost, so invalidate what changed since the last one applied
+                catchUp(con);
+                while (running) {
+                    PGNotification[] received = notifications.getNotifications(pollMillis);
+                    if ((received != null && received.length > 0) || !pending.isEmpty()) {
+                        apply(received == null ? new PGNotification[0] : received);
+                    }
+                }
+            } catch (Exception e) {
+                System.out.println("Lost the change notification connection: " + e.getMessage());
+            } finally {
+                if (connected) {
+                    // Closing the connection releases the advisory lock, so another instance can take over
+                    connected = false;
+                    Metrics.increment("changes.disconnects");
+                }
+            }
+            if (!pause(RETRY_MILLIS)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits on a connection until this instance holds the listener lock of its service.
+     * @return true once it holds the lock, false if the service is shutting down.
+     */
+    private static boolean elect(Connection con, String lockName) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement("SELECT pg_try_advisory_lock(hashtext(?))")) {
+            statement.setString(1, lockName);
+            while (running) {
+                try (ResultSet rs = statement.executeQuery()) {
+                    if (rs.next() && rs.getBoolean(1)) {
+                        return true;
+                    }
+                }
+                if (!pause(RETRY_MILLIS)) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean pause(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Invalidates the rows of the versioned tables that changed after the last version applied, and prunes
+     * the deletes kept for catching up.
+     */
+    private static void catchUp(Connection con) throws SQLException {
+        Map<String, Change> changes = new LinkedHashMap<>();
+        try (Statement statement = con.createStatement()) {
+            statement.executeUpdate("DELETE FROM cache_deletions WHERE deleted_at < now() - interval '"
+                    + retentionMinutes + " minutes'");
+        } catch (SQLException e) {
+            // No versioned table was installed yet
+            System.out.println("Failed to prune cache_deletions: " + e.getMessage());
+        }
+        for (Map.Entry<String, Table> watched : tables.entrySet()) {
+            String table = watched.getKey();
+            Table cached = watched.getValue();
+            if (cached.counterTtlMillis != 0) {
+                continue;
+            }
+            String seen;
+            try (Jedis jedis = RedisPool.getResource()) {
+                seen = jedis.get(VersionedCache.versionKey(seenKey(table)));
+            } catch (Exception e) {
+                System.out.println("Failed to read the last applied change of " + table + ": " + e.getMessage());
+                continue;
+            }
+            if (seen == null) {
+                // Nothing applied is known, e.g. Redis lost everything, in which case nothing cached is stale
+                try (Statement statement = con.createStatement();
+                     ResultSet rs = statement.executeQuery("SELECT COALESCE(max(version), 0) FROM " + table)) {
+                    rs.next();
+                    raiseSeen(table, rs.getLong(1));
+                }
+                continue;
+            }
+            long from = Long.parseLong(seen) - catchUpVersions;
+            String sql = "SELECT 'UPDATE', id::text, version FROM " + table + " WHERE version > ? " +
+                    "UNION ALL SELECT 'DELETE', id, version FROM cache_deletions WHERE tbl = ? AND version > ?";
+            try (PreparedStatement statement = con.prepareStatement(sql)) {
+                statement.setLong(1, from);
+                statement.setString(2, table);
+                statement.setLong(3, from);
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        changes.merge(cached.keyPrefix + rs.getString(2),
+                                new Change(rs.getString(1), Long.toString(rs.getLong(3)), cached, table), Change::then);
+                    }
+                }
+            }
+        }
+        Metrics.counter("changes.caughtUp").add(changes.size());
+        if (!changes.isEmpty()) {
+            pending.putAll(changes);
+            apply(new PGNotification[0]);
+        }
+    }
+
+    private static String seenKey(String table) {
+        return "changes:" + table;
+    }
+
+    private static void raiseSeen(String table, long version) {
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            VersionedCache.raise(pipeline, seenKey(table), version);
+            pipeline.sync();
+        } catch (Exception e) {
+            System.out.println("Failed to record the last applied change of " + table + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Invalidates the rows named by a batch of notifications, together with the changes of earlier batches
+     * that failed, in one pipeline. If the pipeline fails every change is kept for the next round.
+     */
+    private static void apply(PGNotification[] received) {
+        Metrics.counter("changes.received").add(received.length);
+        for (PGNotification notification : received) {
+            String name = notification.getName().substring("cache_".length());
+            Table table = tables.get(name);
+            String[] parts = notification.getParameter().split(":", -1);
+            if (table == null || parts.length != 3) {
+                continue;
+            }
+            Change change = new Change(parts[0], parts[2], table, name);
+            pending.merge(table.keyPrefix + parts[1], change, Change::then);
+        }
+        Metrics.histogram("changes.batch.size").record(pending.size());
+
+        List<Response<Object>> results = new ArrayList<>();
+        Map<String, Long> seen = new LinkedHashMap<>();
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<String, Change> entry : pending.entrySet()) {
+                String key = entry.getKey();
+                Change change = entry.getValue();
+                // Drop the local copy before Redis, like CacheWriter does
+                NearCache.invalidate(key);
+                results.add(pipeline.eval(INVALIDATE, Arrays.asList(key, VersionedCache.versionKey(key)),
+                        Arrays.asList(change.operation, change.version, Long.toString(change.table.counterTtlMillis))));
+                if (!change.version.isEmpty()) {
+                    seen.merge(change.tableName, Long.parseLong(change.version), Math::max);
+                }
+            }
+            // Recorded after the invalidations, so a catch up never starts above a change that was not applied
+            for (Map.Entry<String, Long> table : seen.entrySet()) {
+                VersionedCache.raise(pipeline, seenKey(table.getKey()), table.getValue());
+            }
+            pipeline.sync();
+            long removed = 0;
+            for (Response<Object> result : results) {
+                if (Long.valueOf(1).equals(result.get())) {
+                    removed++;
+                }
+            }
+            Metrics.counter("changes.invalidated").add(removed);
+            pending.clear();
+        } catch (Exception e) {
+            Metrics.counter("changes.failures").add(pending.size());
+            System.out.println("Failed to apply change notifications, retrying them: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops listening. Call it before the Redis pool is shut down.
+     */
+    static void shutdown() {
+        running = false;
+        connected = false;
+        if (thread != null) {
+            try {
+                thread.join(pollMillis + 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
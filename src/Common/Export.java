@@ -0,0 +1,120 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Semaphore;
+import javax.sql.DataSource;
+
+/**
+ * Export streams a whole table to the client as newline delimited JSON, one row per line. Rows are read
+ * through a server-side cursor (autocommit off and a fetch size, so Postgres hands them over a page at a
+ * time) and written into one pooled JsonWriter that is flushed to a chunked response every few kilobytes,
+ * so memory stays flat whatever the size of the table. A slow client holds back the cursor rather than
+ * making the rows pile up in memory.
+ *
+ * Every export holds a request thread and a database connection until it ends, so only a few may run at
+ * once; the others are answered 503 straight away instead of queueing on the request pool.
+ *
+ * If the database fails after the rows started to flow, the status can no longer change, so the export
+ * ends with the line {"error": "export interrupted"}.
+ *
+ * Exports can be tuned with the following system properties:
+ *   export.maxConcurrent  the most exports running at once in a service (default 2)
+ *   export.fetchSize      the number of rows fetched from the cursor at a time (default 1000)
+ */
+class Export {
+
+    private static final int FLUSH_BYTES = 32 << 10;
+    private static final int maxConcurrent = Integer.getInteger("export.maxConcurrent", 2);
+    private static final int fetchSize = Integer.getInteger("export.fetchSize", 1000);
+    private static final Semaphore running = new Semaphore(maxConcurrent);
+    private static final String INTERRUPTED = "{\"error\":\"export interrupted\"}\n";
+
+    static {
+        Metrics.gauge("export.running", () -> maxConcurrent - running.availablePermits());
+    }
+
+    /**
+     * Writes the current row of a result set as one JSON value.
+     */
+    interface RowWriter {
+        void write(ResultSet rs, JsonWriter writer) throws SQLException;
+    }
+
+    private Export() {
+    }
+
+    /**
+     * Runs a query and streams its rows as the response of an exchange.
+     * @param exchange is the exchange to answer.
+     * @param dataSource is the pool the connection is borrowed from.
+     * @param name names the export in the metrics, e.g. "product".
+     * @param sql is the query; it should order its rows, typically by primary key.
+     * @param row writes each row.
+     * @throws IOException If writing the response fails.
+     */
+    static void stream(HttpExchange exchange, DataSource dataSource, String name, String sql, RowWriter row)
+            throws IOException {
+        if (!running.tryAcquire()) {
+            Metrics.increment("export.rejected");
+            try (JsonWriter writer = JsonWriter.acquire()) {
+                writer.beginObject().endObject();
+                writer.send(exchange, 503);
+            }
+            return;
+        }
+        long rows = 0;
+        boolean started = false;
+        try (Connection con = dataSource.getConnection()) {
+            // A cursor is only used by the driver inside a transaction
+            con.setAutoCommit(false);
+            con.setReadOnly(true);
+            try (PreparedStatement statement = con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY,
+                                                                    ResultSet.CONCUR_READ_ONLY)) {
+                statement.setFetchSize(fetchSize);
+                try (ResultSet rs = statement.executeQuery()) {
+                    exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=UTF-8");
+                    exchange.sendResponseHeaders(200, 0);
+                    started = true;
+                    try (OutputStream out = exchange.getResponseBody();
+                         JsonWriter writer = JsonWriter.acquire()) {
+                        try {
+                            while (rs.next()) {
+                                row.write(rs, writer);
+                                writer.raw("\n");
+                                rows++;
+                                if (writer.size() >= FLUSH_BYTES) {
+                                    writer.writeTo(out);
+                                    writer.clear();
+                                }
+                            }
+                        } catch (SQLException e) {
+                            System.out.println("Export of " + name + " failed: " + e.getMessage());
+                            writer.raw(INTERRUPTED);
+                        }
+                        writer.writeTo(out);
+                    }
+                }
+            } finally {
+                con.rollback();
+                con.setReadOnly(false);
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.out.println("Export of " + name + " failed: " + e.getMessage());
+            if (!started) {
+                try (JsonWriter writer = JsonWriter.acquire()) {
+                    writer.beginObject().endObject();
+                    writer.send(exchange, 500);
+                }
+            }
+        } finally {
+            running.release();
+            Metrics.counter("export." + name + ".rows").add(rows);
+        }
+    }
+}
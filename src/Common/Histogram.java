@@ -0,0 +1,51 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram records the distribution of non-negative values in power-of-two buckets.
+ * A value v is counted in the first bucket "le_2^k" with v <= 2^k.
+ */
+class Histogram {
+
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Records one value.
+     * @param value is the value to record, negative values are counted as 0.
+     */
+    void record(long value) {
+        long v = Math.max(0, value);
+        int bucket = v <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(v - 1);
+        buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    /**
+     * @return The count, sum, maximum and non-empty buckets of the histogram.
+     */
+    Map<String, Object> snapshot() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("count", count.sum());
+        result.put("sum", sum.sum());
+        result.put("max", max.get());
+        Map<String, Long> nonEmpty = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = buckets.get(i);
+            if (n > 0) {
+                nonEmpty.put("le_" + (1L << i), n);
+            }
+        }
+        result.put("buckets", nonEmpty);
+        return result;
+    }
+}
@@ -0,0 +1,32 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * HttpServers creates the HTTP server engine of a service.
+ *
+ * The engine is chosen with the server.engine system property:
+ *   "jdk" for the com.sun.net.httpserver implementation (default)
+ *   "nio" for the selector-based NioHttpServer with keep-alive and pipelining
+ * Both are HttpServers, so contexts, handlers and executors are set up the same way.
+ */
+class HttpServers {
+
+    private HttpServers() {
+    }
+
+    /**
+     * Creates an HTTP server bound to the given address using the selected engine.
+     * @param address is the address and port to listen on.
+     * @return The server, which still needs its contexts, executor and a call to start().
+     * @throws IOException If the port cannot be bound.
+     */
+    static HttpServer create(InetSocketAddress address) throws IOException {
+        if ("nio".equals(System.getProperty("server.engine", "jdk"))) {
+            System.out.println("Using the NIO HTTP server engine");
+            return new NioHttpServer(address);
+        }
+        return HttpServer.create(address, 0);
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * ImportReport counts the outcome of a bulk import and keeps the errors of the lines that were rejected,
+ * up to a limit so that a bad file cannot make the report grow without bound. It is written as
+ *
+ *   {"imported": 998, "failed": 2, "errors": [{"line": 7, "error": "duplicate id"}, ...]}
+ *
+ * The number of errors kept can be changed with the following system property:
+ *   import.maxErrors  the most line errors listed in the report (default 1000); the rest are only counted
+ */
+class ImportReport {
+
+    private static final byte[] IMPORTED = JsonWriter.name("imported");
+    private static final byte[] FAILED = JsonWriter.name("failed");
+    private static final byte[] ERRORS = JsonWriter.name("errors");
+    private static final byte[] LINE = JsonWriter.name("line");
+    private static final byte[] ERROR = JsonWriter.name("error");
+    private static final int maxErrors = Integer.getInteger("import.maxErrors", 1000);
+
+    private final int[] errorLines = new int[maxErrors];
+    private final String[] errorMessages = new String[maxErrors];
+    private int imported;
+    private int failed;
+
+    void imported() {
+        imported++;
+    }
+
+    /**
+     * Records a rejected line.
+     * @param line is the line number, counting from 1.
+     * @param error says why the line was rejected.
+     */
+    void fail(int line, String error) {
+        if (failed < maxErrors) {
+            errorLines[failed] = line;
+            errorMessages[failed] = error;
+        }
+        failed++;
+    }
+
+    int importedCount() {
+        return imported;
+    }
+
+    int failedCount() {
+        return failed;
+    }
+
+    void write(JsonWriter writer) {
+        writer.beginObject()
+                .field(IMPORTED, imported)
+                .field(FAILED, failed)
+                .key(ERRORS)
+                .beginArray();
+        for (int i = 0; i < Math.min(failed, maxErrors); i++) {
+            writer.next()
+                    .beginObject()
+                    .field(LINE, errorLines[i])
+                    .field(ERROR, errorMessages[i])
+                    .endObject();
+        }
+        writer.endArray().endObject();
+    }
+}
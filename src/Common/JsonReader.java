@@ -0,0 +1,370 @@
+import java.nio.charset.StandardCharsets;
+
+import org.json.JSONException;
+
+/**
+ * JsonReader reads the fields of a JSON object straight from UTF-8 bytes, without first turning
+ * the body into a String or a JSONObject. Field names are compared as bytes and numbers are parsed
+ * in place, so the only objects created are the String values the caller asks for.
+ *
+ * Typical use:
+ *   reader.beginObject();
+ *   while (reader.nextField()) {
+ *       if (reader.nameEquals(ID)) id = reader.readInt();
+ *       else reader.skipValue();
+ *   }
+ *
+ * Arrays of objects are read the same way: beginArray, then nextElement before each element.
+ *
+ * Like org.json, numbers are accepted where a string is expected and numeric strings where a number is.
+ * Malformed input throws a JSONException.
+ */
+class JsonReader {
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final byte[] buf;
+    private final int end;
+    private int pos;
+    private int nameStart;
+    private int nameEnd;
+    private boolean first = true;
+
+    /**
+     * @param buf holds the JSON text encoded as UTF-8.
+     * @param length is the number of valid bytes at the start of buf.
+     */
+    JsonReader(byte[] buf, int length) {
+        this.buf = buf;
+        this.end = length;
+    }
+
+    /**
+     * Encodes a field name once so it can be compared with nameEquals.
+     */
+    static byte[] name(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Consumes the opening brace of the object.
+     */
+    void beginObject() {
+        expect('{');
+        first = true;
+    }
+
+    /**
+     * Consumes the opening bracket of an array.
+     */
+    void beginArray() {
+        expect('[');
+        first = true;
+    }
+
+    /**
+     * Moves to the next element of the array.
+     * @return false once the closing bracket has been reached.
+     */
+    boolean nextElement() {
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            // The array was a value of the enclosing object or array, so that one is no longer at its first entry
+            first = false;
+            return false;
+        }
+        if (!first) {
+            expect(',');
+            skipWhitespace();
+        }
+        first = false;
+        return true;
+    }
+
+    /**
+     * Moves to the next field of the object and consumes its name and colon.
+     * @return false once the closing brace has been reached.
+     */
+    boolean nextField() {
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            // The object may be a value of an enclosing object or array, which is then past its first entry
+            first = false;
+            return false;
+        }
+        if (!first) {
+            expect(',');
+            skipWhitespace();
+        }
+        first = false;
+        if (peek() != '"') {
+            throw error("Expected a field name");
+        }
+        nameStart = pos + 1;
+        skipString();
+        nameEnd = pos - 1;
+        expect(':');
+        skipWhitespace();
+        return true;
+    }
+
+    /**
+     * @return true if the current field name is exactly the given name.
+     */
+    boolean nameEquals(byte[] name) {
+        if (nameEnd - nameStart != name.length) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buf[nameStart + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the current value is the literal null, which is then consumed.
+     */
+    boolean readNull() {
+        if (end - pos >= 4 && buf[pos] == 'n' && buf[pos + 1] == 'u' && buf[pos + 2] == 'l' && buf[pos + 3] == 'l') {
+            pos += 4;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the current value as an int. Fractions are truncated, as JSONObject.getInt does.
+     */
+    int readInt() {
+        double value = readDouble();
+        if (value > Integer.MAX_VALUE || value < Integer.MIN_VALUE) {
+            throw error("Number out of int range");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Reads the current value as a float.
+     */
+    float readFloat() {
+        return (float) readDouble();
+    }
+
+    /**
+     * Reads the current value, a number or a string holding a number, as a double.
+     */
+    double readDouble() {
+        boolean quoted = peek() == '"';
+        if (quoted) {
+            pos++;
+        }
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && (buf[pos] == '-' || buf[pos] == '+')) {
+            negative = buf[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean fraction = false;
+        boolean exponent = false;
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (fraction) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !fraction && !exponent) {
+                fraction = true;
+            } else if (b == 'e' || b == 'E' || (exponent && (b == '-' || b == '+'))) {
+                exponent = true;
+            } else {
+                break;
+            }
+            pos++;
+        }
+        int stop = pos;
+        if (digits == 0) {
+            throw error("Expected a number");
+        }
+        if (quoted) {
+            expect('"');
+        }
+        // Exact for up to 15 significant digits: both operands are exact doubles and division rounds correctly
+        if (!exponent && digits <= 15) {
+            double value = mantissa / POWERS_OF_TEN[fractionDigits];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(buf, start, stop - start, StandardCharsets.ISO_8859_1));
+        } catch (NumberFormatException e) {
+            throw error("Malformed number");
+        }
+    }
+
+    /**
+     * Reads the current value as a String. Strings are unescaped, other scalars are returned as written
+     * and null is returned as null.
+     */
+    String readString() {
+        byte b = peek();
+        if (b == '"') {
+            int start = pos + 1;
+            skipString();
+            return decode(start, pos - 1);
+        }
+        if (readNull()) {
+            return null;
+        }
+        if (b == '{' || b == '[') {
+            throw error("Expected a string");
+        }
+        int start = pos;
+        skipValue();
+        return new String(buf, start, pos - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Skips the current value, whatever its type.
+     */
+    void skipValue() {
+        skipWhitespace();
+        byte b = peek();
+        if (b == '"') {
+            skipString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = peek();
+                if (b == '"') {
+                    skipString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+                pos++;
+            } while (depth > 0);
+        } else {
+            int start = pos;
+            while (pos < end && buf[pos] != ',' && buf[pos] != '}' && buf[pos] != ']' && !isWhitespace(buf[pos])) {
+                pos++;
+            }
+            if (pos == start) {
+                throw error("Expected a value");
+            }
+        }
+    }
+
+    /**
+     * Checks that nothing but whitespace follows the object.
+     */
+    void endDocument() {
+        skipWhitespace();
+        if (pos != end) {
+            throw error("Unexpected data after the object");
+        }
+    }
+
+    private String decode(int start, int stop) {
+        boolean escaped = false;
+        for (int i = start; i < stop; i++) {
+            if (buf[i] == '\\') {
+                escaped = true;
+                break;
+            }
+        }
+        if (!escaped) {
+            return new String(buf, start, stop - start, StandardCharsets.UTF_8);
+        }
+
+        StringBuilder value = new StringBuilder(stop - start);
+        int run = start;
+        for (int i = start; i < stop; i++) {
+            if (buf[i] != '\\') {
+                continue;
+            }
+            value.append(new String(buf, run, i - run, StandardCharsets.UTF_8));
+            char c = (char) buf[++i];
+            switch (c) {
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'n': value.append('\n'); break;
+                case 'r': value.append('\r'); break;
+                case 't': value.append('\t'); break;
+                case 'u':
+                    if (i + 4 >= stop) {
+                        throw error("Malformed unicode escape");
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(new String(buf, i + 1, 4, StandardCharsets.ISO_8859_1), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Malformed unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default: value.append(c);
+            }
+            run = i + 1;
+        }
+        value.append(new String(buf, run, stop - run, StandardCharsets.UTF_8));
+        return value.toString();
+    }
+
+    /**
+     * Moves past a string starting at the current quote.
+     */
+    private void skipString() {
+        pos++;
+        while (pos < end) {
+            byte b = buf[pos++];
+            if (b == '\\') {
+                pos++;
+            } else if (b == '"') {
+                return;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private void expect(char c) {
+        skipWhitespace();
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private byte peek() {
+        if (pos >= end) {
+            throw error("Unexpected end of input");
+        }
+        return buf[pos];
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && isWhitespace(buf[pos])) {
+            pos++;
+        }
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at byte " + pos);
+    }
+}
@@ -0,0 +1,336 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JsonWriter writes JSON straight into a growable byte array taken from a pool, encoding UTF-8 and
+ * escaping strings as it goes. Numbers are written digit by digit, so building a payload allocates
+ * nothing beyond the String the caller may ask for at the end. Writers go back to the pool when closed.
+ *
+ *   try (JsonWriter writer = JsonWriter.acquire()) {
+ *       writer.beginObject().field(ID, id).field(NAME, name).endObject();
+ *       writer.send(exchange, 200);
+ *   }
+ *
+ * Field names are encoded once with name(String), which includes the quotes and the colon.
+ */
+class JsonWriter implements AutoCloseable {
+
+    private static final int INITIAL_BYTES = 512;
+    private static final int MAX_POOLED_BYTES = 64 << 10;
+    private static final int MAX_POOLED = 256;
+    private static final ConcurrentLinkedQueue<JsonWriter> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+
+    private byte[] buf = new byte[INITIAL_BYTES];
+    private int count;
+    // Whether the next field of the current object needs a separating comma
+    private boolean comma;
+
+    private JsonWriter() {
+    }
+
+    /**
+     * @return An empty writer, which must be closed to return it to the pool.
+     */
+    static JsonWriter acquire() {
+        JsonWriter writer = pool.poll();
+        if (writer == null) {
+            return new JsonWriter();
+        }
+        pooled.decrementAndGet();
+        return writer;
+    }
+
+    /**
+     * Encodes a field name, with its quotes and colon, for use with the field methods.
+     */
+    static byte[] name(String name) {
+        try (JsonWriter writer = new JsonWriter()) {
+            writer.string(name);
+            writer.append((byte) ':');
+            return Arrays.copyOf(writer.buf, writer.count);
+        }
+    }
+
+    JsonWriter beginObject() {
+        append((byte) '{');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter endObject() {
+        append((byte) '}');
+        comma = true;
+        return this;
+    }
+
+    JsonWriter beginArray() {
+        append((byte) '[');
+        comma = false;
+        return this;
+    }
+
+    JsonWriter endArray() {
+        append((byte) ']');
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Starts the next element of an array, writing the separating comma if it is not the first.
+     */
+    JsonWriter next() {
+        if (comma) {
+            append((byte) ',');
+        }
+        comma = false;
+        return this;
+    }
+
+    /**
+     * Writes the name of a field whose value follows, such as an array or a nested object.
+     */
+    JsonWriter key(byte[] name) {
+        fieldName(name);
+        return this;
+    }
+
+    JsonWriter field(byte[] name, int value) {
+        fieldName(name);
+        number(value);
+        return this;
+    }
+
+    /**
+     * Writes a field whose value is a string, or null.
+     */
+    JsonWriter field(byte[] name, String value) {
+        fieldName(name);
+        if (value == null) {
+            ensure(4);
+            buf[count++] = 'n';
+            buf[count++] = 'u';
+            buf[count++] = 'l';
+            buf[count++] = 'l';
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a number with a fixed number of decimals, rounded half up like String.format does.
+     * @param decimals is between 0 and 9.
+     */
+    JsonWriter field(byte[] name, double value, int decimals) {
+        fieldName(name);
+        long scale = 1;
+        for (int i = 0; i < decimals; i++) {
+            scale *= 10;
+        }
+        long scaled = Math.round(Math.abs(value) * scale);
+        if (value < 0 && scaled != 0) {
+            append((byte) '-');
+        }
+        number(scaled / scale);
+        if (decimals > 0) {
+            append((byte) '.');
+            long fraction = scaled % scale;
+            for (long digit = scale / 10; digit > 0; digit /= 10) {
+                append((byte) ('0' + fraction / digit % 10));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a field whose name is a number, as used by the purchase history (product id to quantity).
+     */
+    JsonWriter field(int name, int value) {
+        if (comma) {
+            append((byte) ',');
+        }
+        append((byte) '"');
+        number(name);
+        append((byte) '"');
+        append((byte) ':');
+        number(value);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * Appends text that is already JSON, such as a payload read back from the cache.
+     */
+    JsonWriter raw(String json) {
+        utf8(json, false);
+        comma = true;
+        return this;
+    }
+
+    /**
+     * @return The number of bytes written so far.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Empties the writer so it can be reused, e.g. after its bytes were written out.
+     */
+    void clear() {
+        count = 0;
+        comma = false;
+    }
+
+    /**
+     * Writes the bytes to a stream.
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buf, 0, count);
+    }
+
+    /**
+     * Sends the bytes as a JSON response with an exact Content-Length and closes the response body.
+     */
+    void send(HttpExchange exchange, int rCode) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(rCode, count);
+        try (OutputStream os = exchange.getResponseBody()) {
+            writeTo(os);
+        }
+    }
+
+    /**
+     * @return The bytes written so far as a String, for storing in the cache.
+     */
+    @Override
+    public String toString() {
+        return new String(buf, 0, count, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Resets the writer and returns it to the pool. Writers that grew large are dropped instead.
+     */
+    @Override
+    public void close() {
+        count = 0;
+        comma = false;
+        if (buf.length <= MAX_POOLED_BYTES) {
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.add(this);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    private void fieldName(byte[] name) {
+        if (comma) {
+            append((byte) ',');
+        }
+        ensure(name.length);
+        System.arraycopy(name, 0, buf, count, name.length);
+        count += name.length;
+        comma = true;
+    }
+
+    private void string(String value) {
+        append((byte) '"');
+        utf8(value, true);
+        append((byte) '"');
+    }
+
+    /**
+     * Encodes a String as UTF-8, escaping quotes, backslashes and control characters if asked to.
+     */
+    private void utf8(String value, boolean escape) {
+        int length = value.length();
+        // Worst case of 6 bytes per char (\\u00XX), so most strings need a single capacity check
+        ensure(length * 6);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                if (escape && (c < 0x20 || c == '"' || c == '\\')) {
+                    escape(c);
+                } else {
+                    buf[count++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buf[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // An unpaired surrogate cannot be encoded, String.getBytes writes '?' too
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void escape(char c) {
+        buf[count++] = '\\';
+        switch (c) {
+            case '"': buf[count++] = '"'; break;
+            case '\\': buf[count++] = '\\'; break;
+            case '\n': buf[count++] = 'n'; break;
+            case '\r': buf[count++] = 'r'; break;
+            case '\t': buf[count++] = 't'; break;
+            case '\b': buf[count++] = 'b'; break;
+            case '\f': buf[count++] = 'f'; break;
+            default:
+                buf[count++] = 'u';
+                buf[count++] = '0';
+                buf[count++] = '0';
+                buf[count++] = HEX[c >> 4];
+                buf[count++] = HEX[c & 0xf];
+        }
+    }
+
+    private void number(long value) {
+        if (value < 0) {
+            append((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                raw("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        ensure(19);
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+    }
+
+    private void append(byte b) {
+        ensure(1);
+        buf[count++] = b;
+    }
+
+    private void ensure(int bytes) {
+        if (count + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes));
+        }
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.json.JSONObject;
+
+/**
+ * Metrics is a small process-wide registry of named counters, gauges and histograms.
+ * Every service exposes the registry as JSON through the /metrics endpoint (see MetricsHandler).
+ */
+class Metrics {
+
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter registered under the given name, creating it on first use.
+     * @param name is the name of the counter.
+     * @return the counter, which is safe to increment from any thread.
+     */
+    static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, k -> new LongAdder());
+    }
+
+    /**
+     * Increments the counter registered under the given name by one.
+     * @param name is the name of the counter.
+     */
+    static void increment(String name) {
+        counter(name).increment();
+    }
+
+    /**
+     * Registers a gauge whose value is read every time the metrics are reported.
+     * @param name is the name of the gauge.
+     * @param gauge supplies the current value of the gauge.
+     */
+    static void gauge(String name, Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Returns the histogram registered under the given name, creating it on first use.
+     * @param name is the name of the histogram.
+     * @return the histogram, which is safe to record into from any thread.
+     */
+    static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, k -> new Histogram());
+    }
+
+    /**
+     * Builds a JSON object containing every counter, gauge and histogram, sorted by name.
+     * @return A JSON string of all metrics.
+     */
+    static String toJson() {
+        Map<String, Object> snapshot = new ConcurrentSkipListMap<>();
+        counters.forEach((name, counter) -> snapshot.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> {
+            try {
+                snapshot.put(name, gauge.get());
+            } catch (Exception e) {
+                // A gauge whose source is shut down is simply left out of the report
+            }
+        });
+        histograms.forEach((name, histogram) -> snapshot.put(name, histogram.snapshot()));
+        return new JSONObject(snapshot).toString();
+    }
+}
@@ -0,0 +1,30 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Handles GET requests to /metrics by returning every registered metric as a JSON object.
+ */
+class MetricsHandler implements HttpHandler {
+
+    /**
+     * Handles the incoming HTTP exchange, returning the metrics for GET requests and 405 otherwise.
+     *
+     * @param exchange The HttpExchange object representing the HTTP request and response.
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        int rCode = "GET".equals(exchange.getRequestMethod()) ? 200 : 405;
+        byte[] responseBytes = (rCode == 200 ? Metrics.toJson() : "{}").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(rCode, responseBytes.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(responseBytes);
+        }
+    }
+}
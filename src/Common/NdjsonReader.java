@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * NdjsonReader splits a stream of newline delimited JSON into lines and hands out a JsonReader over each
+ * one. The stream is read in fixed chunks and each line is copied into one reused buffer, so a body of any
+ * size is read in constant memory. Blank lines are skipped.
+ *
+ *   NdjsonReader lines = new NdjsonReader(exchange.getRequestBody());
+ *   JsonReader line;
+ *   while ((line = lines.next()) != null) {
+ *       if (lines.tooLong()) { ... report lines.lineNumber() ... } else { ... parse line ... }
+ *   }
+ *
+ * Lines are capped with the following system property:
+ *   import.maxLineBytes  the longest line accepted; longer lines are skipped and flagged (default 65536)
+ */
+class NdjsonReader {
+
+    private static final int CHUNK_BYTES = 64 << 10;
+    private static final int maxLineBytes = Integer.getInteger("import.maxLineBytes", 64 << 10);
+
+    private final InputStream in;
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private int chunkPos;
+    private int chunkEnd;
+    private byte[] line = new byte[1024];
+    private int lineLength;
+    private boolean tooLong;
+    private int lineNumber;
+
+    NdjsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next non blank line.
+     * @return A reader over the line, valid until the next call, or null at the end of the stream.
+     * @throws IOException If reading the stream fails.
+     */
+    JsonReader next() throws IOException {
+        while (true) {
+            lineLength = 0;
+            tooLong = false;
+            boolean ended = readLine();
+            if (ended && lineLength == 0 && !tooLong) {
+                return null;
+            }
+            lineNumber++;
+            if (tooLong || !isBlank()) {
+                return new JsonReader(line, lineLength);
+            }
+        }
+    }
+
+    /**
+     * @return true if the current line was longer than the limit; its reader is then empty.
+     */
+    boolean tooLong() {
+        return tooLong;
+    }
+
+    /**
+     * @return The number of the current line, counting from 1 and including blank lines.
+     */
+    int lineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Copies the stream up to the next newline into the line buffer.
+     * @return true if the stream ended before a newline.
+     */
+    private boolean readLine() throws IOException {
+        while (true) {
+            if (chunkPos == chunkEnd) {
+                chunkEnd = in.read(chunk, 0, chunk.length);
+                chunkPos = 0;
+                if (chunkEnd <= 0) {
+                    chunkEnd = 0;
+                    return true;
+                }
+            }
+            int newline = chunkPos;
+            while (newline < chunkEnd && chunk[newline] != '\n') {
+                newline++;
+            }
+            append(chunkPos, newline - chunkPos);
+            chunkPos = newline;
+            if (newline < chunkEnd) {
+                chunkPos++;
+                return false;
+            }
+        }
+    }
+
+    private void append(int from, int length) {
+        if (tooLong) {
+            return;
+        }
+        if (lineLength + length > maxLineBytes) {
+            tooLong = true;
+            lineLength = 0;
+            return;
+        }
+        if (lineLength + length > line.length) {
+            line = Arrays.copyOf(line, Math.min(maxLineBytes, Math.max(line.length * 2, lineLength + length)));
+        }
+        System.arraycopy(chunk, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private boolean isBlank() {
+        for (int i = 0; i < lineLength; i++) {
+            byte b = line[i];
+            if (b != ' ' && b != '\t' && b != '\r') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,227 @@
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+
+/**
+ * NearCache is a small in-process (L1) cache that sits in front of Redis.
+ * Entries expire after a per-entry time to live, and when the cache is full the least frequently used
+ * entry out of a small sample is evicted. Access frequencies are halved periodically so that keys which
+ * were hot in the past do not stay in the cache forever.
+ *
+ * Every service subscribes to the same Redis channel, and a key invalidated by any instance is dropped
+ * from the L1 cache of every other instance. If the subscription is lost the whole cache is cleared,
+ * because invalidations may have been missed in the meantime.
+ *
+ * The cache can be tuned with the following system properties:
+ *   nearcache.enabled     whether the L1 cache is used at all (default true)
+ *   nearcache.maxEntries  maximum number of cached keys (default 10000)
+ *   nearcache.ttlMillis   default time to live of an entry (default 2000)
+ */
+class NearCache {
+
+    static final String CHANNEL = "cache-invalidation";
+
+    private static final int SAMPLE_SIZE = 8;
+    private static final int MAX_FREQUENCY = 15;
+
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty("nearcache.enabled", "true"));
+    private static final int maxEntries = Integer.getInteger("nearcache.maxEntries", 10000);
+    private static final long defaultTtlMillis = Long.getLong("nearcache.ttlMillis", 2000L);
+
+    private static final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private static final AtomicLong accesses = new AtomicLong();
+    private static final Object evictionLock = new Object();
+    private static Iterator<Map.Entry<String, Entry>> clockHand = entries.entrySet().iterator();
+
+    private static volatile Thread subscriber;
+    private static volatile JedisPubSub subscription;
+
+    private NearCache() {
+    }
+
+    /**
+     * A cached value together with its expiry time and approximate access frequency.
+     */
+    private static final class Entry {
+        final String value;
+        final long expiresAt;
+        volatile int frequency = 1;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Registers the metrics of the cache and starts listening for invalidations from other instances.
+     * @param host is the host name or IP address of the Redis server.
+     * @param port is the port number of the Redis server.
+     */
+    static synchronized void initialize(String host, int port) {
+        if (!enabled || subscriber != null) {
+            return;
+        }
+        Metrics.gauge("nearcache.size", entries::size);
+
+        subscriber = new Thread(() -> listen(host, port), "near-cache-invalidation");
+        subscriber.setDaemon(true);
+        subscriber.start();
+    }
+
+    /**
+     * Subscribes to the invalidation channel, reconnecting until the service shuts down.
+     */
+    private static void listen(String host, int port) {
+        while (subscriber != null) {
+            try (Jedis jedis = new Jedis(host, port)) {
+                subscription = new JedisPubSub() {
+                    @Override
+                    public void onMessage(String channel, String key) {
+                        if (entries.remove(key) != null) {
+                            Metrics.increment("nearcache.remoteInvalidations");
+                        }
+                    }
+                };
+                jedis.subscribe(subscription, CHANNEL);
+            } catch (Exception e) {
+                System.out.println("Lost near cache invalidation channel: " + e.getMessage());
+            }
+            // Anything could have changed while we were not subscribed
+            entries.clear();
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the cached value for a key, or null if it is not cached or has expired.
+     * @param key is the cache key, e.g. "product:1".
+     * @return The cached value or null.
+     */
+    static String get(String key) {
+        if (!enabled) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            Metrics.increment("nearcache.misses");
+            return null;
+        }
+        if (entry.expiresAt <= System.currentTimeMillis()) {
+            entries.remove(key, entry);
+            Metrics.increment("nearcache.expirations");
+            Metrics.increment("nearcache.misses");
+            return null;
+        }
+        if (entry.frequency < MAX_FREQUENCY) {
+            entry.frequency++;
+        }
+        if (accesses.incrementAndGet() % (10L * maxEntries) == 0) {
+            age();
+        }
+        Metrics.increment("nearcache.hits");
+        return entry.value;
+    }
+
+    /**
+     * Caches a value for the default time to live.
+     * @param key is the cache key.
+     * @param value is the value to cache.
+     */
+    static void put(String key, String value) {
+        put(key, value, defaultTtlMillis);
+    }
+
+    /**
+     * Caches a value for the given time to live, evicting a rarely used entry if the cache is full.
+     * @param key is the cache key.
+     * @param value is the value to cache.
+     * @param ttlMillis is how long the entry may be served, in milliseconds.
+     */
+    static void put(String key, String value, long ttlMillis) {
+        if (!enabled || value == null) {
+            return;
+        }
+        entries.put(key, new Entry(value, System.currentTimeMillis() + ttlMillis));
+        if (entries.size() > maxEntries) {
+            evict(key);
+        }
+    }
+
+    /**
+     * Drops a key from the L1 cache of this instance only.
+     * @param key is the cache key.
+     */
+    static void invalidate(String key) {
+        if (enabled) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Evicts entries until the cache is back under its size limit. Each round looks at a few entries
+     * after the clock hand and removes an expired one, or else the least frequently used one.
+     */
+    private static void evict(String justAdded) {
+        synchronized (evictionLock) {
+            while (entries.size() > maxEntries) {
+                long now = System.currentTimeMillis();
+                Map.Entry<String, Entry> victim = null;
+                for (int i = 0; i < SAMPLE_SIZE; i++) {
+                    if (!clockHand.hasNext()) {
+                        clockHand = entries.entrySet().iterator();
+                        if (!clockHand.hasNext()) {
+                            return;
+                        }
+                    }
+                    Map.Entry<String, Entry> candidate = clockHand.next();
+                    if (candidate.getKey().equals(justAdded)) {
+                        continue;
+                    }
+                    if (candidate.getValue().expiresAt <= now) {
+                        victim = candidate;
+                        break;
+                    }
+                    if (victim == null || candidate.getValue().frequency < victim.getValue().frequency) {
+                        victim = candidate;
+                    }
+                }
+                if (victim != null && entries.remove(victim.getKey(), victim.getValue())) {
+                    Metrics.increment("nearcache.evictions");
+                }
+            }
+        }
+    }
+
+    /**
+     * Halves every access frequency so that old popularity decays.
+     */
+    private static void age() {
+        for (Entry entry : entries.values()) {
+            entry.frequency = entry.frequency >> 1;
+        }
+    }
+
+    /**
+     * Stops listening for invalidations. Called from the shutdown hooks of the services.
+     */
+    static synchronized void shutdown() {
+        Thread listener = subscriber;
+        subscriber = null;
+        if (subscription != null && subscription.isSubscribed()) {
+            subscription.unsubscribe();
+        }
+        if (listener != null) {
+            listener.interrupt();
+        }
+        entries.clear();
+    }
+}
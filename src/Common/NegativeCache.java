@@ -0,0 +1,67 @@
+import java.util.List;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * NegativeCache holds the settings and the marker value for tombstones: short lived cache entries
+ * recording that a user or product id does not exist (or was deleted), so repeated lookups of a bad id
+ * are answered from the cache instead of Postgres.
+ *
+ * A tombstone is stored under the same key as the payload it stands in for. Writes that create a row
+ * replace or invalidate that key, which removes the tombstone everywhere. Bulk imports only clear the
+ * tombstones among their new keys, with one script per batch (see clear).
+ *
+ * The cache can be tuned with the following system properties:
+ *   negativecache.enabled    whether tombstones are stored at all (default true)
+ *   negativecache.ttlMillis  how long a tombstone lives, in Redis and in the L1 cache (default 30000)
+ */
+class NegativeCache {
+
+    /**
+     * The stored value of a tombstone. It is not valid JSON, so it can never be mistaken for a payload.
+     */
+    static final String TOMBSTONE = "<missing>";
+
+    static final boolean enabled = Boolean.parseBoolean(System.getProperty("negativecache.enabled", "true"));
+    static final long ttlMillis = Long.getLong("negativecache.ttlMillis", 30000L);
+
+    // KEYS: the keys of new rows. Returns how many of them held a tombstone.
+    private static final String CLEAR =
+            "local cleared = 0 " +
+            "for i = 1, #KEYS do " +
+            "  if redis.call('GET', KEYS[i]) == '" + TOMBSTONE + "' then " +
+            "    redis.call('DEL', KEYS[i]) " +
+            "    redis.call('PUBLISH', '" + NearCache.CHANNEL + "', KEYS[i]) " +
+            "    cleared = cleared + 1 " +
+            "  end " +
+            "end " +
+            "return cleared";
+
+    private NegativeCache() {
+    }
+
+    /**
+     * Checks whether a value read from the cache is a tombstone, counting it as a negative hit if it is.
+     * @param cached is the value read from the cache, possibly null.
+     * @return true if the key is known not to exist.
+     */
+    static boolean hit(String cached) {
+        if (TOMBSTONE.equals(cached)) {
+            Metrics.increment("negativecache.hits");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queues the removal of the tombstones among the keys of newly created rows on a pipeline. Only the keys
+     * that held one are announced to the other instances, so a batch of new rows costs one script instead of
+     * an invalidation per row.
+     * @param keys are the cache keys of the new rows.
+     * @return The response, the number of tombstones removed once the pipeline is synced.
+     */
+    static Response<Object> clear(Pipeline pipeline, List<String> keys) {
+        return pipeline.eval(CLEAR, keys, List.of());
+    }
+}
@@ -0,0 +1,379 @@
+import com.sun.net.httpserver.Headers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * NioConnection is one client connection of the NioHttpServer.
+ *
+ * The read side (parsing, the queue of pipelined requests, starting the next request) is only touched by
+ * the event loop thread. The write side may be fed from any thread: handler threads append response
+ * buffers to a queue that the event loop writes out. A handler that produces output faster than the
+ * client reads it is blocked once too many bytes are queued, using a lock rather than a monitor so that
+ * virtual threads are not pinned while they wait.
+ */
+class NioConnection {
+
+    private static final int MAX_PIPELINED = 64;
+    private static final long HIGH_WATER_BYTES = 1 << 20;
+    private static final long LOW_WATER_BYTES = 256 << 10;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    SelectionKey key;
+    final InetSocketAddress remoteAddress;
+    final InetSocketAddress localAddress;
+
+    private final NioHttpServer server;
+    private final NioHttpServer.EventLoop loop;
+    private final SocketChannel channel;
+    private ByteBuffer in;
+
+    // Read side, event loop thread only
+    private final ArrayDeque<NioExchange> requests = new ArrayDeque<>();
+    private NioExchange partial;
+    private byte[] body;
+    private int bodyFilled;
+    private boolean busy;
+    private boolean closeAfterWrite;
+    private int pendingError;
+    private long lastActivity = System.currentTimeMillis();
+
+    // Write side, any thread
+    private final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = lock.newCondition();
+    private long pendingBytes;
+    private volatile boolean closed;
+
+    NioConnection(NioHttpServer server, NioHttpServer.EventLoop loop, SocketChannel channel) throws IOException {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        this.in = server.buffers.acquire();
+    }
+
+    /**
+     * Reads what the client sent, parses every complete request and starts the next one if idle.
+     */
+    void onReadable() {
+        try {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+
+        in.flip();
+        parse();
+        if (pendingError != 0) {
+            in.clear();
+        } else {
+            in.compact();
+            if (partial == null && !in.hasRemaining()) {
+                // The request line and headers do not fit in the read buffer
+                fail(431);
+                in.clear();
+            }
+        }
+        if (requests.size() >= MAX_PIPELINED || pendingError != 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        startNext();
+    }
+
+    /**
+     * Parses as many complete requests as the read buffer holds.
+     */
+    private void parse() {
+        while (pendingError == 0) {
+            if (partial == null) {
+                int end = findHeaderEnd();
+                if (end < 0) {
+                    return;
+                }
+                byte[] head = new byte[end - in.position()];
+                in.get(head);
+                int status = parseHead(new String(head, StandardCharsets.ISO_8859_1));
+                if (status != 0) {
+                    fail(status);
+                    return;
+                }
+            }
+            int n = Math.min(in.remaining(), body.length - bodyFilled);
+            in.get(body, bodyFilled, n);
+            bodyFilled += n;
+            if (bodyFilled < body.length) {
+                return;
+            }
+            partial.setBody(body);
+            requests.add(partial);
+            partial = null;
+            body = null;
+        }
+    }
+
+    /**
+     * @return The buffer index just past the blank line ending the headers, or -1 if it has not arrived yet.
+     */
+    private int findHeaderEnd() {
+        for (int i = in.position(); i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                return i + 4;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the request line and headers into a new partial exchange.
+     * @return 0 on success, otherwise the HTTP status code to fail the connection with.
+     */
+    private int parseHead(String head) {
+        String[] lines = head.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            return 400;
+        }
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (URISyntaxException e) {
+            return 400;
+        }
+
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                return 400;
+            }
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+
+        String transferEncoding = headers.getFirst("Transfer-Encoding");
+        if (transferEncoding != null && !"identity".equalsIgnoreCase(transferEncoding)) {
+            return 411;
+        }
+        int contentLength;
+        try {
+            String value = headers.getFirst("Content-Length");
+            contentLength = value == null ? 0 : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return 400;
+        }
+        if (contentLength < 0) {
+            return 400;
+        }
+        if (contentLength > server.maxRequestBytes) {
+            return 413;
+        }
+
+        String connection = headers.getFirst("Connection");
+        boolean keepAlive = "HTTP/1.1".equals(requestLine[2])
+                ? !"close".equalsIgnoreCase(connection)
+                : "keep-alive".equalsIgnoreCase(connection);
+
+        partial = new NioExchange(this, requestLine[0], uri, requestLine[2], headers, keepAlive,
+                server.route(uri.getPath() == null ? "/" : uri.getPath()));
+        body = new byte[contentLength];
+        bodyFilled = 0;
+        // Only answer "Expect: 100-continue" when it cannot end up in the middle of an earlier response
+        if (contentLength > in.remaining() && !busy && requests.isEmpty()
+                && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+            try {
+                write(ByteBuffer.wrap(CONTINUE));
+            } catch (IOException e) {
+                // The connection is closing anyway
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Stops reading and answers with an error once the requests before it have been answered.
+     */
+    private void fail(int status) {
+        pendingError = status;
+        partial = null;
+        body = null;
+    }
+
+    /**
+     * Starts the next pipelined request if no request of this connection is running.
+     */
+    private void startNext() {
+        if (busy || closed) {
+            return;
+        }
+        NioExchange next = requests.poll();
+        if (next == null) {
+            if (pendingError != 0) {
+                busy = true;
+                NioExchange.sendError(this, pendingError);
+            }
+            return;
+        }
+        if (requests.size() < MAX_PIPELINED && pendingError == 0 && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+        busy = true;
+        loop.busy.incrementAndGet();
+        server.dispatch(next);
+    }
+
+    /**
+     * Called by the handler thread once the response of an exchange has been fully queued.
+     * @param keepAlive is whether the connection may serve another request.
+     */
+    void responseComplete(boolean keepAlive) {
+        loop.execute(() -> {
+            busy = false;
+            loop.busy.decrementAndGet();
+            if (!keepAlive) {
+                closeAfterWrite = true;
+                requests.clear();
+                flush();
+            } else {
+                lastActivity = System.currentTimeMillis();
+                startNext();
+            }
+        });
+    }
+
+    /**
+     * Called after the error response of a failed connection has been queued.
+     */
+    void errorSent() {
+        loop.execute(() -> {
+            closeAfterWrite = true;
+            flush();
+        });
+    }
+
+    /**
+     * Queues response bytes to be written by the event loop, blocking while too many bytes are queued.
+     * @param buffer is the data to send, which must not be modified afterwards.
+     * @throws IOException If the connection has been closed.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        boolean onLoop = Thread.currentThread() == loop.thread;
+        lock.lock();
+        try {
+            // The event loop itself must never wait for its own writes
+            while (!onLoop && pendingBytes > HIGH_WATER_BYTES && !closed) {
+                drained.await();
+            }
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            pendingBytes += buffer.remaining();
+            out.add(buffer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the client");
+        } finally {
+            lock.unlock();
+        }
+        loop.execute(this::flush);
+    }
+
+    void onWritable() {
+        flush();
+    }
+
+    /**
+     * Writes queued buffers until the socket would block, then waits for it to become writable again.
+     * Runs on the event loop thread.
+     */
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            ByteBuffer buffer;
+            while ((buffer = out.peek()) != null) {
+                int written = channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    account(written);
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                out.poll();
+                account(written);
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            if (closeAfterWrite) {
+                close();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void account(int written) {
+        lock.lock();
+        try {
+            pendingBytes -= written;
+            if (pendingBytes <= LOW_WATER_BYTES) {
+                drained.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the connection if it has been idle for too long. Runs on the event loop thread.
+     */
+    void closeIfIdle(long now, long idleTimeoutMillis) {
+        if (!busy && requests.isEmpty() && out.isEmpty() && now - lastActivity > idleTimeoutMillis) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the socket and wakes any handler blocked on a write. Runs on the event loop thread.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        lock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to clean up
+        }
+        server.buffers.release(in);
+        in = null;
+        loop.removed(this);
+    }
+}
@@ -0,0 +1,363 @@
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioExchange is one request/response pair of the NioHttpServer, presented to handlers as an HttpExchange.
+ *
+ * The request body has been read completely before the handler runs. The response follows the
+ * HttpExchange contract: a length above 0 sends a Content-Length, 0 streams the body with chunked
+ * encoding, and -1 sends no body. Small responses go out together with their headers in one buffer.
+ */
+class NioExchange extends HttpExchange {
+
+    private static final int CHUNK_BYTES = 8192;
+
+    private final NioConnection connection;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final NioHttpServer.NioContext context;
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final AtomicBoolean completed = new AtomicBoolean();
+    private final ResponseStream responseStream = new ResponseStream();
+    private boolean keepAlive;
+    private int responseCode = -1;
+    private InputStream requestBody = InputStream.nullInputStream();
+    private OutputStream responseBody = responseStream;
+
+    NioExchange(NioConnection connection, String method, URI uri, String protocol, Headers requestHeaders,
+                boolean keepAlive, NioHttpServer.NioContext context) {
+        this.connection = connection;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.keepAlive = keepAlive;
+        this.context = context;
+    }
+
+    void setBody(byte[] body) {
+        requestBody = new ByteArrayInputStream(body);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public NioHttpServer.NioContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("Response headers already sent");
+        }
+        responseCode = rCode;
+
+        boolean noBody = "HEAD".equals(method) || rCode == 204 || rCode == 304 || rCode < 200;
+        boolean chunked = false;
+        long length = 0;
+        if (noBody || responseLength == -1) {
+            if (rCode != 204 && rCode != 304 && rCode >= 200) {
+                responseHeaders.set("Content-Length", "0");
+            }
+        } else if (responseLength == 0) {
+            responseHeaders.set("Transfer-Encoding", "chunked");
+            chunked = true;
+        } else {
+            responseHeaders.set("Content-Length", Long.toString(responseLength));
+            length = responseLength;
+        }
+        responseHeaders.set("Connection", keepAlive ? "keep-alive" : "close");
+
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(rCode).append(' ').append(reasonPhrase(rCode)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            for (String value : header.getValue()) {
+                head.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        head.append("\r\n");
+        responseStream.begin(head.toString().getBytes(StandardCharsets.ISO_8859_1), chunked, length);
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            requestBody = i;
+        }
+        if (o != null) {
+            responseBody = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    /**
+     * Ends the exchange. If no response headers were sent the connection is closed, like the JDK server does.
+     */
+    @Override
+    public void close() {
+        try {
+            requestBody.close();
+            if (responseBody != responseStream) {
+                responseBody.close();
+            }
+            responseStream.close();
+        } catch (IOException e) {
+            // The client went away, the connection is closed below
+            keepAlive = false;
+        }
+        complete();
+    }
+
+    /**
+     * Called after the handler returns, so a handler that never closes its exchange cannot stall the connection.
+     */
+    void finish() {
+        close();
+    }
+
+    /**
+     * Used when the executor refuses the request: answers 503 and closes the connection.
+     */
+    void rejectAndClose() {
+        keepAlive = false;
+        try {
+            sendResponseHeaders(503, -1);
+        } catch (IOException e) {
+            // The connection is closed below
+        }
+        close();
+    }
+
+    private void complete() {
+        if (completed.compareAndSet(false, true)) {
+            connection.responseComplete(keepAlive && responseCode != -1);
+        }
+    }
+
+    /**
+     * Queues a bare error response on a connection whose request could not be parsed, then closes it.
+     */
+    static void sendError(NioConnection connection, int rCode) {
+        String response = "HTTP/1.1 " + rCode + " " + reasonPhrase(rCode) + "\r\n"
+                + "Content-Type: application/json; charset=UTF-8\r\n"
+                + "Content-Length: 2\r\n"
+                + "Connection: close\r\n\r\n{}";
+        try {
+            connection.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1)));
+        } catch (IOException e) {
+            // The connection is already closed
+        }
+        connection.errorSent();
+    }
+
+    private static String reasonPhrase(int rCode) {
+        switch (rCode) {
+            case 200: return "OK";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 409: return "Conflict";
+            case 411: return "Length Required";
+            case 413: return "Payload Too Large";
+            case 431: return "Request Header Fields Too Large";
+            case 500: return "Internal Server Error";
+            case 503: return "Service Unavailable";
+            default: return "";
+        }
+    }
+
+    /**
+     * The response body stream. It collects writes in a small buffer and hands full buffers to the
+     * connection, framing them as chunks when the length was not known up front.
+     */
+    private final class ResponseStream extends OutputStream {
+
+        private final byte[] buffer = new byte[CHUNK_BYTES];
+        private int count;
+        private byte[] head;
+        private boolean started;
+        private boolean chunked;
+        private long remaining;
+        private boolean closed;
+
+        void begin(byte[] head, boolean chunked, long length) {
+            this.head = head;
+            this.chunked = chunked;
+            this.remaining = length;
+            this.started = true;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureWritable(1);
+            if (count == buffer.length) {
+                send(false);
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureWritable(len);
+            while (len > 0) {
+                if (count == buffer.length) {
+                    send(false);
+                }
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void ensureWritable(int len) throws IOException {
+            if (!started || closed) {
+                throw new IOException(closed ? "Stream is closed" : "Response headers not sent yet");
+            }
+            if (!chunked) {
+                if (len > remaining) {
+                    throw new IOException("Too many bytes for the announced response length");
+                }
+                remaining -= len;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (started && !closed) {
+                send(false);
+            }
+        }
+
+        /**
+         * Hands the headers (if not sent yet) and the buffered body bytes to the connection.
+         */
+        private void send(boolean last) throws IOException {
+            int headLength = head == null ? 0 : head.length;
+            String chunkSize = chunked && count > 0 ? Integer.toHexString(count) + "\r\n" : "";
+            int size = headLength + chunkSize.length() + count + (chunked && count > 0 ? 2 : 0) + (chunked && last ? 5 : 0);
+            if (size == 0) {
+                return;
+            }
+            ByteBuffer data = ByteBuffer.allocate(size);
+            if (head != null) {
+                data.put(head);
+                head = null;
+            }
+            data.put(chunkSize.getBytes(StandardCharsets.ISO_8859_1));
+            data.put(buffer, 0, count);
+            if (chunked && count > 0) {
+                data.put((byte) '\r').put((byte) '\n');
+            }
+            if (chunked && last) {
+                data.put("0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            }
+            count = 0;
+            data.flip();
+            connection.write(data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!started) {
+                return;
+            }
+            if (!chunked && remaining > 0) {
+                // The handler wrote less than it announced, so the client cannot find the end of the response
+                keepAlive = false;
+            }
+            send(true);
+        }
+    }
+}
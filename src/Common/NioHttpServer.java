@@ -0,0 +1,430 @@
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NioHttpServer is a selector-based HTTP/1.1 server that can be used in place of the JDK HttpServer.
+ * It extends HttpServer and hands the existing HttpHandlers a NioExchange, so handlers work unchanged.
+ *
+ * Acceptor threads accept connections and hand them round-robin to a fixed set of event loops, each of
+ * which owns one Selector and reads requests into pooled direct buffers. Connections are persistent
+ * (keep-alive) and requests may be pipelined: they are parsed as they arrive, run one at a time per
+ * connection on the executor, and answered in order.
+ *
+ * The server can be tuned with the following system properties:
+ *   server.nio.eventLoops        number of selector threads (default number of processors)
+ *   server.nio.acceptors         number of accepting threads, above 1 needs SO_REUSEPORT (default 1)
+ *   server.nio.bufferBytes       size of the pooled read buffer of a connection (default 16384)
+ *   server.nio.maxRequestBytes   largest request body accepted, by either engine (default 1048576)
+ *   server.nio.idleTimeoutMillis idle keep-alive connections are closed after this long (default 60000)
+ *
+ * Filters and authenticators registered on a context are not applied.
+ */
+class NioHttpServer extends HttpServer {
+
+    final int maxRequestBytes = RequestBody.MAX_BYTES;
+    final BufferPool buffers = new BufferPool(Integer.getInteger("server.nio.bufferBytes", 16384), 1024);
+    private final long idleTimeoutMillis = Long.getLong("server.nio.idleTimeoutMillis", 60000L);
+    private final int eventLoopCount = Integer.getInteger("server.nio.eventLoops", Runtime.getRuntime().availableProcessors());
+    private final int acceptorCount = Integer.getInteger("server.nio.acceptors", 1);
+
+    private final List<NioContext> contexts = new CopyOnWriteArrayList<>();
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
+    private final List<Thread> acceptors = new ArrayList<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private InetSocketAddress address;
+    private Executor executor;
+    private EventLoop[] loops;
+    private volatile boolean running;
+
+    /**
+     * Creates a server bound to the given address.
+     * @param address is the address and port to listen on.
+     * @throws IOException If the port cannot be bound.
+     */
+    NioHttpServer(InetSocketAddress address) throws IOException {
+        bind(address, 0);
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (!serverChannels.isEmpty()) {
+            throw new IllegalStateException("Server already bound");
+        }
+        for (int i = 0; i < Math.max(1, acceptorCount); i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            if (acceptorCount > 1) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    channel.close();
+                    System.out.println("SO_REUSEPORT is not supported, using a single acceptor");
+                    break;
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(address, backlog);
+            serverChannels.add(channel);
+        }
+        this.address = (InetSocketAddress) serverChannels.get(0).getLocalAddress();
+    }
+
+    @Override
+    public void start() {
+        if (serverChannels.isEmpty() || running) {
+            throw new IllegalStateException("Server is not bound or already started");
+        }
+        running = true;
+        loops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        for (int i = 0; i < serverChannels.size(); i++) {
+            ServerSocketChannel channel = serverChannels.get(i);
+            Thread acceptor = new Thread(() -> accept(channel));
+            acceptor.setName("http-acceptor-" + i);
+            acceptor.start();
+            acceptors.add(acceptor);
+        }
+        Metrics.gauge("server.nio.bufferPool.idle", buffers::idle);
+    }
+
+    /**
+     * Accepts connections on one server channel and spreads them over the event loops.
+     */
+    private void accept(ServerSocketChannel serverChannel) {
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)].register(channel);
+            } catch (IOException e) {
+                if (running) {
+                    System.out.println("Failed to accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Stops accepting connections, gives requests in progress up to delay seconds to finish,
+     * then closes every connection.
+     * @param delay is the maximum number of seconds to wait.
+     */
+    @Override
+    public void stop(int delay) {
+        running = false;
+        for (ServerSocketChannel channel : serverChannels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+        long deadline = System.currentTimeMillis() + delay * 1000L;
+        while (loops != null && System.currentTimeMillis() < deadline && busyConnections() > 0) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (loops != null) {
+            for (EventLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    private int busyConnections() {
+        int busy = 0;
+        for (EventLoop loop : loops) {
+            busy += loop.busy.get();
+        }
+        return busy;
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        NioContext context = createContext(path);
+        context.setHandler(handler);
+        return context;
+    }
+
+    @Override
+    public NioContext createContext(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Invalid context path: " + path);
+        }
+        for (NioContext context : contexts) {
+            if (context.path.equals(path)) {
+                throw new IllegalArgumentException("Context already exists: " + path);
+            }
+        }
+        NioContext context = new NioContext(path);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(context -> context.path.equals(path))) {
+            throw new IllegalArgumentException("No context for " + path);
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Finds the context with the longest path that prefixes the request path, like the JDK server.
+     * @param path is the path of the request URI.
+     * @return The matching context, or null if there is none.
+     */
+    NioContext route(String path) {
+        NioContext best = null;
+        for (NioContext context : contexts) {
+            if (path.startsWith(context.path) && (best == null || context.path.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Runs the handler of an exchange on the executor, or on the calling thread if there is none.
+     * @param exchange is a fully read request.
+     */
+    void dispatch(NioExchange exchange) {
+        Runnable task = () -> {
+            try {
+                NioContext context = exchange.getHttpContext();
+                if (context == null || context.handler == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    context.handler.handle(exchange);
+                }
+            } catch (Throwable t) {
+                System.out.println("Unhandled error in HTTP handler: " + t);
+            } finally {
+                exchange.finish();
+            }
+        };
+        if (executor == null) {
+            task.run();
+        } else {
+            try {
+                executor.execute(task);
+            } catch (RuntimeException e) {
+                // The executor is shutting down or saturated
+                exchange.rejectAndClose();
+            }
+        }
+    }
+
+    /**
+     * One selector thread. Only this thread touches the selection keys and the read side of its connections,
+     * other threads talk to it through execute().
+     */
+    final class EventLoop implements Runnable {
+
+        final Thread thread;
+        final AtomicInteger busy = new AtomicInteger();
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+        private volatile boolean open = true;
+
+        EventLoop(int index) {
+            try {
+                selector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to open selector", e);
+            }
+            Metrics.gauge("server.nio.loop" + index + ".connections", () -> connections.size());
+            thread = new Thread(this, "http-event-loop-" + index);
+            thread.start();
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            if (Thread.currentThread() == thread) {
+                task.run();
+            } else {
+                tasks.add(task);
+                selector.wakeup();
+            }
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    NioConnection connection = new NioConnection(NioHttpServer.this, this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connections.add(connection);
+                    Metrics.increment("server.nio.connectionsAccepted");
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                        // Nothing left to clean up
+                    }
+                }
+            });
+        }
+
+        void removed(NioConnection connection) {
+            connections.remove(connection);
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (open) {
+                try {
+                    selector.select(1000);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= 1000) {
+                        lastSweep = now;
+                        for (NioConnection connection : new ArrayList<>(connections)) {
+                            connection.closeIfIdle(now, idleTimeoutMillis);
+                        }
+                    }
+                } catch (Exception e) {
+                    System.out.println("Error in HTTP event loop: " + e);
+                }
+            }
+            for (NioConnection connection : new ArrayList<>(connections)) {
+                connection.close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+
+        void shutdown() {
+            open = false;
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * A context of the NIO server: a path prefix and the handler that serves it.
+     */
+    final class NioContext extends HttpContext {
+
+        final String path;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private Authenticator authenticator;
+
+        NioContext(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            Authenticator previous = this.authenticator;
+            this.authenticator = authenticator;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
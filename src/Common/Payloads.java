@@ -0,0 +1,150 @@
+import java.util.Map;
+
+/**
+ * Payloads builds the JSON bodies the services send and cache for users, products and purchase
+ * histories. Every service that hands out one of these payloads uses the same writer here, so the
+ * cached and the freshly built forms of a payload are byte for byte the same.
+ */
+class Payloads {
+
+    private static final byte[] ID = JsonWriter.name("id");
+    private static final byte[] USERNAME = JsonWriter.name("username");
+    private static final byte[] EMAIL = JsonWriter.name("email");
+    private static final byte[] PASSWORD = JsonWriter.name("password");
+    private static final byte[] NAME = JsonWriter.name("name");
+    private static final byte[] DESCRIPTION = JsonWriter.name("description");
+    private static final byte[] PRICE = JsonWriter.name("price");
+    private static final byte[] QUANTITY = JsonWriter.name("quantity");
+    private static final byte[] STATUS = JsonWriter.name("status");
+    private static final byte[] USER_ID = JsonWriter.name("user_id");
+    private static final byte[] PRODUCT_ID = JsonWriter.name("product_id");
+    private static final byte[] CREATED_AT = JsonWriter.name("created_at");
+    private static final byte[] ORDERS = JsonWriter.name("orders");
+    private static final byte[] NEXT = JsonWriter.name("next");
+
+    private Payloads() {
+    }
+
+    /**
+     * @param password is the already hashed password.
+     */
+    static void user(JsonWriter writer, int id, String username, String email, String password) {
+        writer.beginObject()
+                .field(ID, id)
+                .field(USERNAME, username)
+                .field(EMAIL, email)
+                .field(PASSWORD, password)
+                .endObject();
+    }
+
+    /**
+     * The price is written with two decimals.
+     */
+    static void product(JsonWriter writer, int id, String name, String description, float price, int quantity) {
+        writer.beginObject()
+                .field(ID, id)
+                .field(NAME, name)
+                .field(DESCRIPTION, description)
+                .field(PRICE, price, 2)
+                .field(QUANTITY, quantity)
+                .endObject();
+    }
+
+    static void order(JsonWriter writer, int id, int userId, int productId, int quantity) {
+        writer.beginObject()
+                .field(ID, id)
+                .field(USER_ID, userId)
+                .field(PRODUCT_ID, productId)
+                .field(QUANTITY, quantity)
+                .endObject();
+    }
+
+    /**
+     * Starts a page of a user's order history; each order follows as an orderEntry.
+     */
+    static void beginOrderPage(JsonWriter writer) {
+        writer.beginObject()
+                .key(ORDERS)
+                .beginArray();
+    }
+
+    /**
+     * @param createdAt is the time the order was placed in ISO-8601, or null if it is not known.
+     */
+    static void orderEntry(JsonWriter writer, int id, int productId, int quantity, String createdAt) {
+        writer.next()
+                .beginObject()
+                .field(ID, id)
+                .field(PRODUCT_ID, productId)
+                .field(QUANTITY, quantity)
+                .field(CREATED_AT, createdAt)
+                .endObject();
+    }
+
+    /**
+     * @param next is the cursor of the next page (the last order id of this one), or null on the last page.
+     */
+    static void endOrderPage(JsonWriter writer, Integer next) {
+        writer.endArray();
+        if (next == null) {
+            writer.field(NEXT, (String) null);
+        } else {
+            writer.field(NEXT, next);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * @param purchases maps each product id to the total quantity bought.
+     */
+    static void purchases(JsonWriter writer, Map<Integer, Integer> purchases) {
+        writer.beginObject();
+        for (Map.Entry<Integer, Integer> purchase : purchases.entrySet()) {
+            writer.field(purchase.getKey(), purchase.getValue());
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Writes the answer to a batch read: an array with one element per requested id, in request order.
+     * Found ids get their payload; the others get {"id": <id>, "status": "not found"}, or "unavailable" if
+     * the database could not be asked.
+     * @param payloads holds the payload of each id, "" if it does not exist, or null if it could not be read.
+     */
+    static void batch(JsonWriter writer, int[] ids, String[] payloads) {
+        writer.beginArray();
+        for (int i = 0; i < ids.length; i++) {
+            writer.next();
+            if (payloads[i] != null && !payloads[i].isEmpty()) {
+                writer.raw(payloads[i]);
+            } else {
+                writer.beginObject()
+                        .field(ID, ids[i])
+                        .field(STATUS, payloads[i] == null ? "unavailable" : "not found")
+                        .endObject();
+            }
+        }
+        writer.endArray();
+    }
+
+    static String user(int id, String username, String email, String password) {
+        try (JsonWriter writer = JsonWriter.acquire()) {
+            user(writer, id, username, email, password);
+            return writer.toString();
+        }
+    }
+
+    static String product(int id, String name, String description, float price, int quantity) {
+        try (JsonWriter writer = JsonWriter.acquire()) {
+            product(writer, id, name, description, price, quantity);
+            return writer.toString();
+        }
+    }
+
+    static String purchases(Map<Integer, Integer> purchases) {
+        try (JsonWriter writer = JsonWriter.acquire()) {
+            purchases(writer, purchases);
+            return writer.toString();
+        }
+    }
+}
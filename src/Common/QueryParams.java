@@ -0,0 +1,33 @@
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * QueryParams decodes the query string of a request URI into its parameters. A parameter given more than
+ * once keeps its first value, and a parameter without a value maps to the empty string.
+ */
+class QueryParams {
+
+    private QueryParams() {
+    }
+
+    /**
+     * @param rawQuery is the still encoded query, as given by URI.getRawQuery(), possibly null.
+     * @return The parameters by name, empty if there is no query.
+     */
+    static Map<String, String> parse(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                               URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,91 @@
+import java.time.Duration;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * RedisPool holds the single Jedis connection pool shared by every database class in a service,
+ * so cache lookups borrow an open connection instead of opening a new socket per call.
+ *
+ * The pool can be tuned with the following system properties (e.g. -Dredis.pool.maxTotal=128):
+ *   redis.pool.maxTotal      maximum number of connections (default 64)
+ *   redis.pool.maxIdle       maximum number of idle connections kept open (default maxTotal)
+ *   redis.pool.minIdle       number of connections opened eagerly (default 8)
+ *   redis.pool.maxWaitMillis how long a caller waits to borrow a connection (default 200)
+ *   redis.timeoutMillis      socket connect/read timeout (default 2000)
+ */
+class RedisPool {
+
+    private static volatile JedisPool pool;
+
+    private RedisPool() {
+    }
+
+    /**
+     * Creates the shared pool if it does not exist yet and registers its metrics.
+     * @param host is the host name or IP address of the Redis server.
+     * @param port is the port number of the Redis server.
+     */
+    static synchronized void initialize(String host, int port) {
+        if (pool != null) {
+            return;
+        }
+        int maxTotal = Integer.getInteger("redis.pool.maxTotal", 64);
+
+        JedisPoolConfig config = new JedisPoolConfig();
+        config.setMaxTotal(maxTotal);
+        config.setMaxIdle(Integer.getInteger("redis.pool.maxIdle", maxTotal));
+        config.setMinIdle(Integer.getInteger("redis.pool.minIdle", 8));
+        config.setMaxWait(Duration.ofMillis(Long.getLong("redis.pool.maxWaitMillis", 200L)));
+        config.setBlockWhenExhausted(true);
+        config.setTestWhileIdle(true);
+        config.setJmxEnabled(false);
+
+        pool = new JedisPool(config, host, port, Integer.getInteger("redis.timeoutMillis", 2000));
+
+        Metrics.gauge("redis.pool.active", () -> pool.getNumActive());
+        Metrics.gauge("redis.pool.idle", () -> pool.getNumIdle());
+        Metrics.gauge("redis.pool.waiters", () -> pool.getNumWaiters());
+        Metrics.gauge("redis.pool.created", () -> pool.getCreatedCount());
+        Metrics.gauge("redis.pool.borrowed", () -> pool.getBorrowedCount());
+        Metrics.gauge("redis.pool.meanBorrowWaitMillis", () -> pool.getMeanBorrowWaitDuration().toMillis());
+        Metrics.gauge("redis.pool.maxBorrowWaitMillis", () -> pool.getMaxBorrowWaitDuration().toMillis());
+    }
+
+    /**
+     * Borrows a connection from the pool. The caller must close the connection to return it,
+     * which is easiest with a try-with-resources block.
+     * @return A pooled connection to the Redis server.
+     */
+    static Jedis getResource() {
+        try {
+            return pool.getResource();
+        } catch (RuntimeException e) {
+            Metrics.increment("redis.pool.borrowFailures");
+            throw e;
+        }
+    }
+
+    /**
+     * Checks that a pooled connection can reach the Redis server.
+     * @return true if the server answered PING.
+     */
+    static boolean ping() {
+        try (Jedis jedis = getResource()) {
+            return "PONG".equals(jedis.ping());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Closes every pooled connection. Called from the shutdown hooks of the services.
+     */
+    static synchronized void shutdown() {
+        if (pool != null && !pool.isClosed()) {
+            pool.close();
+            System.out.println("Redis connection pool successfully shut down.");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.sql.DataSource;
+
+/**
+ * ReplicaRouter sends read-only queries to a streaming replica of the database, when one is configured,
+ * and keeps the primary for everything else. A read goes to the primary instead when:
+ *   - the replica is further behind the primary than db.replica.maxLagMillis, or its lag is unknown;
+ *   - one of the rows it reads was written by this instance within db.replica.stickyMillis, so a client
+ *     always reads its own writes (read-your-writes); writers report their rows with wrote(key).
+ * If the replica cannot be reached the read falls back to the primary as well.
+ *
+ * Read-your-writes only holds within one instance: the recent writes are kept in this process, not shared.
+ * A client whose next request is sent to another instance (e.g. by a load balancer without sticky sessions)
+ * can read the row from the replica before the replica has replayed its write, up to db.replica.maxLagMillis
+ * old. Deployments that need read-your-writes across instances should pin clients to an instance, or run
+ * without a replica (db.replica.host unset). Rows read from the replica are cached with their versions like
+ * any other read, so a stale one never replaces a newer cached row.
+ *
+ * A background thread measures the lag every db.replica.lagCheckMillis as the time since the last
+ * transaction replayed on the replica (0 while it has replayed everything it received). A replica whose WAL
+ * receiver is not streaming has an unknown lag (-1), since it receives nothing and has nothing left to replay
+ * however old its data is; the database user needs pg_read_all_stats to see the receiver status. The lag and the
+ * routing split are reported as db.replica.lagMillis, db.reads.replica and db.reads.primary.
+ *
+ * The replica is configured with the following system properties:
+ *   db.replica.host           host of the replica (default none, which sends every query to the primary)
+ *   db.replica.port           port of the replica (default 5432)
+ *   db.replica.poolSize       connections to the replica (default 10)
+ *   db.replica.maxLagMillis   the most lag at which reads still go to the replica (default 1000)
+ *   db.replica.stickyMillis   how long the rows written by this instance are read from the primary (default 5000)
+ *   db.replica.lagCheckMillis how often the lag is measured (default 500)
+ */
+class ReplicaRouter {
+
+    // Lag of a replica that is not in recovery (e.g. a primary used as its own replica) is 0
+    private static final String LAG =
+            "SELECT CASE WHEN NOT pg_is_in_recovery() THEN 0 " +
+            "WHEN NOT EXISTS (SELECT 1 FROM pg_stat_wal_receiver WHERE status = 'streaming') THEN -1 " +
+            "WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0 " +
+            "ELSE COALESCE((EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::bigint, -1) END";
+
+    private static final long maxLagMillis = Long.getLong("db.replica.maxLagMillis", 1000L);
+    private static final long stickyMillis = Long.getLong("db.replica.stickyMillis", 5000L);
+    private static final long lagCheckMillis = Long.getLong("db.replica.lagCheckMillis", 500L);
+
+    private static volatile HikariDataSource replica;
+    // -1 while the lag is unknown
+    private static volatile long lagMillis = -1;
+    // When each row written by this instance may be read from the replica again
+    private static final Map<String, Long> recentWrites = new ConcurrentHashMap<>();
+    private static Thread monitor;
+
+    private ReplicaRouter() {
+    }
+
+    /**
+     * Opens the replica pool and starts measuring its lag, if a replica is configured.
+     * @param user is the database user.
+     * @param password is its password.
+     */
+    static synchronized void initialize(String user, String password) {
+        String host = System.getProperty("db.replica.host");
+        if (host == null || host.isEmpty() || replica != null) {
+            return;
+        }
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:postgresql://" + host + ":" + System.getProperty("db.replica.port", "5432") + "/assignmentdb");
+        config.setUsername(user);
+        config.setPassword(password);
+        config.setReadOnly(true);
+        config.setMaximumPoolSize(Integer.getInteger("db.replica.poolSize", 10));
+        config.setPoolName("replica");
+        // Start even if the replica is down; reads go to the primary until it is reachable
+        config.setInitializationFailTimeout(-1);
+        replica = new HikariDataSource(config);
+
+        Metrics.gauge("db.replica.lagMillis", () -> lagMillis);
+        monitor = new Thread(ReplicaRouter::measure, "replica-lag-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    /**
+     * The loop of the lag monitor. It also forgets the writes that no longer pin their rows to the primary.
+     */
+    private static void measure() {
+        while (replica != null) {
+            try (Connection con = replica.getConnection();
+                 Statement statement = con.createStatement();
+                 ResultSet rs = statement.executeQuery(LAG)) {
+                lagMillis = rs.next() ? rs.getLong(1) : -1;
+            } catch (SQLException e) {
+                lagMillis = -1;
+            }
+            long now = System.currentTimeMillis();
+            for (Iterator<Long> until = recentWrites.values().iterator(); until.hasNext(); ) {
+                if (until.next() <= now) {
+                    until.remove();
+                }
+            }
+            try {
+                Thread.sleep(lagCheckMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that a row was written, so that this instance reads it from the primary for a while. Other
+     * instances are not told, so they may still read the row from the replica (see the class comment).
+     * @param key is the cache key of the row, e.g. "user:1".
+     */
+    static void wrote(String key) {
+        if (replica != null) {
+            recentWrites.put(key, System.currentTimeMillis() + stickyMillis);
+        }
+    }
+
+    /**
+     * Decides where a read-only query of some rows goes, and counts the decision. Only writes recorded by
+     * this instance keep a row on the primary; a write made through another instance is only bounded by the
+     * lag limit.
+     * @param keys are the cache keys of the rows read.
+     * @return true if the query can go to the replica.
+     */
+    static boolean useReplica(String... keys) {
+        if (replica == null) {
+            return false;
+        }
+        long lag = lagMillis;
+        if (lag < 0 || lag > maxLagMillis) {
+            Metrics.increment("db.reads.primary");
+            Metrics.increment("db.reads.primary.lag");
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            Long until = recentWrites.get(key);
+            if (until != null && until > now) {
+                Metrics.increment("db.reads.primary");
+                Metrics.increment("db.reads.primary.recentWrite");
+                return false;
+            }
+        }
+        Metrics.increment("db.reads.replica");
+        return true;
+    }
+
+    /**
+     * Opens a connection for a read, on the replica if useReplica chose it and it can be reached.
+     */
+    static Connection connect(DataSource primary, boolean useReplica) throws SQLException {
+        if (useReplica) {
+            try {
+                return replica.getConnection();
+            } catch (SQLException e) {
+                Metrics.increment("db.reads.replicaFailures");
+            }
+        }
+        return primary.getConnection();
+    }
+
+    /**
+     * @return The pool that a long read of no particular rows (e.g. an export) should use.
+     */
+    static DataSource forScan(DataSource primary) {
+        return useReplica() ? replica : primary;
+    }
+
+    static void shutdown() {
+        HikariDataSource pool = replica;
+        replica = null;
+        if (monitor != null) {
+            monitor.interrupt();
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RequestBody reads a request body once into a pooled byte array, sized from Content-Length when the
+ * client sends it. The bytes are parsed in place with a JsonReader and the array goes back to the pool
+ * when the body is closed, so decoding a request allocates no buffers in the steady state.
+ *
+ * Bodies are capped at server.nio.maxRequestBytes (default 1048576) on every server engine, whether or not
+ * the client sends Content-Length; a larger body fails with TooLargeException, which handlers answer with 413.
+ *
+ *   try (RequestBody body = RequestBody.read(exchange)) {
+ *       request = OrderRequest.parse(body.json());
+ *   }
+ */
+class RequestBody implements AutoCloseable {
+
+    /**
+     * Thrown when a request body is larger than MAX_BYTES.
+     */
+    static final class TooLargeException extends IOException {
+        TooLargeException(long length) {
+            super("Request body of " + (length < 0 ? "more than " + MAX_BYTES : length) + " bytes is too large");
+        }
+    }
+
+    static final int MAX_BYTES = Integer.getInteger("server.nio.maxRequestBytes", 1 << 20);
+
+    private static final int INITIAL_BYTES = 4096;
+    private static final int MAX_POOLED_BYTES = 64 << 10;
+    private static final int MAX_POOLED = 256;
+    private static final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private byte[] bytes;
+    private int length;
+
+    private RequestBody(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * Reads the whole body of an exchange.
+     * @param exchange is the exchange whose body is read.
+     * @return The body, which must be closed to return its buffer to the pool.
+     * @throws IOException If reading the body fails.
+     */
+    static RequestBody read(HttpExchange exchange) throws IOException {
+        long contentLength = -1;
+        String header = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (header != null) {
+            try {
+                contentLength = Long.parseLong(header.trim());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+        }
+        try (InputStream in = exchange.getRequestBody()) {
+            return read(in, contentLength);
+        }
+    }
+
+    /**
+     * Reads a body from a stream.
+     * @param in is the stream to read until its end.
+     * @param contentLength is the expected number of bytes, or -1 if unknown.
+     * @return The body, which must be closed to return its buffer to the pool.
+     * @throws TooLargeException If the body is larger than MAX_BYTES.
+     * @throws IOException If reading the stream fails.
+     */
+    static RequestBody read(InputStream in, long contentLength) throws IOException {
+        if (contentLength > MAX_BYTES) {
+            throw new TooLargeException(contentLength);
+        }
+        byte[] buffer = pool.poll();
+        if (buffer == null) {
+            buffer = new byte[INITIAL_BYTES];
+        } else {
+            pooled.decrementAndGet();
+        }
+        RequestBody body = new RequestBody(buffer);
+        if (contentLength > body.bytes.length) {
+            release(body.bytes);
+            body.bytes = new byte[(int) contentLength];
+        }
+        int n;
+        while ((n = in.read(body.bytes, body.length, body.bytes.length - body.length)) != -1) {
+            body.length += n;
+            if (body.length == body.bytes.length) {
+                if (body.length == contentLength) {
+                    break;
+                }
+                if (body.length > MAX_BYTES) {
+                    body.close();
+                    throw new TooLargeException(-1);
+                }
+                // One byte past the cap is enough to tell that a body is too large
+                byte[] grown = Arrays.copyOf(body.bytes, (int) Math.min(body.bytes.length * 2L, MAX_BYTES + 1L));
+                release(body.bytes);
+                body.bytes = grown;
+            }
+        }
+        return body;
+    }
+
+    /**
+     * @return A reader over the body, which must not be used after the body is closed.
+     */
+    JsonReader json() {
+        return new JsonReader(bytes, length);
+    }
+
+    /**
+     * @return The raw bytes; only the first length() are valid.
+     */
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Returns the buffer to the pool. Oversized buffers are dropped so the pool stays small.
+     */
+    @Override
+    public void close() {
+        release(bytes);
+        bytes = null;
+    }
+
+    private static void release(byte[] buffer) {
+        if (buffer != null && buffer.length <= MAX_POOLED_BYTES) {
+            if (pooled.incrementAndGet() <= MAX_POOLED) {
+                pool.add(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * ServerExecutors creates the executor that runs the HTTP handlers of a service.
+ *
+ * The mode is chosen with the following system properties:
+ *   server.executor  "fixed" for a bounded pool of platform threads (default),
+ *                    or "virtual" for one virtual thread per exchange (Java 21 or later)
+ *   server.threads   size of the fixed pool (default 20)
+ *
+ * Handlers spend most of their time blocked on JDBC and Redis. The drivers on the classpath
+ * (pgjdbc 42.7, HikariCP 5, Jedis 5 with commons-pool2) guard their sockets with
+ * java.util.concurrent locks rather than monitors, and the services never block while holding
+ * a monitor, so virtual threads unmount from their carrier instead of pinning it.
+ * Run with -Djdk.tracePinnedThreads=short to confirm this under load.
+ */
+class ServerExecutors {
+
+    private ServerExecutors() {
+    }
+
+    /**
+     * Creates the executor selected by the server.executor property and reports it in the metrics.
+     * @return The executor to pass to HttpServer.setExecutor.
+     */
+    static ExecutorService create() {
+        String mode = System.getProperty("server.executor", "fixed");
+        if ("virtual".equals(mode)) {
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+                System.out.println("Handling requests on virtual threads");
+                return virtual;
+            }
+            System.out.println("Virtual threads need Java 21 or later, falling back to a fixed thread pool");
+        }
+
+        int threads = Integer.getInteger("server.threads", 20);
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads);
+        Metrics.gauge("server.executor.active", pool::getActiveCount);
+        Metrics.gauge("server.executor.queued", () -> pool.getQueue().size());
+        System.out.println("Handling requests on a fixed pool of " + threads + " threads");
+        return pool;
+    }
+
+    /**
+     * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively so the services still compile
+     * and run on Java 17.
+     * @return The virtual thread executor, or null if the running JVM does not support it.
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
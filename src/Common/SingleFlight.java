@@ -0,0 +1,64 @@
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * SingleFlight merges concurrent loads of the same key: the first caller that misses the cache runs
+ * the load, and every caller that misses the same key while it is running waits for that load and
+ * shares its result instead of sending its own query to the database.
+ *
+ * Only loads that are running at the same moment are merged; nothing is kept once a load completes,
+ * so callers that come later go through the cache as usual.
+ *
+ * Each instance reports <name>.loads (loads actually run) and <name>.coalesced (loads saved).
+ *
+ *   String json = userLoads.load("user:" + id, () -> loadUser(id));
+ */
+class SingleFlight<V> {
+
+    private final Map<String, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final String loadsMetric;
+    private final String coalescedMetric;
+
+    /**
+     * @param name is the prefix of the metrics of this instance, e.g. "singleflight.user".
+     */
+    SingleFlight(String name) {
+        this.loadsMetric = name + ".loads";
+        this.coalescedMetric = name + ".coalesced";
+        Metrics.gauge(name + ".inFlight", inFlight::size);
+    }
+
+    /**
+     * Runs the loader for a key, or waits for the load of that key that is already running.
+     * @param key identifies what is loaded.
+     * @param loader loads the value; it runs on the calling thread of the first caller.
+     * @return The loaded value, shared by every caller of the same flight.
+     */
+    V load(String key, Supplier<V> loader) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = inFlight.putIfAbsent(key, flight);
+        if (running != null) {
+            Metrics.increment(coalescedMetric);
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+
+        Metrics.increment(loadsMetric);
+        try {
+            V value = loader.get();
+            flight.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, flight);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * UpdateResult is the outcome of an update: the HTTP status, and the payload of the row as the update
+ * left it, read back by the same statement, so the caller can answer without reading the row again.
+ */
+class UpdateResult {
+
+    final int status;
+    // The updated row, or null if the status is not 200 or nothing was changed
+    final String json;
+
+    UpdateResult(int status, String json) {
+        this.status = status;
+        this.json = json;
+    }
+
+    static UpdateResult status(int status) {
+        return new UpdateResult(status, null);
+    }
+}
@@ -0,0 +1,68 @@
+import java.util.Arrays;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * VersionedCache writes user and product payloads to Redis together with the version of the row they
+ * were built from, and refuses a write whose version is older than the one already cached. Rows take a
+ * new version from a sequence on every insert and update, so an update can put its new row straight into
+ * the cache (write-through) without a read that started earlier overwriting it with the old row.
+ *
+ * The version of "product:7" is kept in "product:7:version". An invalidation raises it to the version of
+ * the write that made it (for a deleted row, a version taken from the sequence after the delete), so a
+ * read that started before the write cannot fill the cache with the old row afterwards. Tombstones do not
+ * touch it.
+ */
+class VersionedCache {
+
+    // KEYS: payload, version. ARGV: version, payload, whether to publish an invalidation.
+    private static final String WRITE =
+            "if tonumber(ARGV[1]) < tonumber(redis.call('GET', KEYS[2]) or '-1') then return 0 end " +
+            "redis.call('SET', KEYS[1], ARGV[2]) " +
+            "redis.call('SET', KEYS[2], ARGV[1]) " +
+            "if ARGV[3] == '1' then redis.call('PUBLISH', '" + NearCache.CHANNEL + "', KEYS[1]) end " +
+            "return 1";
+
+    // KEYS: version. ARGV: version.
+    private static final String RAISE =
+            "if tonumber(ARGV[1]) > tonumber(redis.call('GET', KEYS[1]) or '-1') then redis.call('SET', KEYS[1], ARGV[1]) end " +
+            "return 0";
+
+    private VersionedCache() {
+    }
+
+    static String versionKey(String key) {
+        return key + ":version";
+    }
+
+    /**
+     * Caches a payload unless a newer version of the row is already cached. The write is sent by the
+     * CacheWriter, off the calling thread.
+     * @param key is the cache key of the row.
+     * @param json is the payload.
+     * @param version is the version of the row the payload was built from.
+     * @param publish is whether the other instances drop their L1 copy, as they must after a write.
+     */
+    static void store(String key, String json, long version, boolean publish) {
+        CacheWriter.storeVersioned(key, json, version, publish);
+    }
+
+    /**
+     * Queues the versioned write of a payload on a pipeline, without publishing. The L1 cache is left to the
+     * caller.
+     * @return The response, 1 once the pipeline is synced if the payload was stored.
+     */
+    static Response<Object> store(Pipeline pipeline, String key, String json, long version) {
+        return pipeline.eval(WRITE, Arrays.asList(key, versionKey(key)), Arrays.asList(Long.toString(version), json, "0"));
+    }
+
+    /**
+     * Queues raising the cached version of a row on a pipeline, so that payloads of older versions are refused
+     * from then on. Queue it before the command that invalidates or replaces the payload.
+     * @param version is the version of the write that changed the row.
+     */
+    static void raise(Pipeline pipeline, String key, long version) {
+        pipeline.eval(RAISE, Arrays.asList(versionKey(key)), Arrays.asList(Long.toString(version)));
+    }
+}
@@ -0,0 +1,382 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+
+/**
+ * HotInventory keeps the stock of a few flagged ("hot") products in Redis, so that orders for them do not
+ * queue on the lock of one products row. An order reserves its stock with one script that checks the
+ * counter, decrements it and appends the reservation to a list of order intents, all in one round trip.
+ * The caller is answered as soon as the script succeeds.
+ *
+ * A background reconciler moves the intents into Postgres in batches. Each batch inserts the orders,
+ * decrements the products rows and updates the purchase totals in one transaction. Every reservation has an
+ * id stored with its order (orders.reservation_id, unique), so a batch that is applied twice after a crash
+ * only counts once. Intents are first moved to an in-flight list, which is only dropped once their
+ * transaction has committed, so a crash never loses them. Only one instance reconciles at a time; it
+ * holds a lease key in Redis.
+ *
+ * While a product is hot, its counter in Redis is the stock that orders see; the products row trails it
+ * by the reservations not yet reconciled. Whenever an instance takes the lease (on start up, after the
+ * previous holder died, or after Redis lost it), it reconciles what is in flight and rebuilds the counters:
+ * one script sets each counter to the stock of its row minus the intents still queued, so reservations made
+ * during the rebuild are neither lost nor counted twice. The script also seeds the reservation sequence
+ * from the largest orders.reservation_id, so ids never repeat after Redis loses the sequence, and it
+ * records the hot products in the set inventory:hot. Until the counters are rebuilt, orders for hot
+ * products are refused rather than taken from the rows behind the counters' back. For the same reason
+ * carts naming a hot product and quantity updates of one are refused (ProductService reads inventory:hot when
+ * it is started with the same inventory.hot.products), and the reconciler only decrements a row that still has the stock; a batch that finds too little is
+ * dropped and counted as inventory.hot.oversold.
+ *
+ * Hot products are configured with the following system properties:
+ *   inventory.hot.products          comma separated ids of the hot products (default none, which disables the mode)
+ *   inventory.hot.reconcileMillis   how long the reconciler sleeps when there is nothing to do (default 20)
+ *   inventory.hot.maxBatch          the most reservations reconciled in one transaction (default 1000)
+ */
+class HotInventory {
+
+    /**
+     * A reservation made in Redis that still has to be written to Postgres.
+     */
+    static final class Reservation {
+        final long id;
+        final int userId;
+        final int prodId;
+        final int quantity;
+
+        Reservation(long id, int userId, int prodId, int quantity) {
+            this.id = id;
+            this.userId = userId;
+            this.prodId = prodId;
+            this.quantity = quantity;
+        }
+
+        static Reservation parse(String intent) {
+            String[] parts = intent.split(":");
+            return new Reservation(Long.parseLong(parts[0]), Integer.parseInt(parts[1]),
+                                   Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        }
+    }
+
+    /**
+     * Writes reservations to Postgres in one transaction.
+     */
+    interface Writer {
+        /**
+         * @return The reservations that can never be written (e.g. their user is gone); their stock is returned.
+         * @throws SQLException If the batch could not be written now and must be retried.
+         */
+        List<Reservation> write(List<Reservation> batch) throws SQLException;
+    }
+
+    /**
+     * Reads the current stock of products from Postgres.
+     */
+    interface StockReader {
+        Map<Integer, Integer> read(Set<Integer> productIds) throws SQLException;
+    }
+
+    /**
+     * Reads the largest reservation id written to Postgres, or 0 if there is none.
+     */
+    interface SequenceReader {
+        long lastReservationId() throws SQLException;
+    }
+
+    private static final String INTENTS = "inventory:intents";
+    private static final String IN_FLIGHT = "inventory:intents:inflight";
+    private static final String SEQUENCE = "inventory:reservation:seq";
+    private static final String LEASE = "inventory:reconciler";
+    static final String HOT_PRODUCTS = "inventory:hot";
+    private static final long LEASE_MILLIS = 10000;
+
+    // KEYS: counter, intents, sequence. ARGV: user id, product id, quantity.
+    // Returns 1 if reserved, 0 if the stock is too low, -1 if the counters are not loaded and -2 if the
+    // product had no row when they were.
+    private static final String RESERVE =
+            "if redis.call('EXISTS', KEYS[3]) == 0 then return -1 end " +
+            "local stock = redis.call('GET', KEYS[1]) " +
+            "if not stock then return -2 end " +
+            "if tonumber(stock) < tonumber(ARGV[3]) then return 0 end " +
+            "redis.call('DECRBY', KEYS[1], ARGV[3]) " +
+            "local id = redis.call('INCR', KEYS[3]) " +
+            "redis.call('RPUSH', KEYS[2], id .. ':' .. ARGV[1] .. ':' .. ARGV[2] .. ':' .. ARGV[3]) " +
+            "return 1";
+
+    // KEYS: intents, in flight. ARGV: most intents to claim.
+    // Returns the intents left in flight by an earlier claim if there are any, otherwise claims new ones.
+    private static final String CLAIM =
+            "if redis.call('EXISTS', KEYS[2]) == 1 then return redis.call('LRANGE', KEYS[2], 0, -1) end " +
+            "local items = redis.call('LRANGE', KEYS[1], 0, tonumber(ARGV[1]) - 1) " +
+            "if #items == 0 then return items end " +
+            "redis.call('LTRIM', KEYS[1], #items, -1) " +
+            "redis.call('RPUSH', KEYS[2], unpack(items)) " +
+            "return items";
+
+    // KEYS: lease. ARGV: owner, ttl. Returns 1 if the caller renewed the lease, 2 if it has just taken it
+    // and 0 if another instance holds it.
+    private static final String LEASE_SCRIPT =
+            "local owner = redis.call('GET', KEYS[1]) " +
+            "if owner and owner ~= ARGV[1] then return 0 end " +
+            "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) " +
+            "if owner then return 1 end " +
+            "return 2";
+
+    // KEYS: lease, intents, in flight, sequence, hot products, then the counter of each product.
+    // ARGV: owner, largest reservation id in Postgres, then the id and stock ('' if it has no row) of each product.
+    // Returns 0 without changing anything if the caller lost the lease or intents are still in flight.
+    private static final String REBUILD =
+            "if redis.call('GET', KEYS[1]) ~= ARGV[1] or redis.call('EXISTS', KEYS[3]) == 1 then return 0 end " +
+            "local queued = {} " +
+            "for _, intent in ipairs(redis.call('LRANGE', KEYS[2], 0, -1)) do " +
+            "  local prod, quantity = string.match(intent, '^[^:]+:[^:]+:([^:]+):([^:]+)$') " +
+            "  queued[prod] = (queued[prod] or 0) + tonumber(quantity) " +
+            "end " +
+            "local seq = redis.call('GET', KEYS[4]) " +
+            "if not seq or tonumber(seq) < tonumber(ARGV[2]) then redis.call('SET', KEYS[4], ARGV[2]) end " +
+            "redis.call('DEL', KEYS[5]) " +
+            "for i = 6, #KEYS do " +
+            "  local prod = ARGV[2 * i - 9] " +
+            "  local stock = ARGV[2 * i - 8] " +
+            "  redis.call('SADD', KEYS[5], prod) " +
+            "  if stock == '' then redis.call('DEL', KEYS[i]) " +
+            "  else redis.call('SET', KEYS[i], tonumber(stock) - (queued[prod] or 0)) end " +
+            "end " +
+            "return 1";
+
+    private final Set<Integer> hotProducts;
+    private final Writer writer;
+    private final StockReader stockReader;
+    private final SequenceReader sequenceReader;
+    private final long reconcileMillis = Long.getLong("inventory.hot.reconcileMillis", 20L);
+    private final int maxBatch = Integer.getInteger("inventory.hot.maxBatch", 1000);
+    private final String owner = UUID.randomUUID().toString();
+    private volatile boolean running = true;
+    private Thread reconciler;
+
+    /**
+     * @return The configured inventory, or null if no product is flagged hot.
+     */
+    static HotInventory fromProperties(Writer writer, StockReader stockReader, SequenceReader sequenceReader) {
+        String ids = System.getProperty("inventory.hot.products", "").trim();
+        if (ids.isEmpty()) {
+            return null;
+        }
+        Set<Integer> hotProducts = new HashSet<>();
+        for (String id : ids.split(",")) {
+            hotProducts.add(Integer.parseInt(id.trim()));
+        }
+        return new HotInventory(hotProducts, writer, stockReader, sequenceReader);
+    }
+
+    HotInventory(Set<Integer> hotProducts, Writer writer, StockReader stockReader, SequenceReader sequenceReader) {
+        this.hotProducts = Collections.unmodifiableSet(hotProducts);
+        this.writer = writer;
+        this.stockReader = stockReader;
+        this.sequenceReader = sequenceReader;
+    }
+
+    private static String counter(int prodId) {
+        return "inventory:" + prodId;
+    }
+
+    boolean isHot(int prodId) {
+        return hotProducts.contains(prodId);
+    }
+
+    /**
+     * Starts the reconciler. Whichever instance takes the lease rebuilds the counters before it reconciles.
+     */
+    void start() {
+        reconciler = new Thread(this::run, "inventory-reconciler");
+        reconciler.setDaemon(true);
+        reconciler.start();
+    }
+
+    /**
+     * Reserves stock of a hot product for an order.
+     * @return SUCCESS or INSUFFICIENT_STOCK, DATABASE_ERROR if the counters are not loaded yet or Redis
+     *         failed, or null if the product had no row when the counters were loaded and must be ordered
+     *         through the database.
+     */
+    OrderResult reserve(int userId, int prodId, int quantity) {
+        try (Jedis jedis = RedisPool.getResource()) {
+            Object reserved = jedis.eval(RESERVE, Arrays.asList(counter(prodId), INTENTS, SEQUENCE),
+                    Arrays.asList(Integer.toString(userId), Integer.toString(prodId), Integer.toString(quantity)));
+            if (Long.valueOf(1).equals(reserved)) {
+                Metrics.increment("inventory.hot.reserved");
+                return OrderResult.SUCCESS;
+            }
+            if (Long.valueOf(0).equals(reserved)) {
+                return OrderResult.INSUFFICIENT_STOCK;
+            }
+            if (Long.valueOf(-1).equals(reserved)) {
+                // The rows trail the counters by the queued intents, so they cannot take the order either
+                Metrics.increment("inventory.hot.unloaded");
+                return OrderResult.DATABASE_ERROR;
+            }
+            return null;
+        } catch (Exception e) {
+            System.out.println("Failed to reserve hot inventory: " + e.getMessage());
+            return OrderResult.DATABASE_ERROR;
+        }
+    }
+
+    /**
+     * Takes or renews the reconciler lease.
+     * @return 1 if this instance renewed it, 2 if it has just taken it and 0 if it does not hold it.
+     */
+    private long lease() {
+        try (Jedis jedis = RedisPool.getResource()) {
+            return (Long) jedis.eval(LEASE_SCRIPT, Collections.singletonList(LEASE),
+                    Arrays.asList(owner, Long.toString(LEASE_MILLIS)));
+        } catch (Exception e) {
+            System.out.println("Failed to renew the reconciler lease: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Rebuilds the counters from the products rows, less the intents still queued, and seeds the reservation
+     * sequence. Only the lease holder calls it, once nothing is in flight, so no reconciled batch can move
+     * stock between the rows and the counters while it runs.
+     * @return true if the counters were rebuilt, false if it must be tried again.
+     */
+    private boolean rebuild() {
+        try {
+            Map<Integer, Integer> stock = stockReader.read(hotProducts);
+            long lastId = sequenceReader.lastReservationId();
+            List<String> keys = new ArrayList<>(Arrays.asList(LEASE, INTENTS, IN_FLIGHT, SEQUENCE, HOT_PRODUCTS));
+            List<String> args = new ArrayList<>(Arrays.asList(owner, Long.toString(lastId)));
+            for (Integer prodId : hotProducts) {
+                keys.add(counter(prodId));
+                args.add(prodId.toString());
+                // Products without a row go through the database, which rejects them
+                args.add(stock.containsKey(prodId) ? stock.get(prodId).toString() : "");
+            }
+            try (Jedis jedis = RedisPool.getResource()) {
+                if (!Long.valueOf(1).equals(jedis.eval(REBUILD, keys, args))) {
+                    return false;
+                }
+            }
+            Metrics.increment("inventory.hot.rebuilds");
+            System.out.println("Hot inventory loaded for products " + stock.keySet());
+            return true;
+        } catch (Exception e) {
+            System.out.println("Failed to load hot inventory: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * The loop of the reconciler thread. It keeps draining after shutdown starts until nothing is pending.
+     */
+    private void run() {
+        boolean loaded = false;
+        while (running) {
+            long lease = lease();
+            if (lease != 1) {
+                // Another instance may have reconciled in between, or Redis may have lost the counters
+                loaded = false;
+            }
+            if (lease != 0 && !loaded) {
+                // Fails while intents are in flight; the round below writes them and the next one retries
+                loaded = rebuild();
+            }
+            boolean busy = lease != 0 && reconcileOnce();
+            if (!busy) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(reconcileMillis);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (lease() != 0) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        while (reconcileOnce()) {
+            // Keep going until no intent is left
+        }
+    }
+
+    /**
+     * Claims a batch of intents and writes it to Postgres.
+     * @return true if a batch was written, false if there was nothing to do or the batch must be retried.
+     */
+    @SuppressWarnings("unchecked")
+    private boolean reconcileOnce() {
+        List<String> intents;
+        try (Jedis jedis = RedisPool.getResource()) {
+            intents = (List<String>) jedis.eval(CLAIM, Arrays.asList(INTENTS, IN_FLIGHT),
+                                                Collections.singletonList(Integer.toString(maxBatch)));
+        } catch (Exception e) {
+            System.out.println("Failed to claim hot inventory intents: " + e.getMessage());
+            return false;
+        }
+        if (intents.isEmpty()) {
+            return false;
+        }
+
+        List<Reservation> batch = new ArrayList<>(intents.size());
+        for (String intent : intents) {
+            batch.add(Reservation.parse(intent));
+        }
+        List<Reservation> rejected;
+        try {
+            rejected = writer.write(batch);
+        } catch (SQLException e) {
+            // The intents stay in flight and are claimed again by the next round
+            System.out.println("Failed to reconcile hot inventory: " + e.getMessage());
+            return false;
+        }
+
+        try (Jedis jedis = RedisPool.getResource()) {
+            // Return the stock of rejected reservations and drop the batch together
+            Transaction release = jedis.multi();
+            for (Reservation reservation : rejected) {
+                release.incrBy(counter(reservation.prodId), reservation.quantity);
+            }
+            release.del(IN_FLIGHT);
+            release.exec();
+        } catch (Exception e) {
+            // Reapplying the batch is harmless, since its orders are recognised by their reservation ids
+            System.out.println("Failed to release reconciled intents: " + e.getMessage());
+        }
+        Metrics.histogram("inventory.hot.reconcile.size").record(batch.size());
+        Metrics.counter("inventory.hot.reconciled").add(batch.size() - rejected.size());
+        Metrics.counter("inventory.hot.dropped").add(rejected.size());
+        for (Reservation reservation : rejected) {
+            // These orders were already answered as successful
+            System.out.println("Dropped reservation " + reservation.id + " of user " + reservation.userId
+                    + " for product " + reservation.prodId + ", its stock is returned");
+        }
+        return true;
+    }
+
+    /**
+     * Stops the reconciler after it has written every pending intent.
+     */
+    void shutdown() {
+        running = false;
+        if (reconciler != null) {
+            try {
+                reconciler.join(10000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
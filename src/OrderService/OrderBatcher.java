@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * OrderBatcher gathers orders placed concurrently by different HTTP threads and hands them to a writer
+ * in batches, so that many orders share one database transaction and one commit (group commit).
+ * Each caller still waits for, and receives, the result of its own order.
+ *
+ * Orders are split into lanes by product id, each with its own queue and its own writer thread, so all
+ * orders for one product are written by one thread, in the order they arrived. Batches of different lanes
+ * touch different products (and so different products and purchases rows), which lets them commit side by
+ * side without waiting on each other's row locks; a hot product only ever queues behind its own lane.
+ *
+ * The lanes own the order of the writes, not the stock. Each batch still takes its stock with guarded
+ * UPDATEs that lock the products rows; within one instance those locks are uncontended, since only the
+ * lane's thread writes its products. Keeping the stock in lane memory instead would need the lane to be
+ * the only writer of its rows, but other OrderService instances, carts, the hot inventory reconciler and
+ * ProductService all write them too, so an in-memory copy would go stale and oversell. Products that need
+ * lock-free stock are flagged hot instead (see HotInventory), where Redis is the one owner shared by every
+ * instance.
+ *
+ * A writer thread takes the first order of its lane, then keeps collecting until the batch is full or the
+ * linger time has passed. With a linger time of 0 a batch holds whatever queued up while the previous
+ * batch was being committed.
+ */
+class OrderBatcher {
+
+    /**
+     * An order waiting to be written, together with the handle its caller is waiting on.
+     */
+    static final class PendingOrder {
+        final int userId;
+        final int prodId;
+        final int quantity;
+        final CompletableFuture<OrderResult> result = new CompletableFuture<>();
+
+        PendingOrder(int userId, int prodId, int quantity) {
+            this.userId = userId;
+            this.prodId = prodId;
+            this.quantity = quantity;
+        }
+    }
+
+    private final List<BlockingQueue<PendingOrder>> lanes = new ArrayList<>();
+    private final Consumer<List<PendingOrder>> writer;
+    private final int maxBatchSize;
+    private final long maxLingerNanos;
+    private final List<Thread> threads = new ArrayList<>();
+    private volatile boolean running = true;
+
+    /**
+     * Starts one writer thread per lane.
+     * @param writer writes one batch and completes the result of every order in it.
+     * @param maxBatchSize is the largest number of orders written in one transaction.
+     * @param maxLingerMicros is how long a writer waits for more orders before closing a batch.
+     * @param writers is the number of lanes, and so of batches that may be written concurrently.
+     */
+    OrderBatcher(Consumer<List<PendingOrder>> writer, int maxBatchSize, long maxLingerMicros, int writers) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLingerNanos = TimeUnit.MICROSECONDS.toNanos(maxLingerMicros);
+
+        for (int i = 0; i < Math.max(1, writers); i++) {
+            BlockingQueue<PendingOrder> lane = new LinkedBlockingQueue<>();
+            lanes.add(lane);
+            Metrics.gauge("order.lane." + i + ".queueDepth", lane::size);
+        }
+        Metrics.gauge("order.batch.queueDepth", () -> {
+            int depth = 0;
+            for (BlockingQueue<PendingOrder> lane : lanes) {
+                depth += lane.size();
+            }
+            return depth;
+        });
+        for (int i = 0; i < lanes.size(); i++) {
+            int lane = i;
+            Thread thread = new Thread(() -> run(lane), "order-lane-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    private BlockingQueue<PendingOrder> lane(int prodId) {
+        return lanes.get(Math.floorMod(Integer.hashCode(prodId), lanes.size()));
+    }
+
+    /**
+     * Queues an order and waits until the batch containing it has been written.
+     * @return The outcome of this order.
+     */
+    OrderResult submit(int userId, int prodId, int quantity) {
+        if (!running) {
+            return OrderResult.DATABASE_ERROR;
+        }
+        PendingOrder order = new PendingOrder(userId, prodId, quantity);
+        lane(prodId).add(order);
+        return order.result.join();
+    }
+
+    /**
+     * The loop of the writer thread of one lane. It keeps draining the lane after shutdown starts until it is
+     * empty.
+     */
+    private void run(int lane) {
+        BlockingQueue<PendingOrder> queue = lanes.get(lane);
+        LongAdder written = Metrics.counter("order.lane." + lane + ".orders");
+        List<PendingOrder> batch = new ArrayList<>(maxBatchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingOrder first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxLingerNanos;
+                while (batch.size() < maxBatchSize) {
+                    queue.drainTo(batch, maxBatchSize - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatchSize || remaining <= 0) {
+                        break;
+                    }
+                    PendingOrder next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                Metrics.histogram("order.batch.size").record(batch.size());
+                written.add(batch.size());
+                try {
+                    writer.accept(batch);
+                } catch (RuntimeException e) {
+                    System.out.println("Failed to write order batch: " + e.getMessage());
+                }
+                // Never leave a caller waiting, whatever the writer did
+                for (PendingOrder order : batch) {
+                    order.result.complete(OrderResult.DATABASE_ERROR);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Stops accepting orders and waits for the writers to flush what is already queued.
+     */
+    void shutdown() {
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        // Anything that slipped in after the writers stopped is rejected rather than left waiting
+        for (BlockingQueue<PendingOrder> queue : lanes) {
+            PendingOrder order;
+            while ((order = queue.poll()) != null) {
+                order.result.complete(OrderResult.DATABASE_ERROR);
+            }
+        }
+    }
+}
@@ -1,12 +1,31 @@
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
-import org.json.JSONObject;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.params.SetParams;
 /**
  * OrderDatabase class provides methods for managing user data in a SQLite database.
  */
@@ -19,6 +38,28 @@ class OrderDatabase {
     public static String redisHost = "localhost"; // Change this to your Redis server's IP address
     public static int redisPort = 6379;
     public static HikariDataSource dataSource;
+    private static OrderBatcher batcher;
+    private static HotInventory hotInventory;
+    private static OrderLog orderLog;
+    private final PurchaseCache purchaseCache = new PurchaseCache();
+    private static final SingleFlight<String> userLoads = new SingleFlight<>("singleflight.user");
+    private static final SingleFlight<String> productLoads = new SingleFlight<>("singleflight.product");
+    private static final SingleFlight<String> purchaseLoads = new SingleFlight<>("singleflight.purchases");
+
+    // Runs the product lookup of an order validation next to the user lookup
+    private static final ExecutorService lookups = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "order-validation-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long validationTimeoutMillis = Long.getLong("order.validation.timeoutMillis", 1000L);
+
+    // Adds an order to the per-user, per-product totals of the purchases table
+    private static final String ADD_PURCHASE = "INSERT INTO purchases(user_id, prod_id, quantity) VALUES(?, ?, ?) " +
+            "ON CONFLICT (user_id, prod_id) DO UPDATE SET quantity = purchases.quantity + EXCLUDED.quantity";
+    // Records why a logged order was dropped when the log was applied
+    private static final String REJECT_LOGGED = "INSERT INTO order_log_rejections(log_node, log_seq, reason) VALUES(?, ?, ?) " +
+            "ON CONFLICT DO NOTHING";
 
  //    static {
  //        // Configure HikariCP
@@ -45,6 +86,15 @@ class OrderDatabase {
         return dataSource.getConnection();
     }
 
+    /**
+     * Opens a connection for a read-only query of the given rows, on the read replica when ReplicaRouter
+     * allows it and on the primary otherwise.
+     * @param keys are the cache keys of the rows read.
+     */
+    private Connection connectForRead(String... keys) throws SQLException {
+        return ReplicaRouter.connect(dataSource, ReplicaRouter.useReplica(keys));
+    }
+
     /**
      * The initialize method which is used in the constructor is for initializing the database by creating a table
      * for users if it does not already exist.
@@ -59,14 +109,30 @@ class OrderDatabase {
 	config.setJdbcUrl(url);
 	config.setUsername(user);
 	config.setPassword(password);
+	// Lets the driver send a batch of order inserts as one multi-row INSERT
+	config.addDataSourceProperty("reWriteBatchedInserts", "true");
+	// Orders invalidate the cached users and products and update the cached purchase histories in place, so
+	// their changes are not sent to the listener
+	config.setConnectionInitSql("SET app.cache_managed = 'on'");
 
 	dataSource = new HikariDataSource(config);
+	// Send read-only queries to a replica when -Ddb.replica.host names one
+	ReplicaRouter.initialize(user, password);
+
+	// Group concurrent orders into shared transactions, one lane of writes per group of products,
+	// unless disabled with -Dorder.batch.enabled=false
+	if (Boolean.parseBoolean(System.getProperty("order.batch.enabled", "true"))) {
+		batcher = new OrderBatcher(this::writeOrderBatch,
+				Integer.getInteger("order.batch.maxSize", 64),
+				Long.getLong("order.batch.lingerMicros", 1000L),
+				Integer.getInteger("order.batch.writers", 4));
+	}
 
-	// Test redis connection
-	Jedis jedis = connectToRedis();
-	if (jedis != null) {
+	// Share one pool of Redis connections across every cache call
+	RedisPool.initialize(redisHost, redisPort);
+	NearCache.initialize(redisHost, redisPort);
+	if (RedisPool.ping()) {
 		System.out.println("Connected to Redis server at " + redisHost + ":" + redisPort);
-		jedis.close();
 	} else {
 		System.out.println("Failed to connect to Redis server at " + redisHost + ":" + redisPort);
 	}
@@ -78,146 +144,1145 @@ class OrderDatabase {
                     "user_id INT NOT NULL, " +
                     "prod_id INT NOT NULL, " +
                     "quantity INT NOT NULL CHECK (quantity > 0), " +
+                    "created_at TIMESTAMPTZ DEFAULT now(), " +
                     "FOREIGN KEY (user_id) REFERENCES users(id) " +
                     "ON DELETE NO ACTION, " +
                     "FOREIGN KEY (prod_id) REFERENCES products(id) " +
                     "ON DELETE NO ACTION)"; // TODO: This is not supposed to cascade (we want to see deleted users order history)
             statement.execute(sql);
+            // Per-user access path covering the aggregated history query, so building a user's totals
+            // (e.g. the purchases backfill) reads only that user's index entries instead of scanning the table
+            statement.execute("CREATE INDEX IF NOT EXISTS orders_user_prod_idx ON orders (user_id, prod_id, quantity)");
+            // Order time for history pages; orders placed before the column existed keep a NULL time
+            statement.execute("ALTER TABLE orders ADD COLUMN IF NOT EXISTS created_at TIMESTAMPTZ");
+            statement.execute("ALTER TABLE orders ALTER COLUMN created_at SET DEFAULT now()");
+            // Keyset access path for history pages: one user's orders in id order
+            statement.execute("CREATE INDEX IF NOT EXISTS orders_user_id_idx ON orders (user_id, id)");
+            // Orders reconciled from hot inventory carry the id of their reservation, so each is written once
+            statement.execute("ALTER TABLE orders ADD COLUMN IF NOT EXISTS reservation_id BIGINT");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS orders_reservation_idx ON orders (reservation_id)");
+            // Orders applied from a local order log carry the log's node id and their sequence number in it
+            statement.execute("ALTER TABLE orders ADD COLUMN IF NOT EXISTS log_node UUID");
+            statement.execute("ALTER TABLE orders ADD COLUMN IF NOT EXISTS log_seq BIGINT");
+            statement.execute("CREATE UNIQUE INDEX IF NOT EXISTS orders_log_idx ON orders (log_node, log_seq)");
+            // Logged orders that were dropped when applied, so their outcome can be looked up and a replay skips them
+            statement.execute("CREATE TABLE IF NOT EXISTS order_log_rejections (" +
+                    "log_node UUID NOT NULL, " +
+                    "log_seq BIGINT NOT NULL, " +
+                    "reason TEXT NOT NULL, " +
+                    "PRIMARY KEY (log_node, log_seq))");
         }
         catch (SQLException e) {
 	    System.out.println(e.getMessage());
         }
+        createPurchasesTable();
+
+	// Invalidate cached rows from the change notifications of their tables; users and products are cached
+	// here too, for order validation
+	ChangeListener.watch("users", "user:");
+	ChangeListener.watch("products", "product:");
+	ChangeListener.watchCounted("purchases", "purchases:", PurchaseCache.ttlMillis);
+	ChangeListener.start(url, user, password);
+
+	// Reserve the stock of hot products in Redis when -Dinventory.hot.products names any
+	hotInventory = HotInventory.fromProperties(this::writeReservations, this::productStock, this::lastReservationId);
+	if (hotInventory != null) {
+		hotInventory.start();
+	}
+
+	// Acknowledge orders once they are in the local order log with -Dorder.wal.enabled=true
+	if (Boolean.parseBoolean(System.getProperty("order.wal.enabled", "false"))) {
+		try {
+			orderLog = OrderLog.open(Paths.get(System.getProperty("order.wal.dir", "order-wal")));
+			orderLog.start(this::writeLoggedOrders);
+		} catch (IOException e) {
+			System.out.println("Failed to open the order log, orders are written directly: " + e.getMessage());
+		}
+	}
     }
 
-    private Jedis connectToRedis() {
-        try {
-            Jedis jedis = new Jedis(redisHost, redisPort);
-            return jedis; // Successfully connected
-        } catch (Exception e) {
-            System.out.println("Failed to connect to Redis: " + e.getMessage());
-            return null; // Connection failed
+    /**
+     * Creates the purchases table, which holds the total quantity each user bought of each product and
+     * is kept up to date in the same transaction as every order. When the table is new it is filled
+     * from the existing orders.
+     */
+    private void createPurchasesTable() {
+        try (Connection con = connect();
+             Statement statement = con.createStatement()) {
+            con.setAutoCommit(false);
+            boolean exists;
+            try (ResultSet rs = statement.executeQuery("SELECT to_regclass('purchases') IS NOT NULL")) {
+                exists = rs.next() && rs.getBoolean(1);
+            }
+            statement.execute("CREATE TABLE IF NOT EXISTS purchases (" +
+                    "user_id INT NOT NULL, " +
+                    "prod_id INT NOT NULL, " +
+                    "quantity INT NOT NULL, " +
+                    "PRIMARY KEY (user_id, prod_id))");
+            if (!exists) {
+                statement.execute("INSERT INTO purchases(user_id, prod_id, quantity) " +
+                        "SELECT user_id, prod_id, SUM(quantity) FROM orders GROUP BY user_id, prod_id " +
+                        "ON CONFLICT DO NOTHING");
+            }
+            // Orders keep the cached histories up to date; changes made any other way are sent to the listener
+            if (ChangeListener.isEnabled()) {
+                ChangeListener.install(con, "purchases", "user_id", false, true);
+            }
+            con.commit();
+            con.setAutoCommit(true);
+        }
+        catch (SQLException e) {
+	    System.out.println(e.getMessage());
         }
     }
 
-    public void storeInRedis(String key, String json) {
-	try {
-	        Jedis jedis = connectToRedis(); // Adjust host and port if necessary
-	        if (jedis != null) {
-	            jedis.set(key, json);
-	            jedis.close();
+    /**
+     * Retrieves several keys at once: each is looked up in the L1 cache, and the rest are fetched from
+     * Redis with one MGET.
+     * @param keys are the cache keys.
+     * @return The cached values in the order of the keys, null where a key is not cached.
+     */
+    public String[] retrieveManyFromRedis(String... keys) {
+	String[] values = new String[keys.length];
+	List<Integer> missing = new ArrayList<>();
+	for (int i = 0; i < keys.length; i++) {
+		values[i] = NearCache.get(keys[i]);
+		if (values[i] == null) {
+			missing.add(i);
+		}
+	}
+	if (missing.isEmpty()) {
+		return values;
+	}
+	String[] missingKeys = new String[missing.size()];
+	for (int i = 0; i < missingKeys.length; i++) {
+		missingKeys[i] = keys[missing.get(i)];
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        List<String> fetched = jedis.mget(missingKeys);
+	        for (int i = 0; i < missingKeys.length; i++) {
+	                values[missing.get(i)] = fetched.get(i);
+	                NearCache.put(missingKeys[i], fetched.get(i));
 	        }
 	} catch (Exception e) {
-		System.out.println("Failed to store in Redis: " + e.getMessage());
+		System.out.println("Failed to retrieve from Redis: " + e.getMessage());
 	}
+	return values;
     }
 
     public String retrieveFromRedis(String key) {
-	try {
-	        Jedis jedis = connectToRedis(); // Adjust host and port if necessary
-	        if (jedis != null) {
-	            String value = jedis.get(key);
-	            jedis.close();
-	            return value;
-	        }
-        return null;
+	// Serve hot keys from the in-process cache before asking Redis
+	String local = NearCache.get(key);
+	if (local != null) {
+		return local;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        String value = jedis.get(key);
+	        NearCache.put(key, value);
+	        return value;
 	} catch (Exception e) {
 		System.out.println("Failed to retrieve from Redis: " + e.getMessage());
 		return null;
 	}
     }
 
-    public void invalidateInRedis(String key) {
-	try {
-	        Jedis jedis = connectToRedis(); // Adjust host and port if necessary
-	        if (jedis != null) {
-	            jedis.del(key);
-	            jedis.close();
+    /**
+     * Records that the row behind a key does not exist. The tombstone is only written if the key is still
+     * absent in Redis, so it cannot hide a row that was created while this lookup was running.
+     * @param key is the cache key of the missing row.
+     */
+    public void storeTombstone(String key) {
+	if (!NegativeCache.enabled) {
+		return;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        if ("OK".equals(jedis.set(key, NegativeCache.TOMBSTONE, SetParams.setParams().nx().px(NegativeCache.ttlMillis)))) {
+	                NearCache.put(key, NegativeCache.TOMBSTONE, NegativeCache.ttlMillis);
+	                Metrics.increment("negativecache.stores");
 	        }
 	} catch (Exception e) {
-		System.out.println("Failed to invalidate in Redis: " + e.getMessage());
+		System.out.println("Failed to store tombstone in Redis: " + e.getMessage());
 	}
     }
 
+    /**
+     * Invalidates the cached row of a key after a write.
+     * @param key is the cache key of the row.
+     * @param version is the version of the row after the write, or a version taken after it was deleted, so
+     *        that reads that started before the write cannot fill the cache with the old row.
+     */
+    public void invalidateInRedis(String key, long version) {
+	// The row was just written, so this instance reads it from the primary for a while
+	ReplicaRouter.wrote(key);
+	// Drop the local copy now; the DEL and the invalidation for the other instances go out in the next batch.
+	// The change listener invalidates the row again once the change commits, as a backstop
+	CacheWriter.delete(key, version);
+    }
+
     public static void shutdownPool() {
+        // Flush the orders that are still queued while the database is reachable
+        if (hotInventory != null) {
+            hotInventory.shutdown();
+        }
+        if (orderLog != null) {
+            orderLog.shutdown();
+        }
+        if (batcher != null) {
+            batcher.shutdown();
+        }
         if (dataSource != null && !dataSource.isClosed()) {
             dataSource.close();
             System.out.println("Order Database connection pool successfully shut down.");
         }
+        ChangeListener.shutdown();
+        ReplicaRouter.shutdown();
+        // Send the cache writes still queued while Redis is reachable
+        CacheWriter.shutdown();
+        NearCache.shutdown();
+        RedisPool.shutdown();
+    }
+
+    /**
+     * Places an order as a single transaction: the stock of the product is decremented relative to its
+     * current value, guarded so it can never go negative, and the order row is inserted in the same commit.
+     * Concurrent orders on the same product therefore queue on the row lock instead of overwriting each other.
+     * @param user_id is the ID of the user making the order.
+     * @param prod_id is the ID of the product being bought.
+     * @param quantity is the quantity of the bought product.
+     * When batching is enabled the order is handed to the batcher and shares its transaction with
+     * other concurrent orders, otherwise it is committed on its own. Orders for hot products only reserve
+     * their stock in Redis and are written to the database later (see HotInventory). In fast-ack mode the
+     * other orders go through logOrder instead.
+     * @return The outcome of the order, naming the check that failed if it was rejected.
+     */
+    public OrderResult placeOrder(int user_id, int prod_id, int quantity) {
+        if (quantity <= 0) {
+            return OrderResult.INVALID_QUANTITY;
+        }
+        if (hotInventory != null && hotInventory.isHot(prod_id)) {
+            // A reservation is answered before its order is written, so its user is checked now rather than
+            // by the foreign key
+            if (getUser(user_id).equals("")) {
+                return OrderResult.USER_NOT_FOUND;
+            }
+            OrderResult reserved = hotInventory.reserve(user_id, prod_id, quantity);
+            if (reserved != null) {
+                return reserved;
+            }
+        }
+        if (batcher != null) {
+            return batcher.submit(user_id, prod_id, quantity);
+        }
+        return placeSingleOrder(user_id, prod_id, quantity);
     }
 
     /**
-     * Creates a new user in the database.
+     * In fast-ack mode, appends an order to the local order log instead of writing it; its stock is only
+     * checked when the log is applied, so the order is accepted rather than placed. Orders for hot products
+     * are not logged, since they reserve their stock in Redis.
      * @param user_id is the ID of the user making the order.
      * @param prod_id is the ID of the product being bought.
      * @param quantity is the quantity of the bought product.
-     * @return An HTTP status code representing the result of the operation.
+     * @return The reference of the order, "<node>:<seq>", to look its outcome up with getLoggedOrder; "" if it
+     *         could not be logged; or null if the order is not logged and goes through placeOrder.
      */
-    public int placeOrder(int user_id, int prod_id, int quantity, int newQuantity) {
-        String sql = "INSERT INTO orders(user_id, prod_id, quantity) VALUES(?, ?, ?)";
+    public String logOrder(int user_id, int prod_id, int quantity) {
+        if (orderLog == null || quantity <= 0 || (hotInventory != null && hotInventory.isHot(prod_id))) {
+            return null;
+        }
+        long seq = orderLog.append(user_id, prod_id, quantity);
+        return seq == 0 ? "" : orderLog.node() + ":" + seq;
+    }
+
+    /**
+     * Looks up the outcome of an order accepted in fast-ack mode, on any instance.
+     * @param reference is the reference returned by logOrder.
+     * @return SUCCESS once the order is written, the reason it was dropped (e.g. INSUFFICIENT_STOCK), ACCEPTED
+     *         while it waits in a log, or null if the reference names no order of this instance's log.
+     * @throws SQLException If the database could not be reached.
+     */
+    public OrderResult getLoggedOrder(String reference) throws SQLException {
+        int separator = reference.lastIndexOf(':');
+        UUID node;
+        long seq;
+        try {
+            node = UUID.fromString(reference.substring(0, separator));
+            seq = Long.parseLong(reference.substring(separator + 1));
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return null;
+        }
+        String sql = "SELECT NULL FROM orders WHERE log_node = ? AND log_seq = ? " +
+                "UNION ALL SELECT reason FROM order_log_rejections WHERE log_node = ? AND log_seq = ?";
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sql)) {
-            statement.setInt(1, user_id);
-            statement.setInt(2, prod_id);
-            statement.setInt(3, quantity);
-            statement.executeUpdate();
-
-            int updated = updateQuantity(prod_id, newQuantity);
-	    // Invalidate the Redis cache
-	    invalidateInRedis("orders:" + user_id);
-            return updated; // OK - User created successfully
-        }
-        // The PostgreSQL 23505 UNIQUE VIOLATION error occurs when a unique constraint is violated. See the link below
-        // https://www.metisdata.io/knowledgebase/errors/postgresql-23505#:~:text=The%20PostgreSQL%
-        // 2023505%20UNIQUE%20VIOLATION,fail%20to%20complete%20the%20operation.
+            statement.setObject(1, node);
+            statement.setLong(2, seq);
+            statement.setObject(3, node);
+            statement.setLong(4, seq);
+            try (ResultSet rs = statement.executeQuery()) {
+                if (rs.next()) {
+                    String reason = rs.getString(1);
+                    return reason == null ? OrderResult.SUCCESS : OrderResult.valueOf(reason);
+                }
+            }
+        }
+        // Orders of other instances' logs cannot be told apart from unknown ones until they are applied
+        if (orderLog != null && orderLog.node().equals(node) && !orderLog.issued(seq)) {
+            return null;
+        }
+        return OrderResult.ACCEPTED;
+    }
+
+    /**
+     * Places one order in its own transaction.
+     */
+    private OrderResult placeSingleOrder(int user_id, int prod_id, int quantity) {
+        String decrement = "UPDATE products SET quantity = quantity - ?, version = nextval('products_version_seq') WHERE id = ? AND quantity >= ? RETURNING version";
+        String insert = "INSERT INTO orders(user_id, prod_id, quantity) VALUES(?, ?, ?)";
+        boolean begun;
+        long version;
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement update = con.prepareStatement(decrement);
+                 PreparedStatement statement = con.prepareStatement(insert);
+                 PreparedStatement summary = con.prepareStatement(ADD_PURCHASE)) {
+                update.setInt(1, quantity);
+                update.setInt(2, prod_id);
+                update.setInt(3, quantity);
+                try (ResultSet decremented = update.executeQuery()) {
+                    if (!decremented.next()) {
+                        con.rollback();
+                        return productExists(con, prod_id) ? OrderResult.INSUFFICIENT_STOCK : OrderResult.PRODUCT_NOT_FOUND;
+                    }
+                    version = decremented.getLong(1);
+                }
+
+                statement.setInt(1, user_id);
+                statement.setInt(2, prod_id);
+                statement.setInt(3, quantity);
+                statement.executeUpdate();
+
+                summary.setInt(1, user_id);
+                summary.setInt(2, prod_id);
+                summary.setInt(3, quantity);
+                summary.executeUpdate();
+                begun = commitOrders(con, Set.of(user_id));
+            }
+            catch (SQLException e) {
+                con.rollback();
+                // 23503 is a foreign key violation, the only foreign key left to fail is the user
+                if ("23503".equals(e.getSQLState())) {
+                    return OrderResult.USER_NOT_FOUND;
+                }
+                System.out.println(e.getMessage());
+                return OrderResult.DATABASE_ERROR;
+            }
+            finally {
+                con.setAutoCommit(true);
+            }
+        }
         catch (SQLException e) {
-            if (e.getSQLState().equals("23505")) {
-                return 409; // Duplicate entry
+            System.out.println(e.getMessage());
+            return OrderResult.DATABASE_ERROR;
+        }
+
+	// Invalidate the cached product and add the order to the cached purchase history
+	invalidateInRedis("product:" + prod_id, version);
+	purchaseCache.record(Map.of(user_id, Map.of(prod_id, quantity)), begun);
+        return OrderResult.SUCCESS;
+    }
+
+    /**
+     * Writes a batch of orders in one transaction: all guarded stock decrements go out as one JDBC batch,
+     * then the accepted orders are inserted as one batch and everything is committed together.
+     * Products are updated in ID order so that two concurrent batches cannot deadlock on their row locks.
+     * If any statement fails (e.g. an unknown user), the batch is rolled back and every order is retried
+     * in its own transaction so that each caller still gets its own result.
+     * @param batch is the list of orders to write, each of which is completed with its result.
+     */
+    void writeOrderBatch(List<OrderBatcher.PendingOrder> batch) {
+        List<OrderBatcher.PendingOrder> sorted = new ArrayList<>(batch);
+        sorted.sort(Comparator.comparingInt(order -> order.prodId));
+        List<OrderBatcher.PendingOrder> accepted = new ArrayList<>();
+        List<OrderBatcher.PendingOrder> rejected = new ArrayList<>();
+        boolean committed = false;
+        boolean begun = false;
+        Map<Integer, Long> versions = new TreeMap<>();
+
+        String decrement = "UPDATE products SET quantity = quantity - ?, version = nextval('products_version_seq') WHERE id = ? AND quantity >= ?";
+        String insert = "INSERT INTO orders(user_id, prod_id, quantity) VALUES(?, ?, ?)";
+        Map<Integer, Map<Integer, Integer>> purchases = new TreeMap<>();
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement update = con.prepareStatement(decrement);
+                 PreparedStatement statement = con.prepareStatement(insert);
+                 PreparedStatement summary = con.prepareStatement(ADD_PURCHASE)) {
+                for (OrderBatcher.PendingOrder order : sorted) {
+                    update.setInt(1, order.quantity);
+                    update.setInt(2, order.prodId);
+                    update.setInt(3, order.quantity);
+                    update.addBatch();
+                }
+                int[] updated = update.executeBatch();
+                for (int i = 0; i < sorted.size(); i++) {
+                    (updated[i] == 0 ? rejected : accepted).add(sorted.get(i));
+                }
+
+                for (OrderBatcher.PendingOrder order : accepted) {
+                    statement.setInt(1, order.userId);
+                    statement.setInt(2, order.prodId);
+                    statement.setInt(3, order.quantity);
+                    statement.addBatch();
+                }
+                if (!accepted.isEmpty()) {
+                    statement.executeBatch();
+                }
+
+                // One summary row per user and product, in key order so concurrent batches lock rows in the same order
+                for (OrderBatcher.PendingOrder order : accepted) {
+                    purchases.computeIfAbsent(order.userId, id -> new TreeMap<>()).merge(order.prodId, order.quantity, Integer::sum);
+                }
+                for (Map.Entry<Integer, Map<Integer, Integer>> user : purchases.entrySet()) {
+                    for (Map.Entry<Integer, Integer> purchase : user.getValue().entrySet()) {
+                        summary.setInt(1, user.getKey());
+                        summary.setInt(2, purchase.getKey());
+                        summary.setInt(3, purchase.getValue());
+                        summary.addBatch();
+                    }
+                }
+                if (!purchases.isEmpty()) {
+                    summary.executeBatch();
+                }
+                Set<Integer> products = new TreeSet<>();
+                for (OrderBatcher.PendingOrder order : accepted) {
+                    products.add(order.prodId);
+                }
+                versions = productVersions(con, products);
+                begun = commitOrders(con, purchases.keySet());
+                committed = true;
             }
-            else {
-                return 400; // Internal Server Error
+            catch (SQLException e) {
+                con.rollback();
+                con.setAutoCommit(true);
+                Metrics.increment("order.batch.fallbacks");
+                for (OrderBatcher.PendingOrder order : sorted) {
+                    order.result.complete(placeSingleOrder(order.userId, order.prodId, order.quantity));
+                }
+                return;
+            }
+            con.setAutoCommit(true);
+
+            // The accepted orders are committed at this point, so a failure below only affects the rejected ones
+            for (OrderBatcher.PendingOrder order : rejected) {
+                try {
+                    order.result.complete(productExists(con, order.prodId)
+                            ? OrderResult.INSUFFICIENT_STOCK : OrderResult.PRODUCT_NOT_FOUND);
+                }
+                catch (SQLException e) {
+                    order.result.complete(OrderResult.DATABASE_ERROR);
+                }
+            }
+        }
+        catch (SQLException e) {
+            System.out.println(e.getMessage());
+            if (!committed) {
+                for (OrderBatcher.PendingOrder order : sorted) {
+                    order.result.complete(OrderResult.DATABASE_ERROR);
+                }
+                return;
             }
         }
+
+        // Invalidate each affected product once per batch and add the orders to the cached purchase histories
+        for (Map.Entry<Integer, Long> product : versions.entrySet()) {
+            invalidateInRedis("product:" + product.getKey(), product.getValue());
+        }
+        if (!purchases.isEmpty()) {
+            purchaseCache.record(purchases, begun);
+        }
+        for (OrderBatcher.PendingOrder order : accepted) {
+            order.result.complete(OrderResult.SUCCESS);
+        }
     }
 
     /**
-     * Retrieves a user's information from the database based on the user ID.
+     * Writes reservations made in Redis for hot products in one transaction: the orders are inserted with
+     * their reservation ids, skipping any already written by an earlier attempt, and only the inserted ones
+     * decrement the stock and add to the purchase totals. Products and purchases are updated in key order, as
+     * the order batches do. If a foreign key fails (e.g. the user is gone), every reservation is retried in its
+     * own transaction.
+     * A skipped reservation whose id belongs to a different order is a collision of reservation ids; it is
+     * logged, counted as inventory.hot.idConflicts and returned with the rejected ones. The stock was checked
+     * when it was reserved, but the decrements are still guarded: a product whose row has too little left
+     * (its stock was changed behind the counter) loses the batch's orders for it, which are logged and counted
+     * as inventory.hot.oversold.
+     * @param batch is the list of reservations to write.
+     * @return The reservations that could not be written because their user or product does not exist, or
+     *         their id was taken; their stock goes back to the counters.
+     * @throws SQLException If the database could not be reached, in which case the batch must be retried.
+     */
+    List<HotInventory.Reservation> writeReservations(List<HotInventory.Reservation> batch) throws SQLException {
+        try {
+            return writeReservationBatch(batch);
+        }
+        catch (SQLException e) {
+            if (!"23503".equals(e.getSQLState())) {
+                throw e;
+            }
+        }
+        Metrics.increment("inventory.hot.fallbacks");
+        List<HotInventory.Reservation> rejected = new ArrayList<>();
+        for (HotInventory.Reservation reservation : batch) {
+            try {
+                rejected.addAll(writeReservationBatch(List.of(reservation)));
+            }
+            catch (SQLException e) {
+                if (!"23503".equals(e.getSQLState())) {
+                    throw e;
+                }
+                rejected.add(reservation);
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * @return The reservations of the batch whose ids are taken by other orders.
+     */
+    private List<HotInventory.Reservation> writeReservationBatch(List<HotInventory.Reservation> batch) throws SQLException {
+        String insert = "INSERT INTO orders(reservation_id, user_id, prod_id, quantity) " +
+                "SELECT * FROM unnest(?::bigint[], ?::int[], ?::int[], ?::int[]) " +
+                "ON CONFLICT (reservation_id) DO NOTHING RETURNING reservation_id";
+        String existing = "SELECT reservation_id, user_id, prod_id, quantity FROM orders WHERE reservation_id = ANY(?)";
+        String decrement = "UPDATE products SET quantity = quantity - ?, version = nextval('products_version_seq') WHERE id = ? AND quantity >= ?";
+        String remove = "DELETE FROM orders WHERE reservation_id = ANY(?)";
+        Long[] ids = new Long[batch.size()];
+        Integer[] users = new Integer[batch.size()];
+        Integer[] products = new Integer[batch.size()];
+        Integer[] quantities = new Integer[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            HotInventory.Reservation reservation = batch.get(i);
+            ids[i] = reservation.id;
+            users[i] = reservation.userId;
+            products[i] = reservation.prodId;
+            quantities[i] = reservation.quantity;
+        }
+
+        List<HotInventory.Reservation> conflicts = new ArrayList<>();
+        Map<Integer, List<HotInventory.Reservation>> inserted = new TreeMap<>();
+        Map<Integer, Map<Integer, Integer>> purchases = new TreeMap<>();
+        Map<Integer, Long> versions;
+        boolean begun;
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement statement = con.prepareStatement(insert);
+                 PreparedStatement update = con.prepareStatement(decrement);
+                 PreparedStatement summary = con.prepareStatement(ADD_PURCHASE)) {
+                statement.setArray(1, con.createArrayOf("bigint", ids));
+                statement.setArray(2, con.createArrayOf("integer", users));
+                statement.setArray(3, con.createArrayOf("integer", products));
+                statement.setArray(4, con.createArrayOf("integer", quantities));
+                Set<Long> written = new HashSet<>();
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        written.add(rs.getLong(1));
+                    }
+                }
+                List<HotInventory.Reservation> skipped = new ArrayList<>();
+                for (HotInventory.Reservation reservation : batch) {
+                    if (written.contains(reservation.id)) {
+                        inserted.computeIfAbsent(reservation.prodId, id -> new ArrayList<>()).add(reservation);
+                    } else {
+                        skipped.add(reservation);
+                    }
+                }
+                if (!skipped.isEmpty()) {
+                    conflicts = findConflicts(con, existing, skipped);
+                }
+
+                List<Integer> stocked = new ArrayList<>(inserted.keySet());
+                for (Map.Entry<Integer, List<HotInventory.Reservation>> product : inserted.entrySet()) {
+                    int quantity = 0;
+                    for (HotInventory.Reservation reservation : product.getValue()) {
+                        quantity += reservation.quantity;
+                    }
+                    update.setInt(1, quantity);
+                    update.setInt(2, product.getKey());
+                    update.setInt(3, quantity);
+                    update.addBatch();
+                }
+                if (!stocked.isEmpty()) {
+                    int[] updated = update.executeBatch();
+                    List<Long> oversold = new ArrayList<>();
+                    for (int i = 0; i < updated.length; i++) {
+                        if (updated[i] == 0) {
+                            for (HotInventory.Reservation reservation : inserted.remove(stocked.get(i))) {
+                                System.out.println("Dropped reservation " + reservation.id + " of user " + reservation.userId
+                                        + ": product " + reservation.prodId + " has too little stock left");
+                                oversold.add(reservation.id);
+                            }
+                        }
+                    }
+                    if (!oversold.isEmpty()) {
+                        try (PreparedStatement delete = con.prepareStatement(remove)) {
+                            delete.setArray(1, con.createArrayOf("bigint", oversold.toArray()));
+                            delete.executeUpdate();
+                        }
+                        Metrics.counter("inventory.hot.oversold").add(oversold.size());
+                    }
+                }
+                versions = productVersions(con, inserted.keySet());
+                for (List<HotInventory.Reservation> product : inserted.values()) {
+                    for (HotInventory.Reservation reservation : product) {
+                        purchases.computeIfAbsent(reservation.userId, id -> new TreeMap<>())
+                                 .merge(reservation.prodId, reservation.quantity, Integer::sum);
+                    }
+                }
+                for (Map.Entry<Integer, Map<Integer, Integer>> user : purchases.entrySet()) {
+                    for (Map.Entry<Integer, Integer> purchase : user.getValue().entrySet()) {
+                        summary.setInt(1, user.getKey());
+                        summary.setInt(2, purchase.getKey());
+                        summary.setInt(3, purchase.getValue());
+                        summary.addBatch();
+                    }
+                }
+                if (!purchases.isEmpty()) {
+                    summary.executeBatch();
+                }
+                begun = commitOrders(con, purchases.keySet());
+            }
+            catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+            finally {
+                con.setAutoCommit(true);
+            }
+        }
+
+        for (Map.Entry<Integer, Long> product : versions.entrySet()) {
+            invalidateInRedis("product:" + product.getKey(), product.getValue());
+        }
+        if (!purchases.isEmpty()) {
+            purchaseCache.record(purchases, begun);
+        }
+        return conflicts;
+    }
+
+    /**
+     * Compares reservations that were not inserted with the orders that hold their ids. Those that match
+     * were written by an earlier attempt; the others collide with an unrelated order.
+     * @return The colliding reservations.
+     */
+    private List<HotInventory.Reservation> findConflicts(Connection con, String existing,
+                                                         List<HotInventory.Reservation> skipped) throws SQLException {
+        Map<Long, String> orders = new HashMap<>();
+        Long[] ids = new Long[skipped.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = skipped.get(i).id;
+        }
+        try (PreparedStatement statement = con.prepareStatement(existing)) {
+            statement.setArray(1, con.createArrayOf("bigint", ids));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    orders.put(rs.getLong(1), rs.getInt(2) + ":" + rs.getInt(3) + ":" + rs.getInt(4));
+                }
+            }
+        }
+        List<HotInventory.Reservation> conflicts = new ArrayList<>();
+        for (HotInventory.Reservation reservation : skipped) {
+            String order = orders.get(reservation.id);
+            if (!(reservation.userId + ":" + reservation.prodId + ":" + reservation.quantity).equals(order)) {
+                System.out.println("Reservation id " + reservation.id + " is taken by another order; the reservation of user "
+                        + reservation.userId + " for product " + reservation.prodId + " is not written");
+                Metrics.increment("inventory.hot.idConflicts");
+                conflicts.add(reservation);
+            }
+        }
+        return conflicts;
+    }
+
+    /**
+     * Writes orders taken from the local order log in one transaction. Orders of the batch that an earlier
+     * attempt already wrote are found by their (log_node, log_seq) and skipped. The others take their stock
+     * with the usual guarded decrements, in product and then log order; an order that finds too little stock
+     * was accepted already and is dropped, counted as order.wal.rejected and recorded in order_log_rejections
+     * with its reason, so that its outcome can be looked up and a later replay of the log skips it. If a
+     * foreign key fails (e.g. the user is gone), every order is retried in its own transaction.
+     * @param node is the node id of the log.
+     * @param batch is the list of logged orders, in log order.
+     * @throws SQLException If the database could not be reached, in which case the batch must be retried.
+     */
+    void writeLoggedOrders(UUID node, List<OrderLog.Entry> batch) throws SQLException {
+        try {
+            writeLoggedBatch(node, batch);
+            return;
+        }
+        catch (SQLException e) {
+            if (!"23503".equals(e.getSQLState()) && (e.getNextException() == null
+                    || !"23503".equals(e.getNextException().getSQLState()))) {
+                throw e;
+            }
+        }
+        Metrics.increment("order.wal.fallbacks");
+        for (OrderLog.Entry entry : batch) {
+            try {
+                writeLoggedBatch(node, List.of(entry));
+            }
+            catch (SQLException e) {
+                SQLException violation = "23503".equals(e.getSQLState()) ? e : e.getNextException();
+                if (violation == null || !"23503".equals(violation.getSQLState())) {
+                    throw e;
+                }
+                // The foreign key that failed is named after its column, e.g. orders_prod_id_fkey
+                OrderResult reason = String.valueOf(violation.getMessage()).contains("prod_id")
+                        ? OrderResult.PRODUCT_NOT_FOUND : OrderResult.USER_NOT_FOUND;
+                try (Connection con = this.connect();
+                     PreparedStatement statement = con.prepareStatement(REJECT_LOGGED)) {
+                    statement.setObject(1, node);
+                    statement.setLong(2, entry.seq);
+                    statement.setString(3, reason.name());
+                    statement.executeUpdate();
+                }
+                Metrics.increment("order.wal.rejected");
+                System.out.println("Dropped logged order " + entry.seq + ": its user or product does not exist");
+            }
+        }
+    }
+
+    private void writeLoggedBatch(UUID node, List<OrderLog.Entry> batch) throws SQLException {
+        String written = "SELECT log_seq FROM orders WHERE log_node = ? AND log_seq = ANY(?) " +
+                "UNION ALL SELECT log_seq FROM order_log_rejections WHERE log_node = ? AND log_seq = ANY(?)";
+        String decrement = "UPDATE products SET quantity = quantity - ?, version = nextval('products_version_seq') WHERE id = ? AND quantity >= ?";
+        String insert = "INSERT INTO orders(log_node, log_seq, user_id, prod_id, quantity) VALUES(?, ?, ?, ?, ?)";
+        Long[] seqs = new Long[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            seqs[i] = batch.get(i).seq;
+        }
+
+        List<OrderLog.Entry> accepted = new ArrayList<>();
+        Map<Integer, Map<Integer, Integer>> purchases = new TreeMap<>();
+        Map<Integer, Long> versions;
+        boolean begun;
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement select = con.prepareStatement(written);
+                 PreparedStatement update = con.prepareStatement(decrement);
+                 PreparedStatement statement = con.prepareStatement(insert);
+                 PreparedStatement reject = con.prepareStatement(REJECT_LOGGED);
+                 PreparedStatement summary = con.prepareStatement(ADD_PURCHASE)) {
+                Set<Long> done = new HashSet<>();
+                select.setObject(1, node);
+                select.setArray(2, con.createArrayOf("bigint", seqs));
+                select.setObject(3, node);
+                select.setArray(4, con.createArrayOf("bigint", seqs));
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        done.add(rs.getLong(1));
+                    }
+                }
+
+                // Stable sort: products in ID order as the order batches lock them, each product's orders in log order
+                List<OrderLog.Entry> pending = new ArrayList<>();
+                for (OrderLog.Entry entry : batch) {
+                    if (!done.contains(entry.seq)) {
+                        pending.add(entry);
+                    }
+                }
+                pending.sort(Comparator.comparingInt(entry -> entry.prodId));
+                for (OrderLog.Entry entry : pending) {
+                    update.setInt(1, entry.quantity);
+                    update.setInt(2, entry.prodId);
+                    update.setInt(3, entry.quantity);
+                    update.addBatch();
+                }
+                int[] updated = pending.isEmpty() ? new int[0] : update.executeBatch();
+                int rejected = 0;
+                for (int i = 0; i < pending.size(); i++) {
+                    OrderLog.Entry entry = pending.get(i);
+                    if (updated[i] == 0) {
+                        reject.setObject(1, node);
+                        reject.setLong(2, entry.seq);
+                        reject.setString(3, OrderResult.INSUFFICIENT_STOCK.name());
+                        reject.addBatch();
+                        rejected++;
+                        System.out.println("Dropped logged order " + entry.seq + ": not enough stock of product " + entry.prodId);
+                        continue;
+                    }
+                    accepted.add(entry);
+                    statement.setObject(1, node);
+                    statement.setLong(2, entry.seq);
+                    statement.setInt(3, entry.userId);
+                    statement.setInt(4, entry.prodId);
+                    statement.setInt(5, entry.quantity);
+                    statement.addBatch();
+                    purchases.computeIfAbsent(entry.userId, id -> new TreeMap<>()).merge(entry.prodId, entry.quantity, Integer::sum);
+                }
+                if (!accepted.isEmpty()) {
+                    statement.executeBatch();
+                }
+                if (rejected > 0) {
+                    reject.executeBatch();
+                    Metrics.counter("order.wal.rejected").add(rejected);
+                }
+                Set<Integer> products = new TreeSet<>();
+                for (OrderLog.Entry entry : accepted) {
+                    products.add(entry.prodId);
+                }
+                versions = productVersions(con, products);
+                for (Map.Entry<Integer, Map<Integer, Integer>> user : purchases.entrySet()) {
+                    for (Map.Entry<Integer, Integer> purchase : user.getValue().entrySet()) {
+                        summary.setInt(1, user.getKey());
+                        summary.setInt(2, purchase.getKey());
+                        summary.setInt(3, purchase.getValue());
+                        summary.addBatch();
+                    }
+                }
+                if (!purchases.isEmpty()) {
+                    summary.executeBatch();
+                }
+                begun = commitOrders(con, purchases.keySet());
+            }
+            catch (SQLException e) {
+                con.rollback();
+                throw e;
+            }
+            finally {
+                con.setAutoCommit(true);
+            }
+        }
+
+        for (Map.Entry<Integer, Long> product : versions.entrySet()) {
+            invalidateInRedis("product:" + product.getKey(), product.getValue());
+        }
+        if (!purchases.isEmpty()) {
+            purchaseCache.record(purchases, begun);
+        }
+    }
+
+    /**
+     * Reads the largest reservation id of the orders, used to seed the hot inventory reservation sequence.
+     * @return The id, or 0 if no order has one.
+     */
+    long lastReservationId() throws SQLException {
+        try (Connection con = this.connect();
+             Statement statement = con.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT COALESCE(max(reservation_id), 0) FROM orders")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Reads the stock of products, used to rebuild the hot inventory counters.
+     * @return The quantity of each product that exists.
+     */
+    Map<Integer, Integer> productStock(Set<Integer> productIds) throws SQLException {
+        Map<Integer, Integer> stock = new LinkedHashMap<>();
+        try (Connection con = this.connect();
+             PreparedStatement statement = con.prepareStatement("SELECT id, quantity FROM products WHERE id = ANY(?)")) {
+            statement.setArray(1, con.createArrayOf("integer", productIds.toArray(new Integer[0])));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    stock.put(rs.getInt(1), rs.getInt(2));
+                }
+            }
+        }
+        return stock;
+    }
+
+    /**
+     * Places every line of a cart in one transaction, so either the whole cart is bought or nothing is.
+     * The products are locked in ID order with a single SELECT ... FOR UPDATE, which checks all of the
+     * stock in one pass and takes row locks in the same order as the order batches do, so the two cannot
+     * deadlock. Lines naming the same product are merged first. Carts naming a hot product are refused.
+     * @param user_id is the ID of the user making the order.
+     * @param lines maps each product ID to the quantity bought, all quantities above 0.
+     * @return The outcome of the cart, naming the first check that failed if it was rejected.
+     */
+    public OrderResult placeCart(int user_id, Map<Integer, Integer> lines) {
+        if (hotInventory != null) {
+            for (Integer prod_id : lines.keySet()) {
+                // The row of a hot product trails its counter in Redis, so it cannot be locked for its stock
+                if (hotInventory.isHot(prod_id)) {
+                    return OrderResult.HOT_PRODUCT_IN_CART;
+                }
+            }
+        }
+        TreeMap<Integer, Integer> sorted = new TreeMap<>(lines);
+        String lock = "SELECT id, quantity FROM products WHERE id = ANY(?) ORDER BY id FOR UPDATE";
+        String decrement = "UPDATE products SET quantity = quantity - ?, version = nextval('products_version_seq') WHERE id = ?";
+        String insert = "INSERT INTO orders(user_id, prod_id, quantity) VALUES(?, ?, ?)";
+        Map<Integer, Long> versions;
+        boolean begun;
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (PreparedStatement select = con.prepareStatement(lock);
+                 PreparedStatement update = con.prepareStatement(decrement);
+                 PreparedStatement statement = con.prepareStatement(insert);
+                 PreparedStatement summary = con.prepareStatement(ADD_PURCHASE)) {
+                select.setArray(1, con.createArrayOf("integer", sorted.keySet().toArray()));
+                Map<Integer, Integer> stock = new TreeMap<>();
+                try (ResultSet rs = select.executeQuery()) {
+                    while (rs.next()) {
+                        stock.put(rs.getInt("id"), rs.getInt("quantity"));
+                    }
+                }
+                for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+                    Integer available = stock.get(line.getKey());
+                    if (available == null || available < line.getValue()) {
+                        con.rollback();
+                        return available == null ? OrderResult.PRODUCT_NOT_FOUND : OrderResult.INSUFFICIENT_STOCK;
+                    }
+                }
+
+                // Every row is locked and has enough stock, so the updates cannot fail their guard
+                for (Map.Entry<Integer, Integer> line : sorted.entrySet()) {
+                    update.setInt(1, line.getValue());
+                    update.setInt(2, line.getKey());
+                    update.addBatch();
+                    statement.setInt(1, user_id);
+                    statement.setInt(2, line.getKey());
+                    statement.setInt(3, line.getValue());
+                    statement.addBatch();
+                    summary.setInt(1, user_id);
+                    summary.setInt(2, line.getKey());
+                    summary.setInt(3, line.getValue());
+                    summary.addBatch();
+                }
+                update.executeBatch();
+                statement.executeBatch();
+                summary.executeBatch();
+                versions = productVersions(con, sorted.keySet());
+                begun = commitOrders(con, Set.of(user_id));
+            }
+            catch (SQLException e) {
+                con.rollback();
+                // 23503 is a foreign key violation, the only foreign key left to fail is the user
+                if ("23503".equals(e.getSQLState()) || (e.getNextException() != null
+                        && "23503".equals(e.getNextException().getSQLState()))) {
+                    return OrderResult.USER_NOT_FOUND;
+                }
+                System.out.println(e.getMessage());
+                return OrderResult.DATABASE_ERROR;
+            }
+            finally {
+                con.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e) {
+            System.out.println(e.getMessage());
+            return OrderResult.DATABASE_ERROR;
+        }
+
+        // Invalidate the cached products and add the whole cart to the cached purchase history at once
+        for (Map.Entry<Integer, Long> product : versions.entrySet()) {
+            invalidateInRedis("product:" + product.getKey(), product.getValue());
+        }
+        purchaseCache.record(Map.of(user_id, sorted), begun);
+        return OrderResult.SUCCESS;
+    }
+
+    /**
+     * Commits a transaction that holds orders, with the purchase histories of their users marked as having
+     * orders in flight (see PurchaseCache.begin). If the commit fails the histories are dropped.
+     * @param userIds are the users of the orders.
+     * @return The result of PurchaseCache.begin, to pass on to PurchaseCache.record.
+     */
+    private boolean commitOrders(Connection con, Set<Integer> userIds) throws SQLException {
+        boolean begun = purchaseCache.begin(userIds);
+        try {
+            con.commit();
+        }
+        catch (SQLException e) {
+            purchaseCache.abandon(userIds, begun);
+            throw e;
+        }
+        return begun;
+    }
+
+    /**
+     * Reads the versions that the current transaction gave the products it changed, so that their
+     * invalidations refuse fills of the rows as they were before (see VersionedCache). The transaction
+     * holds the row locks, so no other write can have changed them since.
+     */
+    private Map<Integer, Long> productVersions(Connection con, Set<Integer> prodIds) throws SQLException {
+        Map<Integer, Long> versions = new TreeMap<>();
+        if (prodIds.isEmpty()) {
+            return versions;
+        }
+        try (PreparedStatement statement = con.prepareStatement("SELECT id, version FROM products WHERE id = ANY(?)")) {
+            statement.setArray(1, con.createArrayOf("integer", prodIds.toArray(new Integer[0])));
+            try (ResultSet rs = statement.executeQuery()) {
+                while (rs.next()) {
+                    versions.put(rs.getInt(1), rs.getLong(2));
+                }
+            }
+        }
+        return versions;
+    }
+
+    /**
+     * Checks whether a product row exists, used to tell a missing product apart from one that is out of stock.
+     */
+    private boolean productExists(Connection con, int prod_id) throws SQLException {
+        try (PreparedStatement statement = con.prepareStatement("SELECT 1 FROM products WHERE id = ?")) {
+            statement.setInt(1, prod_id);
+            try (ResultSet rs = statement.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Retrieves the purchase history of a user: the cached history if there is one, otherwise the
+     * user's rows of the purchases table, which already hold one total per product.
      * @param id is the ID of the user.
      * @return A JSON string containing the products ID as a key and quantity as a value
      */
     public String getPurchased(int user_id) {
-	// Attempt to retrieve from Redis
-	String cachedOrder = retrieveFromRedis("orders:" + user_id);
-	if (cachedOrder != null) {
-		return cachedOrder;
+	// Attempt to retrieve from the L1 cache or Redis
+	PurchaseCache.Lookup cached = purchaseCache.get(user_id);
+	if (cached.json != null) {
+		return cached.json;
 	}
+	// Concurrent misses of the same history share one query
+	return purchaseLoads.load(PurchaseCache.key(user_id), () -> loadPurchased(user_id, cached.version));
+    }
 
-        String sql = "SELECT prod_id, quantity FROM orders WHERE user_id = ?";
-        try (Connection con = this.connect();
+    /**
+     * Reads a purchase history from the purchases table and caches it.
+     * @param version is the cache version seen by the lookup that missed.
+     */
+    private String loadPurchased(int user_id, String version) {
+        String sql = "SELECT prod_id, quantity FROM purchases WHERE user_id = ? ORDER BY prod_id";
+        boolean replica = ReplicaRouter.useReplica(PurchaseCache.key(user_id));
+        try (Connection con = ReplicaRouter.connect(dataSource, replica);
              PreparedStatement statement = con.prepareStatement(sql)) {
             statement.setInt(1, user_id);
             ResultSet current = statement.executeQuery();
-	    JSONObject finalJSON = new JSONObject();
+	    Map<Integer, Integer> purchases = new LinkedHashMap<>();
             while (current.next()) {
-                String prodId = Integer.toString(current.getInt("prod_id"));
-                int quantity = current.getInt("quantity");
+                purchases.put(current.getInt("prod_id"), current.getInt("quantity"));
+            }
+	    String purchasesJson = Payloads.purchases(purchases);
+	    // Store in Redis unless an order came in while we were reading. Histories have no row version to
+	    // refuse a stale replica read with, so one read from the replica is only kept for a short while
+	    purchaseCache.fill(user_id, version, purchases, purchasesJson,
+	                       replica ? PurchaseCache.replicaTtlMillis : PurchaseCache.ttlMillis);
+            return purchasesJson;
+        }
+        catch (SQLException e) {
+            return String.format("{\"error_message\": \"Get Order for user_id %d Did Not Work\"}", user_id);
+        }
+    }
 
-		if (finalJSON.has(prodId)) {
-			finalJSON.put(prodId, finalJSON.getInt(prodId) + quantity);
-		}
-		else {
-			finalJSON.put(prodId, quantity);
-		}
+    /**
+     * Writes one page of a user's individual orders, oldest first, straight from the database. Pages are
+     * found by keyset: each page starts after the last order id of the previous one, so a page costs the
+     * same however deep into the history it is, and orders placed meanwhile never shift the pages.
+     * @param writer receives the page, {"orders": [...], "next": <order id or null>}.
+     * @param user_id is the ID of the user.
+     * @param after is the order id the page starts after, 0 for the first page.
+     * @param limit is the most orders on the page.
+     * @param from keeps only orders placed at or after this time, or null.
+     * @param to keeps only orders placed before this time, or null.
+     * @return false if the database could not be read; the writer then holds a partial page.
+     */
+    public boolean writeOrderPage(JsonWriter writer, int user_id, int after, int limit, Timestamp from, Timestamp to) {
+        StringBuilder sql = new StringBuilder("SELECT id, prod_id, quantity, created_at FROM orders WHERE user_id = ? AND id > ?");
+        if (from != null) {
+            sql.append(" AND created_at >= ?");
+        }
+        if (to != null) {
+            sql.append(" AND created_at < ?");
+        }
+        // One extra row tells whether there is a next page
+        sql.append(" ORDER BY id LIMIT ?");
+
+        try (Connection con = this.connectForRead(PurchaseCache.key(user_id));
+             PreparedStatement statement = con.prepareStatement(sql.toString())) {
+            int index = 1;
+            statement.setInt(index++, user_id);
+            statement.setInt(index++, after);
+            if (from != null) {
+                statement.setTimestamp(index++, from);
+            }
+            if (to != null) {
+                statement.setTimestamp(index++, to);
+            }
+            statement.setInt(index, limit + 1);
+            ResultSet rs = statement.executeQuery();
 
+            Payloads.beginOrderPage(writer);
+            int rows = 0;
+            int last = after;
+            boolean more = false;
+            while (rs.next()) {
+                if (rows == limit) {
+                    more = true;
+                    break;
+                }
+                Timestamp placed = rs.getTimestamp("created_at");
+                last = rs.getInt("id");
+                Payloads.orderEntry(writer, last, rs.getInt("prod_id"), rs.getInt("quantity"),
+                                    placed == null ? null : placed.toInstant().toString());
+                rows++;
             }
-	    // Store in Redis when successful
-	    storeInRedis("orders:" + user_id, finalJSON.toString());
-            return finalJSON.toString();
+            Payloads.endOrderPage(writer, more ? last : null);
+            Metrics.histogram("purchases.page.rows").record(rows);
+            return true;
         }
         catch (SQLException e) {
-            return String.format("{\"error_message\": \"Get Order for user_id %d Did Not Work\"}", user_id);
+            System.out.println(e.getMessage());
+            return false;
         }
     }
 
+    /**
+     * Checks that the user and the product of an order exist before the order is written. Both are read
+     * from the cache in one round trip; whatever is not cached is loaded from the database concurrently,
+     * the product on a lookup thread and the user on the calling thread, under one shared deadline.
+     * The stock itself is checked by the guarded update in the order transaction, so a product that
+     * cannot be looked up in time is left for that transaction to judge.
+     * @param user_id is the ID of the user making the order.
+     * @param prod_id is the ID of the product being bought.
+     * @return SUCCESS, USER_NOT_FOUND or PRODUCT_NOT_FOUND.
+     */
+    public OrderResult validateOrder(int user_id, int prod_id) {
+	long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(validationTimeoutMillis);
+	String userKey = "user:" + user_id;
+	String productKey = "product:" + prod_id;
+	String[] cached = retrieveManyFromRedis(userKey, productKey);
+
+	CompletableFuture<String> product;
+	if (cached[1] != null) {
+		product = CompletableFuture.completedFuture(NegativeCache.hit(cached[1]) ? "" : cached[1]);
+	} else {
+		product = CompletableFuture.supplyAsync(() -> productLoads.load(productKey, () -> loadProduct(prod_id)), lookups);
+	}
+	String user;
+	if (cached[0] != null) {
+		user = NegativeCache.hit(cached[0]) ? "" : cached[0];
+	} else {
+		user = userLoads.load(userKey, () -> loadUser(user_id));
+	}
+	if (user.equals("")) {
+		return OrderResult.USER_NOT_FOUND;
+	}
+
+	try {
+		String productJson = product.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+		return productJson.equals("") ? OrderResult.PRODUCT_NOT_FOUND : OrderResult.SUCCESS;
+	} catch (TimeoutException | ExecutionException e) {
+		Metrics.increment("order.validation.productUnknown");
+		return OrderResult.SUCCESS;
+	} catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return OrderResult.SUCCESS;
+	}
+    }
+
     /**
      * Retrieves a user's information from the database based on the user ID.
      * @param id is the ID of the user to retrieve.
@@ -226,11 +1291,22 @@ class OrderDatabase {
     public String getUser(int id) {
 	// Attempt to retrieve from Redis
 	String cachedUser = retrieveFromRedis("user:" + id);
+	if (NegativeCache.hit(cachedUser)) {
+		return "";
+	}
 	if (cachedUser != null) {
 		return cachedUser;
 	}
-        String sql = "SELECT id, username, email, password FROM users WHERE id = ?";
-        try (Connection con = this.connect();
+	// Concurrent misses of the same user share one query
+	return userLoads.load("user:" + id, () -> loadUser(id));
+    }
+
+    /**
+     * Reads a user from the database and caches the result, or a tombstone if there is no such user.
+     */
+    private String loadUser(int id) {
+        String sql = "SELECT id, username, email, password, version FROM users WHERE id = ? AND NOT deleted";
+        try (Connection con = this.connectForRead("user:" + id);
              PreparedStatement statement = con.prepareStatement(sql)) {
             statement.setInt(1, id);
             ResultSet current = statement.executeQuery();
@@ -239,9 +1315,11 @@ class OrderDatabase {
                 String username = current.getString("username");
                 String email = current.getString("email");
                 String encryptedPassword = hashPassword(current.getString("password"));
-                return String.format("{\"id\": %d, \"username\": \"%s\"," +
-                        " \"email\": \"%s\", \"password\": \"%s\"}", userId, username, email, encryptedPassword);
+                String userJson = Payloads.user(userId, username, email, encryptedPassword);
+                VersionedCache.store("user:" + id, userJson, current.getLong("version"), false);
+                return userJson;
             }
+            storeTombstone("user:" + id);
         }
         catch (SQLException e) {
             return "";
@@ -258,11 +1336,22 @@ class OrderDatabase {
     public String getProduct(int id) {
 	// Attempt to retrieve from Redis
 	String cachedProduct = retrieveFromRedis("product:" + id);
+	if (NegativeCache.hit(cachedProduct)) {
+		return "";
+	}
 	if (cachedProduct != null) {
 		return cachedProduct;
 	}
-        String sql = "SELECT id, name, description, price, quantity FROM products WHERE id = ?"; // Make sure the table name is 'products' not 'users'
-        try (Connection con = this.connect();
+	// Concurrent misses of the same product share one query
+	return productLoads.load("product:" + id, () -> loadProduct(id));
+    }
+
+    /**
+     * Reads a product from the database and caches the result, or a tombstone if there is no such product.
+     */
+    private String loadProduct(int id) {
+        String sql = "SELECT id, name, description, price, quantity, version FROM products WHERE id = ?"; // Make sure the table name is 'products' not 'users'
+        try (Connection con = this.connectForRead("product:" + id);
              PreparedStatement statement = con.prepareStatement(sql)) {
             statement.setInt(1, id);
             ResultSet current = statement.executeQuery();
@@ -272,10 +1361,11 @@ class OrderDatabase {
                 String description = current.getString("description");
                 float price = current.getFloat("price"); // Use getFloat for price
                 int quantity = current.getInt("quantity"); // Use getInt for quantity
-                return String.format("{\"id\": %d, \"name\": \"%s\"," +
-                                " \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}\n", productId, name, description,
-                        price, quantity);
+                String productJson = Payloads.product(productId, name, description, price, quantity);
+                VersionedCache.store("product:" + id, productJson, current.getLong("version"), false);
+                return productJson;
             }
+            storeTombstone("product:" + id);
         }
         catch (SQLException e) {
             return "";
@@ -284,34 +1374,8 @@ class OrderDatabase {
     }
 
 
-    public int updateQuantity(int prod_id, int quantity) {
-        String sql = "UPDATE products SET quantity = ? WHERE id = ?";
-
-        try (Connection con = this.connect();
-             PreparedStatement statement = con.prepareStatement(sql)) {
-            statement.setInt(1, quantity);
-            statement.setInt(2, prod_id);
-            int affectedRows = statement.executeUpdate();
-
-            // User had been updated if any of the columns' values have changed
-            if (affectedRows > 0) {
-		// Invalidate the Redis cache
-		invalidateInRedis("product:" + prod_id);
-                return 200;
-            }
-            else {
-                return 400;
-            }
-        }
-        catch (SQLException e) {
-            return 500; // Internal Server Error
-        }
-    }
-
-
-
     public int deleteUser(int id, String username, String email, String password) {
-        String sql = "UPDATE users SET deleted = TRUE WHERE id = ? AND username = ? AND email = ? AND password = ?";
+        String sql = "UPDATE users SET deleted = TRUE, version = nextval('users_version_seq') WHERE id = ? AND username = ? AND email = ? AND password = ? RETURNING version";
 
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sql)) {
@@ -319,12 +1383,12 @@ class OrderDatabase {
             statement.setString(2, username);
             statement.setString(3, email);
             statement.setString(4, password);
-            int affectedRows = statement.executeUpdate();
+            ResultSet rs = statement.executeQuery();
 
             // User had been updated if any of the columns' values have changed
-            if (affectedRows > 0) {
+            if (rs.next()) {
 		// Invalidate the Redis cache
-		invalidateInRedis("user:" + id);
+		invalidateInRedis("user:" + id, rs.getLong(1));
                 return 200;
             }
             // As specified in Piazza post @127
@@ -376,8 +1440,8 @@ class OrderDatabase {
         if (!isFieldAdded) {
             return 200;
         }
-        sqlUpdate.setLength(sqlUpdate.length() - 2);
-        sqlUpdate.append(" WHERE id = ?");
+        sqlUpdate.append("version = nextval('users_version_seq')");
+        sqlUpdate.append(" WHERE id = ? RETURNING version");
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sqlUpdate.toString())) {
 
@@ -393,10 +1457,10 @@ class OrderDatabase {
                 statement.setString(valueIndex++, password);
             }
             statement.setInt(valueIndex, id);
-            int affectedRows = statement.executeUpdate();
-            if (affectedRows > 0) {
+            ResultSet rs = statement.executeQuery();
+            if (rs.next()) {
 		// Invalidate the Redis cache
-		invalidateInRedis("user:" + id);
+		invalidateInRedis("user:" + id, rs.getLong(1));
                 return 200;
             } else {
                 return 404;
@@ -0,0 +1,608 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * OrderLog is a write-ahead log of accepted orders on local disk, used by the fast-ack mode of OrderService.
+ * An order is appended to the log and acknowledged once the log is synced to disk; a background applier
+ * writes the logged orders to Postgres later, so orders keep being accepted while the database is briefly
+ * unreachable.
+ *
+ * The log is a directory of segments, each a memory-mapped file of fixed size named after the sequence
+ * number of its first record. Every record has a fixed size and carries a CRC32C checksum:
+ *   checksum (4 bytes) | sequence number (8) | user id (4) | product id (4) | quantity (4)
+ * Sequence numbers are consecutive, so the record of a sequence number is found by arithmetic. Appends
+ * are synced in groups: one thread forces the mapped segment for every append made since the last sync,
+ * and each caller waits until its own record is on disk.
+ *
+ * On start up the segments are scanned in order and the log ends at the first record of the last segment
+ * that is missing, has a wrong checksum or an unexpected sequence number (a write torn by a crash, never
+ * acknowledged); the rest of that segment is cleared. An invalid record in any earlier segment, or a gap
+ * between segments, cannot be a torn write, since the later segments hold synced and acknowledged orders:
+ * the log then refuses to open and nothing is cleared or deleted. Every record still in the log is applied again, which the applier must make idempotent: the
+ * log has a node id (kept in the file node.id) that, together with the sequence number, identifies each
+ * order. A segment is deleted once all of its records are applied.
+ *
+ * A process that opens the log for writing holds an exclusive lock on the file "lock" in its directory
+ * until shutdown, so two services (or a service and OrderLogTool replay) never append to or recover the
+ * same log. openReadOnly reads a log without locking or changing it, for inspection. If the applier finds
+ * a corrupt record it stops, counts order.wal.corrupt and the log refuses further appends.
+ */
+class OrderLog {
+
+    /**
+     * An order read back from the log.
+     */
+    static final class Entry {
+        final long seq;
+        final int userId;
+        final int prodId;
+        final int quantity;
+
+        Entry(long seq, int userId, int prodId, int quantity) {
+            this.seq = seq;
+            this.userId = userId;
+            this.prodId = prodId;
+            this.quantity = quantity;
+        }
+    }
+
+    /**
+     * Writes logged orders to the database.
+     */
+    interface Applier {
+        /**
+         * Writes a batch of orders in sequence order. Orders already written by an earlier attempt must be
+         * skipped, and orders that can never be written (e.g. out of stock) dropped.
+         * @throws SQLException If the batch could not be written now and must be retried.
+         */
+        void apply(UUID node, List<Entry> batch) throws SQLException;
+    }
+
+    static final int RECORD_BYTES = 24;
+    private static final String SUFFIX = ".log";
+
+    private final Path dir;
+    private final UUID node;
+    private final int segmentBytes;
+    private final boolean readOnly;
+    // Held while the log is open for writing
+    private FileChannel lockChannel;
+    private final long syncNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("order.wal.syncMicros", 200L));
+    private final int applyBatch = Integer.getInteger("order.wal.applyBatch", 1000);
+    private final long retryMillis = Long.getLong("order.wal.retryMillis", 1000L);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition written = lock.newCondition();
+    private final Condition synced = lock.newCondition();
+    // Segments by the sequence number of their first record, oldest first; the last one is appended to
+    private final TreeMap<Long, MappedByteBuffer> segments = new TreeMap<>();
+    private MappedByteBuffer active;
+    private long activeFirst;
+    private long nextSeq;
+    private long durableSeq;
+    private long appliedSeq;
+    private volatile boolean running = true;
+    // Set if a sync failed; nothing appended after the last good sync can be acknowledged
+    private boolean broken;
+    private Thread syncer;
+    private Thread applier;
+
+    private OrderLog(Path dir, UUID node, int segmentBytes, boolean readOnly) {
+        this.dir = dir;
+        this.node = node;
+        this.segmentBytes = segmentBytes / RECORD_BYTES * RECORD_BYTES;
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Opens the log in a directory, creating it if needed, and recovers what an earlier run left behind.
+     * No thread is started until start() is called.
+     * @throws IOException If the log cannot be read, or another process has it open for writing.
+     */
+    static OrderLog open(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        FileChannel lockChannel = lock(dir);
+        try {
+            OrderLog log = openLocked(dir);
+            log.lockChannel = lockChannel;
+            return log;
+        } catch (IOException | RuntimeException e) {
+            lockChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the log in a directory for reading only: nothing is locked, cleared or deleted, and the log ends
+     * at its first invalid record as it would on recovery. The log cannot be started or applied.
+     * @throws IOException If the directory holds no log.
+     */
+    static OrderLog openReadOnly(Path dir) throws IOException {
+        Path nodeFile = dir.resolve("node.id");
+        if (!Files.exists(nodeFile)) {
+            throw new IOException("No order log in " + dir);
+        }
+        UUID node = UUID.fromString(new String(Files.readAllBytes(nodeFile), StandardCharsets.US_ASCII).trim());
+        OrderLog log = new OrderLog(dir, node, Integer.getInteger("order.wal.segmentBytes", 16 * 1024 * 1024), true);
+        log.recover();
+        return log;
+    }
+
+    /**
+     * Takes the exclusive lock of a log directory.
+     * @return The channel holding the lock, to close when the log is shut down.
+     */
+    private static FileChannel lock(Path dir) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            throw new IOException("The order log in " + dir + " is in use by another process");
+        }
+        return channel;
+    }
+
+    private static OrderLog openLocked(Path dir) throws IOException {
+        Path nodeFile = dir.resolve("node.id");
+        boolean empty;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            empty = !stream.iterator().hasNext();
+        }
+        UUID node;
+        // Sequence numbers restart at 1 in an empty log, so it takes a new node id to keep order ids unique
+        if (!empty && Files.exists(nodeFile)) {
+            node = UUID.fromString(new String(Files.readAllBytes(nodeFile), StandardCharsets.US_ASCII).trim());
+        } else {
+            node = UUID.randomUUID();
+            Path temporary = dir.resolve("node.id.tmp");
+            Files.write(temporary, node.toString().getBytes(StandardCharsets.US_ASCII));
+            Files.move(temporary, nodeFile, StandardCopyOption.REPLACE_EXISTING);
+            syncDirectory(dir);
+        }
+        OrderLog log = new OrderLog(dir, node, Integer.getInteger("order.wal.segmentBytes", 16 * 1024 * 1024), false);
+        log.recover();
+        return log;
+    }
+
+    UUID node() {
+        return node;
+    }
+
+    /**
+     * Scans the segments, cuts the last one at its first invalid record and prepares the next append. A
+     * read-only log only finds where it ends.
+     * @throws IOException If a segment other than the last is invalid, or the segments are not consecutive.
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        files.sort((a, b) -> Long.compare(firstSeq(a), firstSeq(b)));
+
+        long expected = files.isEmpty() ? 1 : firstSeq(files.get(0));
+        for (int i = 0; i < files.size(); i++) {
+            Path file = files.get(i);
+            long first = firstSeq(file);
+            if (first != expected) {
+                Metrics.increment("order.wal.corrupt");
+                throw new IOException("Order log segment " + file + " starts at " + first + " instead of " + expected
+                        + "; the log is left as it is");
+            }
+            MappedByteBuffer buffer = map(file, readOnly);
+            segments.put(first, buffer);
+            int position = 0;
+            while (position + RECORD_BYTES <= buffer.capacity()) {
+                Entry entry = read(buffer, position);
+                if (entry == null || entry.seq != expected) {
+                    break;
+                }
+                expected++;
+                position += RECORD_BYTES;
+            }
+            if (position + RECORD_BYTES <= buffer.capacity() && i < files.size() - 1) {
+                // Only the last segment can end in a torn write; later segments hold acknowledged orders
+                Metrics.increment("order.wal.corrupt");
+                throw new IOException("Order log segment " + file + " is corrupt at sequence number " + expected
+                        + " and is followed by " + (files.size() - 1 - i) + " more; the log is left as it is");
+            }
+            active = buffer;
+            activeFirst = first;
+        }
+
+        nextSeq = expected;
+        durableSeq = expected - 1;
+        appliedSeq = segments.isEmpty() ? expected - 1 : segments.firstKey() - 1;
+        if (readOnly) {
+            return;
+        }
+        if (active == null || nextSeq - activeFirst >= active.capacity() / RECORD_BYTES) {
+            roll();
+        } else {
+            // Clear the torn tail, so a stale record after it can never pass for the next sequence number
+            int end = (int) (nextSeq - activeFirst) * RECORD_BYTES;
+            byte[] zeros = new byte[active.capacity() - end];
+            active.put(end, zeros);
+            active.force();
+        }
+        System.out.println("Order log " + node + " recovered with " + (durableSeq - appliedSeq) + " orders to apply");
+    }
+
+    private static long firstSeq(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    private static MappedByteBuffer map(Path file, boolean readOnly) throws IOException {
+        if (readOnly) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+    /**
+     * Starts a new segment at the next sequence number, after syncing the one it replaces.
+     */
+    private void roll() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        Path file = dir.resolve(String.format("%020d", nextSeq) + SUFFIX);
+        try (RandomAccessFile created = new RandomAccessFile(file.toFile(), "rw")) {
+            created.setLength(segmentBytes);
+        }
+        syncDirectory(dir);
+        active = map(file, false);
+        activeFirst = nextSeq;
+        segments.put(activeFirst, active);
+        Metrics.increment("order.wal.segments.created");
+    }
+
+    private static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Not every platform can sync a directory; the segment itself is still synced
+        }
+    }
+
+    /**
+     * Reads and checks the record at a position of a segment.
+     * @return The record, or null if there is none or its checksum is wrong.
+     */
+    private static Entry read(ByteBuffer buffer, int position) {
+        long seq = buffer.getLong(position + 4);
+        if (seq <= 0) {
+            return null;
+        }
+        byte[] body = new byte[RECORD_BYTES - 4];
+        buffer.get(position + 4, body);
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(position)) {
+            return null;
+        }
+        return new Entry(seq, buffer.getInt(position + 12), buffer.getInt(position + 16), buffer.getInt(position + 20));
+    }
+
+    /**
+     * Starts the thread that syncs appends and the thread that applies the log to the database.
+     */
+    void start(Applier target) {
+        if (readOnly) {
+            throw new IllegalStateException("The order log is open for reading only");
+        }
+        syncer = new Thread(this::sync, "order-log-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+        applier = new Thread(() -> apply(target), "order-log-applier");
+        applier.setDaemon(true);
+        applier.start();
+        Metrics.gauge("order.wal.backlog", () -> {
+            lock.lock();
+            try {
+                return durableSeq - appliedSeq;
+            } finally {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * Appends an order and waits until it is synced to disk.
+     * @return The sequence number of the order once it is durable, or 0 if the log is shut down, broken or
+     *         could not be written.
+     */
+    long append(int userId, int prodId, int quantity) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        long seq;
+        lock.lock();
+        try {
+            if (!running || broken) {
+                return 0;
+            }
+            if (nextSeq - activeFirst >= active.capacity() / RECORD_BYTES) {
+                roll();
+            }
+            seq = nextSeq++;
+            record.putLong(4, seq).putInt(12, userId).putInt(16, prodId).putInt(20, quantity);
+            CRC32C crc = new CRC32C();
+            crc.update(record.array(), 4, RECORD_BYTES - 4);
+            record.putInt(0, (int) crc.getValue());
+            active.put((int) (seq - activeFirst) * RECORD_BYTES, record.array());
+            written.signal();
+            while (durableSeq < seq && !broken) {
+                synced.awaitUninterruptibly();
+            }
+            return durableSeq >= seq ? seq : 0;
+        } catch (IOException e) {
+            System.out.println("Failed to append to the order log: " + e.getMessage());
+            return 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The loop of the sync thread. Every round forces all appends made so far with one call.
+     */
+    private void sync() {
+        while (true) {
+            MappedByteBuffer buffer;
+            long target;
+            lock.lock();
+            try {
+                while (nextSeq - 1 == durableSeq) {
+                    if (!running) {
+                        return;
+                    }
+                    written.awaitUninterruptibly();
+                }
+                // Give appends made at about the same time the chance to share the sync
+                long remaining = syncNanos;
+                while (remaining > 0 && running) {
+                    try {
+                        remaining = written.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                buffer = active;
+                target = nextSeq - 1;
+            } finally {
+                lock.unlock();
+            }
+            // Appends that roll to a new segment sync the old one themselves
+            try {
+                buffer.force();
+            } catch (RuntimeException e) {
+                System.out.println("Failed to sync the order log, no more orders are accepted: " + e.getMessage());
+                lock.lock();
+                try {
+                    broken = true;
+                    synced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                Metrics.histogram("order.wal.sync.size").record(target - durableSeq);
+                durableSeq = target;
+                synced.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The loop of the applier thread. It keeps applying after shutdown starts until it has caught up with
+     * what is durable, and retries a batch that fails until it goes through.
+     */
+    private void apply(Applier target) {
+        while (true) {
+            List<Entry> batch;
+            try {
+                batch = next();
+            } catch (IllegalStateException e) {
+                // Nothing after a corrupt record can be applied in order, so stop taking orders that would queue behind it
+                Metrics.increment("order.wal.corrupt");
+                System.out.println("Stopped applying the order log, no more orders are accepted: " + e.getMessage());
+                lock.lock();
+                try {
+                    broken = true;
+                    synced.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            if (batch.isEmpty()) {
+                if (!running && !syncer.isAlive()) {
+                    return;
+                }
+                pause(1);
+                continue;
+            }
+            try {
+                target.apply(node, batch);
+            } catch (SQLException e) {
+                Metrics.increment("order.wal.applyFailures");
+                System.out.println("Failed to apply the order log: " + e.getMessage());
+                if (!running) {
+                    // The rest stays on disk and is applied by the next start
+                    return;
+                }
+                pause(retryMillis);
+                continue;
+            }
+            Metrics.counter("order.wal.applied").add(batch.size());
+            applied(batch.get(batch.size() - 1).seq);
+        }
+    }
+
+    /**
+     * Applies everything durable in the calling thread, for tools that replay a log without a service.
+     */
+    void applyAll(Applier target) throws SQLException {
+        if (readOnly) {
+            throw new IllegalStateException("The order log is open for reading only");
+        }
+        List<Entry> batch;
+        while (!(batch = next()).isEmpty()) {
+            target.apply(node, batch);
+            applied(batch.get(batch.size() - 1).seq);
+        }
+    }
+
+    /**
+     * @return The next durable records that are not applied yet, in sequence order.
+     */
+    private List<Entry> next() {
+        List<Entry> batch = new ArrayList<>();
+        lock.lock();
+        try {
+            for (long seq = appliedSeq + 1; seq <= durableSeq && batch.size() < applyBatch; seq++) {
+                Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(seq);
+                Entry entry = read(segment.getValue(), (int) (seq - segment.getKey()) * RECORD_BYTES);
+                if (entry == null) {
+                    throw new IllegalStateException("Order log record " + seq + " is corrupt");
+                }
+                batch.add(entry);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return batch;
+    }
+
+    /**
+     * Records that every order up to a sequence number is applied and deletes the segments that held them.
+     */
+    private void applied(long seq) {
+        lock.lock();
+        try {
+            appliedSeq = seq;
+            while (segments.size() > 1) {
+                Long first = segments.firstKey();
+                Long following = segments.higherKey(first);
+                if (following - 1 > appliedSeq) {
+                    break;
+                }
+                segments.remove(first);
+                try {
+                    Files.delete(dir.resolve(String.format("%020d", first) + SUFFIX));
+                    Metrics.increment("order.wal.segments.deleted");
+                } catch (IOException e) {
+                    System.out.println("Failed to delete an applied order log segment: " + e.getMessage());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Whether a sequence number was handed out by this log and is durable.
+     */
+    boolean issued(long seq) {
+        lock.lock();
+        try {
+            return seq > 0 && seq <= durableSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads every valid record of the log, applied or not, for inspection.
+     */
+    List<Entry> entries() {
+        List<Entry> entries = new ArrayList<>();
+        lock.lock();
+        try {
+            for (long seq = segments.isEmpty() ? nextSeq : segments.firstKey(); seq <= durableSeq; seq++) {
+                Map.Entry<Long, MappedByteBuffer> segment = segments.floorEntry(seq);
+                entries.add(read(segment.getValue(), (int) (seq - segment.getKey()) * RECORD_BYTES));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entries;
+    }
+
+    private static void pause(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting orders, syncs what was appended and gives the applier a short time to catch up. What
+     * it does not apply stays in the log for the next start. The directory lock is released last.
+     */
+    void shutdown() {
+        lock.lock();
+        try {
+            running = false;
+            written.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (Thread thread : new Thread[] { syncer, applier }) {
+            if (thread == null) {
+                continue;
+            }
+            try {
+                thread.join(Long.getLong("order.wal.shutdownMillis", 5000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (lockChannel != null) {
+            try {
+                // Closing the channel releases the lock
+                lockChannel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to release the order log lock: " + e.getMessage());
+            }
+        }
+    }
+}
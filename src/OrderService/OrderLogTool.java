@@ -0,0 +1,55 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * OrderLogTool inspects or replays the local order log of an OrderService that runs in fast-ack mode
+ * (-Dorder.wal.enabled=true). dump and verify open the log read-only and end it at the first torn record
+ * without changing anything. replay opens it the way the service does on start up, cutting it there, and
+ * fails while a running service holds the log.
+ *
+ * Run with the classpath of OrderService:
+ *   java OrderLogTool <dir> dump                                 prints every record as NDJSON
+ *   java OrderLogTool <dir> verify                               prints the node id and the range of sequence numbers
+ *   java OrderLogTool <dir> replay <dockerIp> <dbPort> <redisPort>  applies the log to Postgres and truncates it
+ */
+public class OrderLogTool {
+
+    public static void main(String[] args) throws IOException, SQLException {
+        if (args.length < 2 || ("replay".equals(args[1]) && args.length != 5)) {
+            System.out.println("Usage: OrderLogTool <dir> dump|verify|replay <dockerIp> <dbPort> <redisPort>");
+            System.exit(1);
+        }
+        OrderLog log = "replay".equals(args[1]) ? OrderLog.open(Paths.get(args[0])) : OrderLog.openReadOnly(Paths.get(args[0]));
+        switch (args[1]) {
+            case "dump":
+                for (OrderLog.Entry entry : log.entries()) {
+                    System.out.println("{\"seq\":" + entry.seq + ",\"user_id\":" + entry.userId
+                            + ",\"product_id\":" + entry.prodId + ",\"quantity\":" + entry.quantity + "}");
+                }
+                break;
+            case "verify":
+                List<OrderLog.Entry> entries = log.entries();
+                System.out.println("node " + log.node() + ": " + entries.size() + " valid records"
+                        + (entries.isEmpty() ? "" : ", sequence numbers " + entries.get(0).seq
+                        + " to " + entries.get(entries.size() - 1).seq));
+                break;
+            case "replay":
+                // The tool writes the orders itself, so the database must not open a log of its own
+                System.setProperty("order.wal.enabled", "false");
+                OrderDatabase database = new OrderDatabase();
+                database.initialize(args[2], args[3], args[4]);
+                try {
+                    log.applyAll(database::writeLoggedOrders);
+                    System.out.println("Replayed the order log of node " + log.node());
+                } finally {
+                    OrderDatabase.shutdownPool();
+                }
+                break;
+            default:
+                System.out.println("Unknown command " + args[1]);
+                System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * OrderRequest is the decoded body of a POST to /order, read straight from the request bytes.
+ * A "place order" names one product_id and quantity; a "place cart" lists them as items instead.
+ */
+class OrderRequest {
+
+    private static final byte[] COMMAND = JsonReader.name("command");
+    private static final byte[] USER_ID = JsonReader.name("user_id");
+    private static final byte[] PRODUCT_ID = JsonReader.name("product_id");
+    private static final byte[] QUANTITY = JsonReader.name("quantity");
+    private static final byte[] ITEMS = JsonReader.name("items");
+
+    /**
+     * One line of a cart: a product and the quantity bought. Missing fields are left as null.
+     */
+    static final class Line {
+        Integer productId;
+        Integer quantity;
+    }
+
+    String command;
+    int userId;
+    int productId;
+    int quantity;
+    boolean hasUserId;
+    boolean hasProductId;
+    boolean hasQuantity;
+    List<Line> items;
+
+    /**
+     * Decodes an order request. Unknown fields are skipped.
+     * @param reader is positioned at the start of the JSON body.
+     * @return The decoded request.
+     * @throws org.json.JSONException If the body is not valid JSON or a field has the wrong type.
+     */
+    static OrderRequest parse(JsonReader reader) {
+        OrderRequest request = new OrderRequest();
+        reader.beginObject();
+        while (reader.nextField()) {
+            if (reader.nameEquals(COMMAND)) {
+                request.command = reader.readString();
+            } else if (reader.readNull()) {
+                // A null field is treated as missing
+            } else if (reader.nameEquals(USER_ID)) {
+                request.userId = reader.readInt();
+                request.hasUserId = true;
+            } else if (reader.nameEquals(PRODUCT_ID)) {
+                request.productId = reader.readInt();
+                request.hasProductId = true;
+            } else if (reader.nameEquals(QUANTITY)) {
+                request.quantity = reader.readInt();
+                request.hasQuantity = true;
+            } else if (reader.nameEquals(ITEMS)) {
+                request.items = parseItems(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endDocument();
+        return request;
+    }
+
+    /**
+     * Decodes the items of a cart, an array of objects with a product_id and a quantity.
+     */
+    private static List<Line> parseItems(JsonReader reader) {
+        List<Line> items = new ArrayList<>();
+        reader.beginArray();
+        while (reader.nextElement()) {
+            Line line = new Line();
+            reader.beginObject();
+            while (reader.nextField()) {
+                if (reader.readNull()) {
+                    // A null field is treated as missing
+                } else if (reader.nameEquals(PRODUCT_ID)) {
+                    line.productId = reader.readInt();
+                } else if (reader.nameEquals(QUANTITY)) {
+                    line.quantity = reader.readInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            items.add(line);
+        }
+        return items;
+    }
+}
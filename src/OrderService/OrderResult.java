@@ -0,0 +1,28 @@
+/**
+ * OrderResult describes the outcome of placing an order, including which check rejected it.
+ */
+enum OrderResult {
+    SUCCESS(200),
+    // Taken into the local order log in fast-ack mode; its stock is checked when the log is applied
+    ACCEPTED(202),
+    INVALID_QUANTITY(400),
+    USER_NOT_FOUND(400),
+    PRODUCT_NOT_FOUND(400),
+    INSUFFICIENT_STOCK(400),
+    // A cart named a product whose stock is kept in Redis (see HotInventory); those are ordered one at a time
+    HOT_PRODUCT_IN_CART(409),
+    DATABASE_ERROR(500);
+
+    private final int statusCode;
+
+    OrderResult(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * @return The HTTP status code sent back to the client for this outcome.
+     */
+    int statusCode() {
+        return statusCode;
+    }
+}
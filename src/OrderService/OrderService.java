@@ -1,18 +1,25 @@
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
-import java.util.concurrent.Executors;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This is the microservice that handles HTTP requests related to orders and returns a response back to the client.
@@ -21,6 +28,9 @@ import java.util.concurrent.Executors;
 public class OrderService
 {
     static final OrderDatabase orderDB = new OrderDatabase();
+    static final int MAX_CART_LINES = Integer.getInteger("order.cart.maxLines", 100);
+    static final int DEFAULT_PAGE_SIZE = Integer.getInteger("purchases.page.defaultLimit", 100);
+    static final int MAX_PAGE_SIZE = Integer.getInteger("purchases.page.maxLimit", 1000);
     /**
      * The main method starts the server that is used to handle orders, and sets up the current working directory.
      *
@@ -51,10 +61,10 @@ public class OrderService
 	dockerIp = args[1];
 	dbPort = args[2];
 	redisPort = args[3];
-        HttpServer server = HttpServer.create(new InetSocketAddress(ip, port), 0);
+        HttpServer server = HttpServers.create(new InetSocketAddress(ip, port));
 
-        // Example: Set a custom executor with a fixed-size thread pool
-        server.setExecutor(Executors.newFixedThreadPool(20)); // Adjust the pool size as needed
+        // Handle requests on a fixed thread pool or on virtual threads (see ServerExecutors)
+        server.setExecutor(ServerExecutors.create());
 
         // Set up context for a POST request to the OrderService
         server.createContext("/order", new OrderHandler());
@@ -62,7 +72,19 @@ public class OrderService
         // Set up context for a Get request to the OrderService
         server.createContext("/user/purchased/", new PurchaseHandler());
 
-        server.setExecutor(null); // creates a default executor
+        // Set up context for streaming every order out as NDJSON
+        server.createContext("/order/export", new ExportHandler());
+
+        // Set up context for looking up the outcome of an order accepted in fast-ack mode
+        server.createContext("/order/status/", new StatusHandler());
+
+        // Set up context for a GET request to the service's metrics
+        server.createContext("/metrics", new MetricsHandler());
+
+	// Each instance keeps its own order log; the port tells instances on one host apart across restarts
+	if (System.getProperty("order.wal.dir") == null) {
+		System.setProperty("order.wal.dir", "order-wal-" + port);
+	}
 
 	// Initialize the database with docker IP and ports
 	orderDB.initialize(dockerIp, dbPort, redisPort);
@@ -92,9 +114,24 @@ public class OrderService
         @Override
         public void handle(HttpExchange exchange) throws IOException
         {
-            //Initialize variables
-            String orderData = OrderService.getRequestBody(exchange);
-            JSONObject jsonObject = new JSONObject(orderData);
+            // Decode the body straight from its bytes into an OrderRequest
+            OrderRequest request;
+            try (RequestBody body = RequestBody.read(exchange))
+            {
+                request = OrderRequest.parse(body.json());
+            }
+            catch (RequestBody.TooLargeException e)
+            {
+                sendResponse(exchange, 413, orderResponse(new OrderRequest(), "Invalid Request"));
+                exchange.close();
+                return;
+            }
+            catch (JSONException e)
+            {
+                sendResponse(exchange, 400, orderResponse(new OrderRequest(), "Invalid Request"));
+                exchange.close();
+                return;
+            }
             try
             {
 
@@ -102,70 +139,65 @@ public class OrderService
                 if (!"POST".equals(exchange.getRequestMethod()))
 		{
 		    // Send a 405 Method Not Allowed response for non-POST requests
-		    jsonObject.put("status", "Invalid Request");
-		    sendResponse(exchange, 405, jsonObject.toString());
+		    sendResponse(exchange, 405, orderResponse(request, "Invalid Request"));
 		    return;
 		}
+		// A cart buys several products in one transaction
+		if ("place cart".equals(request.command)) {
+			placeCart(exchange, request);
+			return;
+		}
 		// Check that the command is "place order"
-		if (!jsonObject.has("command") || !jsonObject.getString("command").equals("place order")) {
-			jsonObject.put("status", "Invalid Request");
-			// Remove the command from the JSON object
-			jsonObject.remove("command");
-			sendResponse(exchange, 400, jsonObject.toString());
+		if (!"place order".equals(request.command)) {
+			sendResponse(exchange, 400, orderResponse(request, "Invalid Request"));
 			return;
 		}
-		// Remove the command from the JSON object
-		jsonObject.remove("command");
-
 
                 //Verify that all fields are present for creation
-                if (!(jsonObject.has("product_id")
-			&& jsonObject.has("user_id")
-                        && jsonObject.has("quantity")))
+                if (!(request.hasProductId
+			&& request.hasUserId
+                        && request.hasQuantity))
                 {
-		jsonObject.put("status", "Invalid Request");
-                sendResponse(exchange, 400, jsonObject.toString());
+                sendResponse(exchange, 400, orderResponse(request, "Invalid Request"));
                 exchange.close();
                 return;
                 }
 
-                int userID = jsonObject.getInt("user_id");
-                int prodID = jsonObject.getInt("product_id");
-                int quantity = jsonObject.getInt("quantity");
+                int userID = request.userId;
+                int prodID = request.productId;
+                int quantity = request.quantity;
 
-                if (orderDB.getUser(userID).equals("") || orderDB.getProduct(prodID).equals("")) {
-			// Send a 405 Method Not Allowed response for non-POST requests
-			jsonObject.put("status", "Invalid Request");
-                        sendResponse(exchange, 400, jsonObject.toString());
+		// Look up the user and the product together before writing anything
+		OrderResult validation = orderDB.validateOrder(userID, prodID);
+		if (validation != OrderResult.SUCCESS) {
+			Metrics.increment("order." + validation.name().toLowerCase());
+			sendResponse(exchange, validation.statusCode(), orderResponse(request, "Invalid Request"));
 			return;
-                }
+		}
 
-                JSONObject product = new JSONObject(orderDB.getProduct(prodID));
-                int newQuantity = product.getInt("quantity") - quantity;
-                if (newQuantity < 0) {
-                        // Send a 405 Method Not Allowed response for non-POST requests
-			jsonObject.put("status", "Invalid Request");
-			sendResponse(exchange, 400, jsonObject.toString());
-			exchange.close();
-                    	return;
+		// In fast-ack mode the order is only logged; its outcome is looked up later with its reference
+		String reference = orderDB.logOrder(userID, prodID, quantity);
+		if (reference != null) {
+			OrderResult logged = reference.isEmpty() ? OrderResult.DATABASE_ERROR : OrderResult.ACCEPTED;
+			Metrics.increment("order." + logged.name().toLowerCase());
+			sendResponse(exchange, logged.statusCode(), reference.isEmpty()
+					? orderResponse(request, "Invalid Request") : orderResponse(request, "Accepted", reference));
+			return;
 		}
 
-		int statusCode = orderDB.placeOrder(userID, prodID, quantity, newQuantity);
+		// The stock check happens atomically inside the order transaction
+		OrderResult result = orderDB.placeOrder(userID, prodID, quantity);
+		Metrics.increment("order." + result.name().toLowerCase());
+		int statusCode = result.statusCode();
 
-                if (statusCode != 200) {
-                        jsonObject.put("status", "Invalid Request");
-                } else {
-                        jsonObject.put("status", "Success"); // TEST
-                }
-                String response = jsonObject.toString();
+                String response = orderResponse(request, result == OrderResult.SUCCESS ? "Success" : "Invalid Request");
                 sendResponse(exchange, statusCode, response);
 		return;
             }
             catch (Exception e)
             {
                 // If something weird happens, we send a 400 error code representing an invalid HTTP request
-		jsonObject.put("status", "Invalid Request");
-                sendResponse(exchange, 400, jsonObject.toString());
+                sendResponse(exchange, 400, orderResponse(request, "Invalid Request"));
 		System.out.println("Error: " + e);
 		System.out.println("Error: " + e.getMessage());
 		System.out.println("Error: " + e.getStackTrace());
@@ -174,6 +206,134 @@ public class OrderService
         }
     }
 
+    /**
+     * Places a cart: every line is bought in one transaction, or none is.
+     *
+     * @param exchange The HttpExchange object representing the HTTP request and response.
+     * @param request The decoded request, with a user_id and items of product_id and quantity.
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    private static void placeCart(HttpExchange exchange, OrderRequest request) throws IOException
+    {
+        if (!request.hasUserId || request.items == null || request.items.isEmpty()
+                || request.items.size() > MAX_CART_LINES)
+        {
+            sendResponse(exchange, 400, orderResponse(request, "Invalid Request"));
+            return;
+        }
+        Map<Integer, Integer> lines = new HashMap<>();
+        for (OrderRequest.Line line : request.items)
+        {
+            if (line.productId == null || line.quantity == null || line.quantity <= 0)
+            {
+                sendResponse(exchange, 400, orderResponse(request, "Invalid Request"));
+                return;
+            }
+            lines.merge(line.productId, line.quantity, Integer::sum);
+        }
+
+        if (orderDB.getUser(request.userId).equals(""))
+        {
+            Metrics.increment("order.cart.user_not_found");
+            sendResponse(exchange, 400, orderResponse(request, "Invalid Request"));
+            return;
+        }
+
+        Metrics.histogram("order.cart.lines").record(lines.size());
+        OrderResult result = orderDB.placeCart(request.userId, lines);
+        Metrics.increment("order.cart." + result.name().toLowerCase());
+        sendResponse(exchange, result.statusCode(),
+                orderResponse(request, result == OrderResult.SUCCESS ? "Success" : "Invalid Request"));
+    }
+
+    /**
+     * Builds the response to an order: the fields of the request (without the command) and a status.
+     *
+     * @param request The decoded order request.
+     * @param status The status of the order, "Success" or "Invalid Request".
+     * @return The response body as a JSON string.
+     */
+    private static String orderResponse(OrderRequest request, String status)
+    {
+        return orderResponse(request, status, null);
+    }
+
+    /**
+     * Builds the response to an order, with the reference of an order accepted in fast-ack mode.
+     *
+     * @param request The decoded order request.
+     * @param status The status of the order, "Success", "Accepted" or "Invalid Request".
+     * @param reference The reference to look the order up with at /order/status/, or null.
+     * @return The response body as a JSON string.
+     */
+    private static String orderResponse(OrderRequest request, String status, String reference)
+    {
+        JSONObject response = new JSONObject();
+        if (request.hasUserId) {
+            response.put("user_id", request.userId);
+        }
+        if (request.hasProductId) {
+            response.put("product_id", request.productId);
+        }
+        if (request.hasQuantity) {
+            response.put("quantity", request.quantity);
+        }
+        if (request.items != null) {
+            JSONArray items = new JSONArray();
+            for (OrderRequest.Line line : request.items) {
+                JSONObject item = new JSONObject();
+                item.put("product_id", line.productId);
+                item.put("quantity", line.quantity);
+                items.put(item);
+            }
+            response.put("items", items);
+        }
+        if (reference != null) {
+            response.put("order_ref", reference);
+        }
+        response.put("status", status);
+        return response.toString();
+    }
+
+    /**
+     * Handles GET /order/status/<reference>, which tells the outcome of an order accepted in fast-ack mode:
+     * "Accepted" while it waits to be applied, then "Success" or "Invalid Request" if it was dropped.
+     */
+    static class StatusHandler implements HttpHandler
+    {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!"GET".equals(exchange.getRequestMethod()))
+            {
+                sendResponse(exchange, 405, new JSONObject().toString());
+                return;
+            }
+            String reference = exchange.getRequestURI().getPath().substring("/order/status/".length());
+            OrderResult result;
+            try
+            {
+                result = orderDB.getLoggedOrder(reference);
+            }
+            catch (SQLException e)
+            {
+                System.out.println(e.getMessage());
+                sendResponse(exchange, 500, new JSONObject().toString());
+                return;
+            }
+            if (result == null)
+            {
+                sendResponse(exchange, 404, new JSONObject().toString());
+                return;
+            }
+            JSONObject response = new JSONObject();
+            response.put("order_ref", reference);
+            response.put("status", result == OrderResult.SUCCESS ? "Success"
+                    : result == OrderResult.ACCEPTED ? "Accepted" : "Invalid Request");
+            sendResponse(exchange, 200, response.toString());
+        }
+    }
+
 
     static class PurchaseHandler implements HttpHandler
     {
@@ -187,9 +347,17 @@ public class OrderService
                 {
 		    //("In the GET if statement");
                     //Initialize variables
-                    String URI = exchange.getRequestURI().toString();
+                    String URI = exchange.getRequestURI().getPath();
                     int userID = Integer.parseInt(URI.substring(16));
 
+                    // ?view=orders pages through the individual orders instead of the totals per product
+                    Map<String, String> params = QueryParams.parse(exchange.getRequestURI().getRawQuery());
+                    if ("orders".equals(params.get("view")))
+                    {
+                        orderPage(exchange, userID, params);
+                        return;
+                    }
+
 		    String response = orderDB.getPurchased(userID);
 
                     if (response.equals("{}")) {
@@ -219,50 +387,106 @@ public class OrderService
         }
     }
 
-
     /**
-     * Sends an HTTP response with the specified response code and content.
+     * Sends one page of a user's orders, oldest first. The query may hold
+     *   after  the "next" value of the previous page (default: the first page)
+     *   limit  the most orders on the page (default purchases.page.defaultLimit, at most purchases.page.maxLimit)
+     *   from   only orders placed at or after this date or instant (ISO-8601, e.g. 2024-01-31)
+     *   to     only orders placed before this date or instant
+     * Orders placed before order times were recorded have no time and are left out by from and to.
      *
      * @param exchange The HttpExchange object representing the HTTP request and response.
-     * @param rCode The HTTP response code to be sent.
-     * @param response The content of the HTTP response body.
+     * @param userID The user whose orders are listed.
+     * @param params The query parameters.
      * @throws IOException If an I/O error occurs while sending the response.
      */
-    public static void sendResponse(HttpExchange exchange, int rCode, String response) throws IOException
+    private static void orderPage(HttpExchange exchange, int userID, Map<String, String> params) throws IOException
     {
-        // Convert the response String to bytes to correctly measure its length in bytes
-        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
-
-        // Set the necessary response headers before sending the response body
-        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        int after, limit;
+        Timestamp from, to;
+        try
+        {
+            after = Integer.parseInt(params.getOrDefault("after", "0"));
+            limit = Integer.parseInt(params.getOrDefault("limit", Integer.toString(DEFAULT_PAGE_SIZE)));
+            from = parseTime(params.get("from"));
+            to = parseTime(params.get("to"));
+        }
+        catch (NumberFormatException | DateTimeParseException e)
+        {
+            sendResponse(exchange, 400, new JSONObject().toString());
+            return;
+        }
+        if (after < 0 || limit <= 0 || limit > MAX_PAGE_SIZE)
+        {
+            sendResponse(exchange, 400, new JSONObject().toString());
+            return;
+        }
 
-        // Correctly set the content length using the byte length of the response
-        exchange.sendResponseHeaders(rCode, responseBytes.length);
+        try (JsonWriter writer = JsonWriter.acquire())
+        {
+            if (orderDB.writeOrderPage(writer, userID, after, limit, from, to))
+            {
+                writer.send(exchange, 200);
+            }
+            else
+            {
+                writer.clear();
+                writer.beginObject().endObject();
+                writer.send(exchange, 500);
+            }
+        }
+    }
 
-        // Write the response bytes and close the OutputStream
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
+    /**
+     * @param value is a date (taken as midnight UTC) or an instant in ISO-8601, or null.
+     * @return The time, or null if value is null.
+     */
+    private static Timestamp parseTime(String value)
+    {
+        if (value == null)
+        {
+            return null;
         }
+        Instant instant = value.length() == 10
+                ? LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant()
+                : Instant.parse(value);
+        return Timestamp.from(instant);
     }
 
+
     /**
-     * Reads the request body from an HttpExchange and returns it as a string.
-     *
-     * @param exchange The HttpExchange object representing the HTTP request.
-     * @return The request body as a string.
-     * @throws IOException If an I/O error occurs while reading the request body.
+     * Handles GET /order/export, which streams all orders as newline delimited JSON, one per line in id order.
      */
-    public static String getRequestBody(HttpExchange exchange) throws IOException
+    static class ExportHandler implements HttpHandler
     {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)))
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
         {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null)
+            if (!"GET".equals(exchange.getRequestMethod()))
             {
-                requestBody.append(line);
+                sendResponse(exchange, 405, new JSONObject().toString());
+                return;
             }
-            return requestBody.toString();
+            Export.stream(exchange, ReplicaRouter.forScan(OrderDatabase.dataSource), "order",
+                    "SELECT id, user_id, prod_id, quantity FROM orders ORDER BY id",
+                    (rs, writer) -> Payloads.order(writer, rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+        }
+    }
+
+    /**
+     * Sends an HTTP response with the specified response code and content.
+     *
+     * @param exchange The HttpExchange object representing the HTTP request and response.
+     * @param rCode The HTTP response code to be sent.
+     * @param response The content of the HTTP response body.
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    public static void sendResponse(HttpExchange exchange, int rCode, String response) throws IOException
+    {
+        // Encode the response into a pooled buffer, which also gives its exact length in bytes
+        try (JsonWriter writer = JsonWriter.acquire()) {
+            writer.raw(response);
+            writer.send(exchange, rCode);
         }
     }
 }
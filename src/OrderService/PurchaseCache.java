@@ -0,0 +1,248 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * PurchaseCache keeps the purchase history of each user in Redis as a hash of product id to total
+ * quantity ("purchases:<user_id>"). Every committed order adds its quantity to the hash in place, so the
+ * history stays warm instead of being thrown away and rebuilt from the orders table after each order.
+ *
+ * A hash that does not exist is never created by an order, because it would only hold part of the
+ * history. It is filled from the database by the next read instead. To stop a read that started
+ * before an order committed from writing back a history without that order, each user also has a
+ * version counter ("purchases:<user_id>:version") that every order bumps; a fill is only written if the
+ * version it saw before reading the database is still current.
+ *
+ * A read can also see an order that is committed but not recorded yet; filling with it and then recording
+ * it would count it twice. So writers call begin() before they commit, which marks the users as having an
+ * order in flight ("purchases:<user_id>:pending"), and record() clears the mark; no fill is written while
+ * the mark is set. A writer that dies in between leaves the mark until purchases.pendingTtlMillis, which
+ * only costs fills.
+ *
+ * The rendered JSON is also kept in the L1 cache, and each order publishes an invalidation for it.
+ *
+ * The cache can be tuned with the following system properties:
+ *   purchases.cacheTtlMillis         how long an untouched history stays in Redis (default 600000)
+ *   purchases.replicaCacheTtlMillis  the same for a history read from the read replica, which may lag (default 5000)
+ *   purchases.pendingTtlMillis       how long an order in flight can hold off fills at most (default 30000)
+ */
+class PurchaseCache {
+
+    static final long ttlMillis = Long.getLong("purchases.cacheTtlMillis", 600000L);
+    static final long replicaTtlMillis = Long.getLong("purchases.replicaCacheTtlMillis", 5000L);
+    private static final long pendingTtlMillis = Long.getLong("purchases.pendingTtlMillis", 30000L);
+
+    // KEYS: hash, version, pending. ARGV: ttl, then product id / quantity pairs.
+    private static final String RECORD =
+            "redis.call('INCR', KEYS[2]) " +
+            "redis.call('PEXPIRE', KEYS[2], ARGV[1]) " +
+            "if redis.call('EXISTS', KEYS[1]) == 1 then " +
+            "  for i = 2, #ARGV, 2 do redis.call('HINCRBY', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "end " +
+            "if redis.call('DECR', KEYS[3]) <= 0 then redis.call('DEL', KEYS[3]) end " +
+            "redis.call('PUBLISH', '" + NearCache.CHANNEL + "', KEYS[1]) " +
+            "return 0";
+
+    // KEYS: hash, version, pending. ARGV: expected version ('' if none), ttl, then product id / quantity pairs.
+    private static final String FILL =
+            "if (redis.call('GET', KEYS[2]) or '') ~= ARGV[1] then return 0 end " +
+            "if redis.call('EXISTS', KEYS[3]) == 1 then return 0 end " +
+            "redis.call('DEL', KEYS[1]) " +
+            "for i = 3, #ARGV, 2 do redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1]) end " +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[2]) " +
+            "return 1";
+
+    /**
+     * The outcome of a lookup: the history if it was cached, and the version to fill it with otherwise.
+     */
+    static final class Lookup {
+        final String json;
+        final String version;
+
+        Lookup(String json, String version) {
+            this.json = json;
+            this.version = version;
+        }
+    }
+
+    static String key(int userId) {
+        return "purchases:" + userId;
+    }
+
+    private static String versionKey(int userId) {
+        return "purchases:" + userId + ":version";
+    }
+
+    private static String pendingKey(int userId) {
+        return "purchases:" + userId + ":pending";
+    }
+
+    /**
+     * Looks up the purchase history of a user in the L1 cache, then in Redis.
+     * @param userId is the user whose history is wanted.
+     * @return The lookup; its json is null on a miss, and its version is null if Redis could not be reached.
+     */
+    Lookup get(int userId) {
+        String key = key(userId);
+        String local = NearCache.get(key);
+        if (local != null) {
+            return new Lookup(local, null);
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            Response<Map<String, String>> hash = pipeline.hgetAll(key);
+            Response<String> version = pipeline.get(versionKey(userId));
+            pipeline.sync();
+            if (hash.get().isEmpty()) {
+                Metrics.increment("purchases.cache.misses");
+                return new Lookup(null, version.get() == null ? "" : version.get());
+            }
+            Map<Integer, Integer> purchases = new TreeMap<>();
+            for (Map.Entry<String, String> entry : hash.get().entrySet()) {
+                purchases.put(Integer.parseInt(entry.getKey()), Integer.parseInt(entry.getValue()));
+            }
+            String json = Payloads.purchases(purchases);
+            NearCache.put(key, json);
+            Metrics.increment("purchases.cache.hits");
+            return new Lookup(json, null);
+        } catch (Exception e) {
+            System.out.println("Failed to retrieve purchases from Redis: " + e.getMessage());
+            return new Lookup(null, null);
+        }
+    }
+
+    /**
+     * Stores a history read from the database, unless an order was recorded since the lookup.
+     * Empty histories are only kept in the L1 cache, since Redis has no empty hashes.
+     * @param userId is the user the history belongs to.
+     * @param version is the version returned by the lookup, or null to skip Redis.
+     * @param purchases maps each product id to the total quantity bought.
+     * @param json is the rendered history.
+     * @param ttl is how long the history stays in Redis, in milliseconds.
+     */
+    void fill(int userId, String version, Map<Integer, Integer> purchases, String json, long ttl) {
+        if (version == null || purchases.isEmpty()) {
+            NearCache.put(key(userId), json);
+            return;
+        }
+        List<String> args = new ArrayList<>(2 + 2 * purchases.size());
+        args.add(version);
+        args.add(Long.toString(ttl));
+        for (Map.Entry<Integer, Integer> purchase : purchases.entrySet()) {
+            args.add(purchase.getKey().toString());
+            args.add(purchase.getValue().toString());
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            Object written = jedis.eval(FILL, Arrays.asList(key(userId), versionKey(userId), pendingKey(userId)), args);
+            if (Long.valueOf(1).equals(written)) {
+                NearCache.put(key(userId), json);
+            } else {
+                Metrics.increment("purchases.cache.staleFills");
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to store purchases in Redis: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the users of orders that are about to commit, so that no fill is written until the orders are
+     * recorded. Call it right before the commit, and pass its result to record() or abandon() afterwards.
+     * @param userIds are the users whose orders are about to commit.
+     * @return Whether the users were marked; if not, record() drops their histories instead.
+     */
+    boolean begin(Set<Integer> userIds) {
+        if (userIds.isEmpty()) {
+            return true;
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Integer userId : userIds) {
+                pipeline.incr(pendingKey(userId));
+                pipeline.pexpire(pendingKey(userId), pendingTtlMillis);
+            }
+            pipeline.sync();
+            return true;
+        } catch (Exception e) {
+            System.out.println("Failed to mark purchases in Redis: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Adds committed orders to the cached histories of their users, one script per user in one round trip.
+     * @param purchasesByUser maps each user id to the quantity bought of each product.
+     * @param begun is the result of begin() for these users.
+     */
+    void record(Map<Integer, Map<Integer, Integer>> purchasesByUser, boolean begun) {
+        for (Integer userId : purchasesByUser.keySet()) {
+            NearCache.invalidate(key(userId));
+            // Reads of the history by this instance go to the primary until the replica has the orders
+            ReplicaRouter.wrote(key(userId));
+        }
+        if (!begun) {
+            // A fill may already hold these orders, so adding them could count them twice
+            drop(purchasesByUser.keySet());
+            return;
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            for (Map.Entry<Integer, Map<Integer, Integer>> user : purchasesByUser.entrySet()) {
+                List<String> args = new ArrayList<>(1 + 2 * user.getValue().size());
+                args.add(Long.toString(2 * ttlMillis));
+                for (Map.Entry<Integer, Integer> purchase : user.getValue().entrySet()) {
+                    args.add(purchase.getKey().toString());
+                    args.add(purchase.getValue().toString());
+                }
+                pipeline.eval(RECORD, Arrays.asList(key(user.getKey()), versionKey(user.getKey()), pendingKey(user.getKey())), args);
+            }
+            pipeline.sync();
+        } catch (Exception e) {
+            // The hashes may now be missing these orders, so drop them and let the next read rebuild them
+            System.out.println("Failed to record purchases in Redis: " + e.getMessage());
+            drop(purchasesByUser.keySet());
+        }
+    }
+
+    /**
+     * Gives up on orders passed to begin() whose commit failed or whose outcome is unknown: their histories
+     * are dropped, since the orders may have committed after all, and the users are unmarked.
+     * @param userIds are the users passed to begin().
+     * @param begun is the result of begin().
+     */
+    void abandon(Set<Integer> userIds, boolean begun) {
+        for (Integer userId : userIds) {
+            NearCache.invalidate(key(userId));
+        }
+        drop(userIds);
+        if (!begun) {
+            return;
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            for (Integer userId : userIds) {
+                if (jedis.decr(pendingKey(userId)) <= 0) {
+                    jedis.del(pendingKey(userId));
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to unmark purchases in Redis: " + e.getMessage());
+        }
+    }
+
+    private void drop(Iterable<Integer> userIds) {
+        try (Jedis jedis = RedisPool.getResource()) {
+            for (Integer userId : userIds) {
+                jedis.del(key(userId));
+                jedis.incr(versionKey(userId));
+            }
+        } catch (Exception e) {
+            System.out.println("Failed to drop purchases in Redis: " + e.getMessage());
+        }
+    }
+}
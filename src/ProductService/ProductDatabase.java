@@ -5,7 +5,14 @@ import java.security.NoSuchAlgorithmException;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.SetParams;
 
 
 /**
@@ -19,6 +26,9 @@ public class ProductDatabase {
     public static int redisPort = 6379;
 
     public static HikariDataSource dataSource;
+    private static final SingleFlight<String> productLoads = new SingleFlight<>("singleflight.product");
+    // Whether hot products are in use; the same property as OrderService's (see HotInventory)
+    private static final boolean hotMode = !System.getProperty("inventory.hot.products", "").trim().isEmpty();
 
 //    static {
 //        // Configure HikariCP
@@ -44,22 +54,76 @@ public class ProductDatabase {
         return dataSource.getConnection();
     }
 
-    private Jedis connectToRedis() {
-        try {
-            Jedis jedis = new Jedis(redisHost, redisPort);
-            return jedis; // Successfully connected
-        } catch (Exception e) {
-            System.out.println("Failed to connect to Redis: " + e.getMessage());
-            return null; // Connection failed
-        }
+    /**
+     * Opens a connection for a read-only query of the given rows, on the read replica when ReplicaRouter
+     * allows it and on the primary otherwise.
+     * @param keys are the cache keys of the rows read.
+     */
+    private Connection connectForRead(String... keys) throws SQLException {
+        return ReplicaRouter.connect(dataSource, ReplicaRouter.useReplica(keys));
     }
 
-    public void storeInRedis(String key, String json) {
-	try {
-	        Jedis jedis = connectToRedis();
-	        if (jedis != null) {
-	            jedis.set(key, json);
-	            jedis.close();
+    /**
+     * Looks up several keys in the L1 cache, then the rest in Redis with one MGET.
+     * @param keys are the keys to look up.
+     * @return The cached value of each key, in the same order, with null for misses.
+     */
+    public String[] retrieveManyFromRedis(String... keys) {
+	String[] values = new String[keys.length];
+	List<Integer> missing = new ArrayList<>();
+	for (int i = 0; i < keys.length; i++) {
+		values[i] = NearCache.get(keys[i]);
+		if (values[i] == null) {
+			missing.add(i);
+		}
+	}
+	if (missing.isEmpty()) {
+		return values;
+	}
+	String[] missingKeys = new String[missing.size()];
+	for (int i = 0; i < missingKeys.length; i++) {
+		missingKeys[i] = keys[missing.get(i)];
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        List<String> fetched = jedis.mget(missingKeys);
+	        for (int i = 0; i < missingKeys.length; i++) {
+	                values[missing.get(i)] = fetched.get(i);
+	                NearCache.put(missingKeys[i], fetched.get(i));
+	        }
+	} catch (Exception e) {
+		System.out.println("Failed to retrieve from Redis: " + e.getMessage());
+	}
+	return values;
+    }
+
+    /**
+     * Caches the rows read by a batch: payloads are handed to the CacheWriter as versioned fills, like the
+     * fill of a single row, so they only reach the L1 cache if Redis took them. Tombstones for the ids that
+     * do not exist are stored in one pipeline, only where Redis has nothing for them yet.
+     * @param found maps the key of each row read to its payload.
+     * @param versions maps the key of each row read to its version; older versions than the cached one are not written.
+     * @param missing are the keys of the ids that do not exist.
+     */
+    private void backfill(Map<String, String> found, Map<String, Long> versions, List<String> missing) {
+	for (Map.Entry<String, String> row : found.entrySet()) {
+		VersionedCache.store(row.getKey(), row.getValue(), versions.get(row.getKey()), false);
+	}
+	if (!NegativeCache.enabled || missing.isEmpty()) {
+		return;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        Pipeline pipeline = jedis.pipelined();
+	        Map<String, Response<String>> tombstones = new HashMap<>();
+	        for (String key : missing) {
+	                tombstones.put(key, pipeline.set(key, NegativeCache.TOMBSTONE,
+	                        SetParams.setParams().nx().px(NegativeCache.ttlMillis)));
+	        }
+	        pipeline.sync();
+	        for (Map.Entry<String, Response<String>> tombstone : tombstones.entrySet()) {
+	                if ("OK".equals(tombstone.getValue().get())) {
+	                        NearCache.put(tombstone.getKey(), NegativeCache.TOMBSTONE, NegativeCache.ttlMillis);
+	                        Metrics.increment("negativecache.stores");
+	                }
 	        }
 	} catch (Exception e) {
 		System.out.println("Failed to store in Redis: " + e.getMessage());
@@ -67,32 +131,67 @@ public class ProductDatabase {
     }
 
     public String retrieveFromRedis(String key) {
-	try {
-	        Jedis jedis = connectToRedis();
-	        if (jedis != null) {
-	            String value = jedis.get(key);
-	            jedis.close();
-	            return value;
-	        }
-	        return null;
+	// Serve hot keys from the in-process cache before asking Redis
+	String local = NearCache.get(key);
+	if (local != null) {
+		return local;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        String value = jedis.get(key);
+	        NearCache.put(key, value);
+	        return value;
 	} catch (Exception e) {
 		System.out.println("Failed to retrieve from Redis: " + e.getMessage());
 		return null;
 	}
     }
 
-    public void invalidateInRedis(String key) {
-	try {
-	        Jedis jedis = connectToRedis();
-	        if (jedis != null) {
-	            jedis.del(key);
-	            jedis.close();
+    /**
+     * Records that the row behind a key does not exist. The tombstone is only written if the key is still
+     * absent in Redis, so it cannot hide a row that was created while this lookup was running.
+     * @param key is the cache key of the missing row.
+     */
+    public void storeTombstone(String key) {
+	if (!NegativeCache.enabled) {
+		return;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        if ("OK".equals(jedis.set(key, NegativeCache.TOMBSTONE, SetParams.setParams().nx().px(NegativeCache.ttlMillis)))) {
+	                NearCache.put(key, NegativeCache.TOMBSTONE, NegativeCache.ttlMillis);
+	                Metrics.increment("negativecache.stores");
 	        }
 	} catch (Exception e) {
-		System.out.println("Failed to invalidate in Redis: " + e.getMessage());
+		System.out.println("Failed to store tombstone in Redis: " + e.getMessage());
 	}
     }
 
+    /**
+     * Stores the value of a newly created row with its version, replacing whatever is cached for the key
+     * (e.g. a tombstone) unless a later write of the row got there first, and tells the other instances to
+     * drop their local copies.
+     * @param key is the cache key of the new row.
+     * @param json is its payload.
+     * @param version is the version the insert gave the row.
+     */
+    public void replaceInRedis(String key, String json, long version) {
+	ReplicaRouter.wrote(key);
+	VersionedCache.store(key, json, version, true);
+    }
+
+    /**
+     * Invalidates the cached row of a key after a write.
+     * @param key is the cache key of the row.
+     * @param version is the version of the row after the write, or a version taken after it was deleted, so
+     *        that reads that started before the write cannot fill the cache with the old row.
+     */
+    public void invalidateInRedis(String key, long version) {
+	// The row was just written, so this instance reads it from the primary for a while
+	ReplicaRouter.wrote(key);
+	// Drop the local copy now; the DEL and the invalidation for the other instances go out in the next batch.
+	// The change listener invalidates the row again once the change commits, as a backstop
+	CacheWriter.delete(key, version);
+    }
+
 
 
     /**
@@ -112,14 +211,18 @@ public class ProductDatabase {
 	config.setJdbcUrl(url);
 	config.setUsername(user);
 	config.setPassword(password);
+	// The service invalidates the cache for its own writes, so they are not sent to the change listener
+	config.setConnectionInitSql("SET app.cache_managed = 'on'");
 
 	dataSource = new HikariDataSource(config);
+	// Send read-only queries to a replica when -Ddb.replica.host names one
+	ReplicaRouter.initialize(user, password);
 
-	// Test redis connection
-	Jedis jedis = connectToRedis();
-	if (jedis != null) {
+	// Share one pool of Redis connections across every cache call
+	RedisPool.initialize(redisHost, redisPort);
+	NearCache.initialize(redisHost, redisPort);
+	if (RedisPool.ping()) {
 		System.out.println("Connected to Redis server at " + redisHost + ":" + redisPort);
-		jedis.close();
 	} else {
 		System.out.println("Failed to connect to Redis server at " + redisHost + ":" + redisPort);
 	}
@@ -133,9 +236,22 @@ public class ProductDatabase {
                     "price REAL NOT NULL," +
                     "quantity INTEGER NOT NULL)";
             statement.execute(sql);
+            // Row versions for the write-through cache, taken from a sequence so a re-created product
+            // never reuses the version of the one it replaces
+            statement.execute("CREATE SEQUENCE IF NOT EXISTS products_version_seq");
+            statement.execute("ALTER TABLE products ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL " +
+                    "DEFAULT nextval('products_version_seq')");
+            // Send every change committed outside the services as a notification for the cache listener; the
+            // services invalidate their own writes, and a notification would serialise their commits (see install)
+            if (ChangeListener.isEnabled()) {
+                ChangeListener.install(con, "products", "id", true, true);
+            }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
+
+	ChangeListener.watch("products", "product:");
+	ChangeListener.start(url, user, password);
     }
 
     public static void shutdownPool() {
@@ -143,6 +259,12 @@ public class ProductDatabase {
             dataSource.close();
             System.out.println("User Database connection pool successfully shut down.");
         }
+        ChangeListener.shutdown();
+        ReplicaRouter.shutdown();
+        // Send the cache writes still queued while Redis is reachable
+        CacheWriter.shutdown();
+        NearCache.shutdown();
+        RedisPool.shutdown();
     }
 
     /**
@@ -154,23 +276,100 @@ public class ProductDatabase {
     public String getProduct(int id) {
         // Attempt to retrieve from Redis first
         String cachedProduct = retrieveFromRedis("product:" + id);
+        if (NegativeCache.hit(cachedProduct)) {
+            return "";
+        }
         if (cachedProduct != null) {
             return cachedProduct;
         }
 
-        // If not in cache, retrieve from database
-        String sql = "SELECT id, name, description, price, quantity FROM products WHERE id = ?";
-        try (Connection con = this.connect();
+        // Concurrent misses of the same product share one query
+        return productLoads.load("product:" + id, () -> loadProduct(id));
+    }
+
+    /**
+     * Retrieves several products at once: the cached ones with one MGET, and all the others with one query.
+     *
+     * @param ids are the IDs of the products to retrieve, possibly repeated.
+     * @return The JSON string of each product in the order of ids, an empty string if it does not exist, or null
+     *         if it could not be read.
+     */
+    public String[] getProducts(int[] ids) {
+        String[] keys = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = "product:" + ids[i];
+        }
+        String[] payloads = retrieveManyFromRedis(keys);
+
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (NegativeCache.hit(payloads[i])) {
+                payloads[i] = "";
+            } else if (payloads[i] == null && !misses.contains(ids[i])) {
+                misses.add(ids[i]);
+            }
+        }
+        Metrics.counter("batch.product.ids").add(ids.length);
+        if (misses.isEmpty()) {
+            return payloads;
+        }
+        Metrics.counter("batch.product.misses").add(misses.size());
+
+        String sql = "SELECT id, name, description, price, quantity, version FROM products WHERE id = ANY(?)";
+        Map<String, String> found = new HashMap<>();
+        Map<String, Long> versions = new HashMap<>();
+        String[] missKeys = new String[misses.size()];
+        for (int i = 0; i < missKeys.length; i++) {
+            missKeys[i] = "product:" + misses.get(i);
+        }
+        try (Connection con = this.connectForRead(missKeys);
+             PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.setArray(1, con.createArrayOf("integer", misses.toArray()));
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                versions.put("product:" + rs.getInt("id"), rs.getLong("version"));
+                found.put("product:" + rs.getInt("id"), Payloads.product(rs.getInt("id"), rs.getString("name"), rs.getString("description"),
+                                           rs.getFloat("price"), rs.getInt("quantity")));
+            }
+        } catch (SQLException e) {
+            // The misses stay null and are reported as unavailable
+            System.out.println(e.getMessage());
+            return payloads;
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (Integer id : misses) {
+            if (!found.containsKey("product:" + id)) {
+                missing.add("product:" + id);
+            }
+        }
+        backfill(found, versions, missing);
+        for (int i = 0; i < ids.length; i++) {
+            if (payloads[i] == null) {
+                payloads[i] = found.getOrDefault(keys[i], "");
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Reads a product from the database and caches the result, or a tombstone if there is no such product.
+     */
+    private String loadProduct(int id) {
+        String sql = "SELECT id, name, description, price, quantity, version FROM products WHERE id = ?";
+        try (Connection con = this.connectForRead("product:" + id);
              PreparedStatement statement = con.prepareStatement(sql)) {
             statement.setInt(1, id);
             ResultSet rs = statement.executeQuery();
             if (rs.next()) {
-                String productJson = String.format("{\"id\": %d, \"name\": \"%s\", \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}",
-                    rs.getInt("id"), rs.getString("name"), rs.getString("description"), rs.getFloat("price"), rs.getInt("quantity"));
-                // Store in Redis for future requests
-                storeInRedis("product:" + id, productJson);
+                String productJson = Payloads.product(rs.getInt("id"), rs.getString("name"), rs.getString("description"),
+                                                      rs.getFloat("price"), rs.getInt("quantity"));
+                // Store in Redis for future requests, unless an update already cached a newer version
+                VersionedCache.store("product:" + id, productJson, rs.getLong("version"), false);
                 return productJson;
             }
+            // Remember that the product does not exist so the next lookup skips the database
+            storeTombstone("product:" + id);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
@@ -179,8 +378,103 @@ public class ProductDatabase {
 
 
 
+    /**
+     * Inserts a batch of products read by a bulk import with one statement, then updates the cache for the new
+     * rows in one pipeline. Rows whose id already exists are skipped and reported, as are repeats of an id
+     * within the batch after its first line. The insert is not sent to the change listener row by row
+     * (app.cache_bulk); the batch clears the tombstones of its new ids with one script instead.
+     *
+     * @param rows are the validated products of the batch, in file order.
+     * @param lines holds the line number of each row.
+     * @param fillCache is whether the new products are stored in Redis; if not, only their tombstones are cleared.
+     * @param report receives the outcome of every row.
+     */
+    public void importProducts(List<ProductRequest> rows, List<Integer> lines, boolean fillCache, ImportReport report) {
+        Integer[] ids = new Integer[rows.size()];
+        String[] names = new String[rows.size()];
+        String[] descriptions = new String[rows.size()];
+        Float[] prices = new Float[rows.size()];
+        Integer[] quantities = new Integer[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            ProductRequest row = rows.get(i);
+            ids[i] = row.id;
+            names[i] = row.name;
+            descriptions[i] = row.description;
+            prices[i] = row.price;
+            quantities[i] = row.quantity;
+        }
+
+        String sql = "INSERT INTO products(id, name, description, price, quantity) " +
+                "SELECT * FROM unnest(?::integer[], ?::text[], ?::text[], ?::real[], ?::integer[]) " +
+                "ON CONFLICT DO NOTHING RETURNING id, version";
+        Map<Integer, Long> inserted = new HashMap<>();
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (Statement bulk = con.createStatement();
+                 PreparedStatement statement = con.prepareStatement(sql)) {
+                // The batch clears its own tombstones below, so its rows are not sent to the change listener one by one
+                bulk.execute("SET LOCAL app.cache_bulk = 'on'");
+                statement.setArray(1, con.createArrayOf("integer", ids));
+                statement.setArray(2, con.createArrayOf("text", names));
+                statement.setArray(3, con.createArrayOf("text", descriptions));
+                statement.setArray(4, con.createArrayOf("real", prices));
+                statement.setArray(5, con.createArrayOf("integer", quantities));
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    inserted.put(rs.getInt(1), rs.getLong(2));
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            for (Integer line : lines) {
+                report.fail(line, "database error");
+            }
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(inserted.size());
+        List<String> payloads = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            ProductRequest row = rows.get(i);
+            Long version = inserted.remove(row.id);
+            if (version == null) {
+                report.fail(lines.get(i), "duplicate id");
+                continue;
+            }
+            report.imported();
+            String key = "product:" + row.id;
+            NearCache.invalidate(key);
+            keys.add(key);
+            if (fillCache) {
+                payloads.add(Payloads.product(row.id, row.name, row.description, row.price, row.quantity));
+                versions.add(version);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            // Other instances may hold a tombstone for some of the ids; a new id can have nothing else cached
+            NegativeCache.clear(pipeline, keys);
+            for (int i = 0; i < payloads.size(); i++) {
+                VersionedCache.store(pipeline, keys.get(i), payloads.get(i), versions.get(i));
+            }
+            pipeline.sync();
+        } catch (Exception e) {
+            System.out.println("Failed to update Redis after import: " + e.getMessage());
+        }
+    }
+
     public int createProduct(int id, String name, String description, float price, int quantity) {
-        String sql = "INSERT INTO products(id, name, description, price, quantity) VALUES(?, ?, ?, ?, ?)";
+        String sql = "INSERT INTO products(id, name, description, price, quantity) VALUES(?, ?, ?, ?, ?) RETURNING version";
 
         // Check if the price or quantity is a negative value and return 400 for bad request.
         if (price < 0 || quantity < 0) {
@@ -194,12 +488,12 @@ public class ProductDatabase {
             statement.setString(3, description);
             statement.setFloat(4, price);
             statement.setInt(5, quantity);
-            int result = statement.executeUpdate();
+            ResultSet rs = statement.executeQuery();
 
-            if (result > 0) {
-                String productJson = String.format("{\"id\": %d, \"name\": \"%s\", \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}",
-                                                    id, name, description, price, quantity);
-                storeInRedis("product:" + id, productJson);
+            if (rs.next()) {
+                String productJson = Payloads.product(id, name, description, price, quantity);
+                // Replaces any tombstone for the id, unless a later write of the row is cached already
+                replaceInRedis("product:" + id, productJson, rs.getLong("version"));
                 return 200;  // OK - Product created successfully
             }
         } catch (SQLException e) {
@@ -215,8 +509,9 @@ public class ProductDatabase {
 
 
     public int deleteProduct(int id, String name, float price, int quantity) {
+        // The deleted row has no version left, so take one that any later read or re-created row is at least at
         String sql = "DELETE FROM products WHERE id = ? AND name = ? AND price = ? AND" +
-                " quantity = ?";
+                " quantity = ? RETURNING nextval('products_version_seq')";
 
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sql)) {
@@ -224,12 +519,12 @@ public class ProductDatabase {
             statement.setString(2, name);
             statement.setFloat(3, price);
             statement.setInt(4, quantity);
-            int affectedRows = statement.executeUpdate();
+            ResultSet rs = statement.executeQuery();
 
             // Product had been deleted if number of rows has changed
-            if (affectedRows > 0) {
+            if (rs.next()) {
                 // After deleting from the database, also remove from Redis if it's cached
-                invalidateInRedis("product:" + id);
+                invalidateInRedis("product:" + id, rs.getLong(1));
                 return 200;
             }
             // As specified in Piazza post @127
@@ -242,14 +537,28 @@ public class ProductDatabase {
         }
     }
 
+    /**
+     * @return Whether OrderService keeps the stock of a product in Redis, or true if Redis cannot tell.
+     */
+    private boolean isHotProduct(int id) {
+	try (Jedis jedis = RedisPool.getResource()) {
+	        return jedis.sismember("inventory:hot", Integer.toString(id));
+	}
+    }
 
-
-    public int updateProduct(int id, String name, String description, float price, int quantity) {
+    /**
+     * Updates the given fields of a product and writes the updated row, read back by the same statement,
+     * through to the cache. The quantity of a hot product is refused with 409: OrderService keeps its stock
+     * in Redis (see HotInventory) and the counter would not see the change. Redis is only asked while
+     * inventory.hot.products is set; if it cannot be read then, the quantity update is refused with 503.
+     * @return The status, with the updated product if it is 200 and a field was changed.
+     */
+    public UpdateResult updateProduct(int id, String name, String description, float price, int quantity) {
         StringBuilder sqlUpdate = new StringBuilder("UPDATE products SET ");
         int valueCount = 0;
 
         if ((price != 0 && price < 0) || (quantity != 0 && quantity < 0)) {
-            return 400;  // Bad request due to negative price or quantity
+            return UpdateResult.status(400);  // Bad request due to negative price or quantity
         }
 
         // Construct the SQL update statement based on provided values
@@ -271,11 +580,22 @@ public class ProductDatabase {
         }
 
         if (valueCount == 0) {
-            return 200;  // No update was needed
+            return UpdateResult.status(200);  // No update was needed
+        }
+        if (quantity != 0 && hotMode) {
+            try {
+                if (isHotProduct(id)) {
+                    return UpdateResult.status(409);  // The stock of a hot product is only changed by orders
+                }
+            } catch (Exception e) {
+                System.out.println("Failed to read the hot products from Redis: " + e.getMessage());
+                return UpdateResult.status(503);  // Whether the product is hot is unknown
+            }
         }
 
-        sqlUpdate.delete(sqlUpdate.length() - 2, sqlUpdate.length());  // Remove trailing comma and space
-        sqlUpdate.append(" WHERE id = ?");
+        // Every change takes a new version, which orders the writes of this row into the cache
+        sqlUpdate.append("version = nextval('products_version_seq')");
+        sqlUpdate.append(" WHERE id = ? RETURNING id, name, description, price, quantity, version");
 
         try (Connection conn = this.connect();
              PreparedStatement statement = conn.prepareStatement(sqlUpdate.toString())) {
@@ -296,21 +616,20 @@ public class ProductDatabase {
             }
             statement.setInt(valueIndex, id);
 
-            int affectedRows = statement.executeUpdate();
+            ResultSet rs = statement.executeQuery();
 
-            if (affectedRows > 0) {
-                // After updating the database, update Redis if the product is cached
-//                String newProductJson = String.format("{\"id\": %d, \"name\": \"%s\", \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}",
-//                                                       id, name != null ? name : "", description != null ? description : "", price, quantity);
-//                storeInRedis("product:" + id, newProductJson);
-		// Invalidate the cache
-		invalidateInRedis("product:" + id);
-                return 200;
+            if (rs.next()) {
+                // Write the updated row through to Redis, unless a newer version got there first
+                String productJson = Payloads.product(rs.getInt("id"), rs.getString("name"), rs.getString("description"),
+                                                      rs.getFloat("price"), rs.getInt("quantity"));
+                ReplicaRouter.wrote("product:" + id);
+                VersionedCache.store("product:" + id, productJson, rs.getLong("version"), true);
+                return new UpdateResult(200, productJson);
             } else {
-                return 404;  // Product not found
+                return UpdateResult.status(404);  // Product not found
             }
         } catch (SQLException e) {
-            return 400;  // Internal Server Error
+            return UpdateResult.status(400);  // Internal Server Error
         }
     }
 
@@ -0,0 +1,65 @@
+/**
+ * ProductRequest is the decoded body of a POST to /product, read straight from the request bytes.
+ * Absent and null string fields are left null.
+ */
+class ProductRequest {
+
+    private static final byte[] COMMAND = JsonReader.name("command");
+    private static final byte[] ID = JsonReader.name("id");
+    private static final byte[] NAME = JsonReader.name("name");
+    private static final byte[] DESCRIPTION = JsonReader.name("description");
+    private static final byte[] PRICE = JsonReader.name("price");
+    private static final byte[] QUANTITY = JsonReader.name("quantity");
+
+    String command;
+    int id;
+    boolean hasId;
+    String name;
+    String description;
+    float price;
+    boolean hasPrice;
+    int quantity;
+    boolean hasQuantity;
+
+    /**
+     * Decodes a product request. Unknown fields are skipped.
+     * @param reader is positioned at the start of the JSON body.
+     * @return The decoded request.
+     * @throws org.json.JSONException If the body is not valid JSON or a field has the wrong type.
+     */
+    static ProductRequest parse(JsonReader reader) {
+        ProductRequest request = new ProductRequest();
+        reader.beginObject();
+        while (reader.nextField()) {
+            if (reader.readNull()) {
+                // A null field is treated as missing
+            } else if (reader.nameEquals(COMMAND)) {
+                request.command = reader.readString();
+            } else if (reader.nameEquals(ID)) {
+                request.id = reader.readInt();
+                request.hasId = true;
+            } else if (reader.nameEquals(NAME)) {
+                request.name = reader.readString();
+            } else if (reader.nameEquals(DESCRIPTION)) {
+                request.description = reader.readString();
+            } else if (reader.nameEquals(PRICE)) {
+                request.price = reader.readFloat();
+                request.hasPrice = true;
+            } else if (reader.nameEquals(QUANTITY)) {
+                request.quantity = reader.readInt();
+                request.hasQuantity = true;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endDocument();
+        return request;
+    }
+
+    /**
+     * @return true if the id and every product field are present.
+     */
+    boolean isComplete() {
+        return hasId && name != null && description != null && hasPrice && hasQuantity;
+    }
+}
@@ -2,6 +2,7 @@ import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
@@ -12,7 +13,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * This is the microservice that handles any data related to products.
@@ -55,17 +57,24 @@ public class ProductService
 	dbPort = args[2];
 	redisPort = args[3];
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(ip, port), 0);
-        // Example: Set a custom executor with a fixed-size thread pool
-        server.setExecutor(Executors.newFixedThreadPool(20)); // Adjust the pool size as needed
+        HttpServer server = HttpServers.create(new InetSocketAddress(ip, port));
+        // Handle requests on a fixed thread pool or on virtual threads (see ServerExecutors)
+        server.setExecutor(ServerExecutors.create());
 
-        // Set up context for a POST request
+        // Set up context for a POST request, and for batch GET requests (/product?ids=...)
         server.createContext("/product", new PostHandler());
 
         // Set up context for a GET request
         server.createContext("/product/", new GetHandler());
 
-        server.setExecutor(null); // creates a default executor
+        // Set up context for bulk imports of NDJSON
+        server.createContext("/product/import", new ImportHandler());
+
+        // Set up context for streaming every product out as NDJSON
+        server.createContext("/product/export", new ExportHandler());
+
+        // Set up context for a GET request to the service's metrics
+        server.createContext("/metrics", new MetricsHandler());
 
 	// Initialize the database with docker IP and ports
 	productDB.initialize(dockerIp, dbPort, redisPort);
@@ -81,6 +90,7 @@ public class ProductService
 
     /**
      * Handles POST requests for ProductService, parsing the incoming JSON data and directing it to specific operations.
+     * Also serves batch reads, GET /product?ids=1,2,3.
      * Implements the HttpHandler interface to handle HTTP exchanges.
      */
     static class PostHandler implements HttpHandler
@@ -99,25 +109,35 @@ public class ProductService
                 if ("POST".equals(exchange.getRequestMethod()))
                 {
 		    //("It's a POST");
-                    //Initialize variables
-                    String productData = getRequestBody(exchange);
-                    JSONObject jsonObject = new JSONObject(productData);
-
-                    // Parse the command
-                    String command = jsonObject.getString("command");
+                    // Decode the body straight from its bytes into a ProductRequest
+                    ProductRequest request;
+                    try (RequestBody body = RequestBody.read(exchange))
+                    {
+                        request = ProductRequest.parse(body.json());
+                    }
+                    catch (RequestBody.TooLargeException e)
+                    {
+                        sendResponse(exchange, 413, new JSONObject().toString());
+                        return;
+                    }
 
-                    switch (command)
+                    switch (String.valueOf(request.command))
                     {
                         case "create":
-                            create(exchange, jsonObject); break;
+                            create(exchange, request); break;
                         case "update":
-                            update(exchange, jsonObject); break;
+                            update(exchange, request); break;
                         case "delete":
-                            delete(exchange, jsonObject); break;
+                            delete(exchange, request); break;
                         default:
                             sendResponse(exchange, 400, new JSONObject().toString()); break;
                     }
                 }
+                else if ("GET".equals(exchange.getRequestMethod()))
+                {
+                    // GET /product?ids=1,2,3 reads a batch of products
+                    getMany(exchange);
+                }
             }
             catch (Exception e)
             {
@@ -133,38 +153,33 @@ public class ProductService
      * Handles the creation of a new product based on the provided JSON data.
      *
      * @param exchange The HttpExchange object representing the HTTP request and response.
-     * @param jsonObject The JSON data containing information about the product to be created.
+     * @param request The decoded request containing information about the product to be created.
      * @throws IOException If an I/O error occurs while handling the request.
      */
-    private static void create(HttpExchange exchange, JSONObject jsonObject) throws IOException {
+    private static void create(HttpExchange exchange, ProductRequest request) throws IOException {
         try
         {
             int id, quantity;
             float price;
             String name, description;
-            JSONObject responseBody = new JSONObject();
 
 	    //("Before everything");
-            if (jsonObject.has("id") && jsonObject.has("name") && jsonObject.has("description")
-                    && jsonObject.has("price") && jsonObject.has("quantity")) {
+            if (request.isComplete()) {
 
-                id = jsonObject.getInt("id");
-                name = jsonObject.getString("name");
-                description = jsonObject.getString("description");
-                price = jsonObject.getFloat("price");
-                quantity = jsonObject.getInt("quantity");
+                id = request.id;
+                name = request.name;
+                description = request.description;
+                price = request.price;
+                quantity = request.quantity;
 
 		//("Entered first if statement");
                 int createStatus = productDB.createProduct(id, name, description, price, quantity);
                 if (createStatus == 200) {
 		    //("Entered second if statement");
-                    responseBody.put("id", id);
-                    responseBody.put("name", name);
-                    responseBody.put("description", description);
-                    responseBody.put("price", price);
-                    responseBody.put("quantity", quantity);
-		    //(responseBody.toString());
-                    sendResponse(exchange, createStatus, responseBody.toString());
+                    try (JsonWriter responseBody = JsonWriter.acquire()) {
+                        Payloads.product(responseBody, id, name, description, price, quantity);
+                        responseBody.send(exchange, createStatus);
+                    }
 		    return;
                 } else {
                     sendResponse(exchange, createStatus, new JSONObject().toString());
@@ -189,10 +204,10 @@ public class ProductService
      * Handles the update of an existing product based on the provided JSON data.
      *
      * @param exchange The HttpExchange object representing the HTTP request and response.
-     * @param jsonObject The JSON data containing information about the product to be updated.
+     * @param request The decoded request containing information about the product to be updated.
      * @throws IOException If an I/O error occurs while handling the request.
      */
-    private static void update(HttpExchange exchange, JSONObject jsonObject) throws IOException {
+    private static void update(HttpExchange exchange, ProductRequest request) throws IOException {
         try
         {
             int id, quantity;
@@ -200,19 +215,25 @@ public class ProductService
             String name, description;
 
             // command and ID are the only required fields.
-            if (jsonObject.has("id")) {
-                id = jsonObject.getInt("id");
-                // Fields below are optional so provide null as the default value.
-                name = jsonObject.optString("name", null);
-                description = jsonObject.optString("description", null);
-                price = jsonObject.has("price") ? (float) jsonObject.getDouble("price") : 0;
-                quantity = jsonObject.has("quantity") ? jsonObject.getInt("quantity") : 0;
-
-                int updateStatus = productDB.updateProduct(id, name, description, price, quantity);
+            if (request.hasId) {
+                id = request.id;
+                // Fields below are optional: strings are null and numbers 0 when absent.
+                name = request.name;
+                description = request.description;
+                price = request.hasPrice ? request.price : 0;
+                quantity = request.hasQuantity ? request.quantity : 0;
+
+                UpdateResult update = productDB.updateProduct(id, name, description, price, quantity);
+                int updateStatus = update.status;
                 if (updateStatus == 200) {
-                    // Retrieve updated product data to include in the response.
-                    String productData = productDB.getProduct(id);
-                    sendResponse(exchange, updateStatus, new JSONObject(productData).toString());
+                    // Answer with the row the update returned; only a no-op update has to read the product.
+                    String productData = update.json != null ? update.json : productDB.getProduct(id);
+                    if (productData.equals("")) {
+                        // The product does not exist
+                        sendResponse(exchange, 404, new JSONObject().toString());
+                        return;
+                    }
+                    sendResponse(exchange, updateStatus, productData);
 		    return;
                 } else {
                     sendResponse(exchange, updateStatus, new JSONObject().toString());
@@ -234,23 +255,22 @@ public class ProductService
      * Handles the deletion of an existing product based on the provided JSON data.
      *
      * @param exchange The HttpExchange object representing the HTTP request and response.
-     * @param jsonObject The JSON data containing information about the product to be deleted.
+     * @param request The decoded request containing information about the product to be deleted.
      * @throws IOException If an I/O error occurs while handling the request.
      */
-    private static void delete(HttpExchange exchange, JSONObject jsonObject) throws IOException {
+    private static void delete(HttpExchange exchange, ProductRequest request) throws IOException {
         try
         {
             int id, quantity;
             float price;
             String name, description;
             // All the fields are required
-            if (jsonObject.has("id") && jsonObject.has("name") && jsonObject.has("description")
-                    && jsonObject.has("price") && jsonObject.has("quantity")) {
+            if (request.isComplete()) {
 
-                id = jsonObject.getInt("id");
-                name = jsonObject.getString("name");
-                price = jsonObject.getFloat("price");
-                quantity = jsonObject.getInt("quantity");
+                id = request.id;
+                name = request.name;
+                price = request.price;
+                quantity = request.quantity;
 
                 int deleteStatus = productDB.deleteProduct(id, name, price, quantity);
                 // The deletion is valid, and return empty response with status code 200.
@@ -276,6 +296,29 @@ public class ProductService
         }
     }
 
+    /**
+     * Retrieves a batch of products listed in the ids query parameter, answering with a JSON array that holds
+     * each product in the order requested, or a status object for each id that was not found.
+     *
+     * @param exchange The HttpExchange object representing the HTTP request and response.
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    private static void getMany(HttpExchange exchange) throws IOException
+    {
+        int[] ids = BatchIds.parse(exchange);
+        if (ids == null)
+        {
+            sendResponse(exchange, 400, new JSONObject().toString());
+            return;
+        }
+        String[] payloads = productDB.getProducts(ids);
+        try (JsonWriter writer = JsonWriter.acquire())
+        {
+            Payloads.batch(writer, ids, payloads);
+            writer.send(exchange, 200);
+        }
+    }
+
     /**
      * Handles GET requests for product information, specifically retrieving details based on product ID.
      * This class is responsible for processing GET requests to the /product endpoint.
@@ -305,7 +348,7 @@ public class ProductService
 		    return;
                 } else {
                     // Valid response, which returns product's data: id, name, description, price, quantity
-                    sendResponse(exchange, 200, new JSONObject(productData).toString());
+                    sendResponse(exchange, 200, productData);
 		    return;
                 }
             }
@@ -318,52 +361,128 @@ public class ProductService
     }
 
     /**
-     * Sends an HTTP response to the client with the specified status code and response body.
-     *
-     * @param exchange The HttpExchange object representing the HTTP request and response.
-     * @param rCode The HTTP status code to be sent in the response.
-     * @param response The response body to be sent in the response.
-     * @throws IOException If an I/O error occurs while sending the response.
+     * Handles bulk imports, POST /product/import, whose body holds one product per line as newline delimited JSON
+     * with the same fields as a create. The body is streamed and the products are inserted in batches, each
+     * committed on its own; the answer reports how many were imported and why each rejected line failed.
+     * New products are only stored in Redis when the query asks for it with cache=true.
      */
-    public static void sendResponse(HttpExchange exchange, int rCode, String response) throws IOException
+    static class ImportHandler implements HttpHandler
     {
-//        exchange.sendResponseHeaders(rCode, response.length());
-//        OutputStream os = exchange.getResponseBody();
-//        os.write(response.getBytes(StandardCharsets.UTF_8));
-//        os.close();
-        // Convert the response String to bytes to correctly measure its length in bytes
-        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+        private static final int batchSize = Integer.getInteger("import.batchSize", 5000);
 
-        // Set the necessary response headers before sending the response body
-        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!"POST".equals(exchange.getRequestMethod()))
+            {
+                sendResponse(exchange, 405, new JSONObject().toString());
+                return;
+            }
+            boolean fillCache = "true".equals(QueryParams.parse(exchange.getRequestURI().getRawQuery()).get("cache"));
 
-        // Correctly set the content length using the byte length of the response
-        exchange.sendResponseHeaders(rCode, responseBytes.length);
+            ImportReport report = new ImportReport();
+            List<ProductRequest> batch = new ArrayList<>(batchSize);
+            List<Integer> batchLines = new ArrayList<>(batchSize);
+            long start = System.nanoTime();
+            try (InputStream body = exchange.getRequestBody())
+            {
+                NdjsonReader lines = new NdjsonReader(body);
+                JsonReader line;
+                while ((line = lines.next()) != null)
+                {
+                    if (lines.tooLong())
+                    {
+                        report.fail(lines.lineNumber(), "line too long");
+                        continue;
+                    }
+                    ProductRequest request;
+                    try
+                    {
+                        request = ProductRequest.parse(line);
+                    }
+                    catch (JSONException e)
+                    {
+                        report.fail(lines.lineNumber(), "invalid JSON");
+                        continue;
+                    }
+                    if (!request.isComplete())
+                    {
+                        report.fail(lines.lineNumber(), "missing fields");
+                        continue;
+                    }
+                    if (request.price < 0 || request.quantity < 0)
+                    {
+                        report.fail(lines.lineNumber(), "negative price or quantity");
+                        continue;
+                    }
+                    batch.add(request);
+                    batchLines.add(lines.lineNumber());
+                    if (batch.size() == batchSize)
+                    {
+                        productDB.importProducts(batch, batchLines, fillCache, report);
+                        batch.clear();
+                        batchLines.clear();
+                    }
+                }
+                if (!batch.isEmpty())
+                {
+                    productDB.importProducts(batch, batchLines, fillCache, report);
+                }
+            }
+            catch (IOException e)
+            {
+                // The batches before the broken read are already committed and stay in the report
+                System.out.println("Import interrupted: " + e.getMessage());
+            }
+            Metrics.counter("import.product.imported").add(report.importedCount());
+            Metrics.counter("import.product.failed").add(report.failedCount());
+            Metrics.histogram("import.product.micros").record((System.nanoTime() - start) / 1000);
 
-        // Write the response bytes and close the OutputStream
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
+            try (JsonWriter writer = JsonWriter.acquire())
+            {
+                report.write(writer);
+                writer.send(exchange, 200);
+            }
         }
     }
 
     /**
-     * Reads and retrieves the request body from an HTTP exchange.
-     *
-     * @param exchange The HttpExchange object representing the HTTP request and response.
-     * @return The content of the request body as a String.
-     * @throws IOException If an I/O error occurs while reading the request body.
+     * Handles GET /product/export, which streams all products as newline delimited JSON, one per line in id order.
      */
-    public static String getRequestBody(HttpExchange exchange) throws IOException
+    static class ExportHandler implements HttpHandler
     {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)))
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
         {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null)
+            if (!"GET".equals(exchange.getRequestMethod()))
             {
-                requestBody.append(line);
+                sendResponse(exchange, 405, new JSONObject().toString());
+                return;
             }
-            return requestBody.toString();
+            Export.stream(exchange, ReplicaRouter.forScan(ProductDatabase.dataSource), "product",
+                    "SELECT id, name, description, price, quantity FROM products ORDER BY id",
+                    (rs, writer) -> Payloads.product(writer, rs.getInt(1), rs.getString(2), rs.getString(3), rs.getFloat(4), rs.getInt(5)));
+        }
+    }
+
+    /**
+     * Sends an HTTP response to the client with the specified status code and response body.
+     *
+     * @param exchange The HttpExchange object representing the HTTP request and response.
+     * @param rCode The HTTP status code to be sent in the response.
+     * @param response The response body to be sent in the response.
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    public static void sendResponse(HttpExchange exchange, int rCode, String response) throws IOException
+    {
+//        exchange.sendResponseHeaders(rCode, response.length());
+//        OutputStream os = exchange.getResponseBody();
+//        os.write(response.getBytes(StandardCharsets.UTF_8));
+//        os.close();
+        // Encode the response into a pooled buffer, which also gives its exact length in bytes
+        try (JsonWriter writer = JsonWriter.acquire()) {
+            writer.raw(response);
+            writer.send(exchange, rCode);
         }
     }
 }
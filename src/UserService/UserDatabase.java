@@ -5,8 +5,15 @@ import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.SetParams;
 
 /**
  * UserDatabase class provides methods for managing user data in a SQLite database.
@@ -20,6 +27,7 @@ class UserDatabase {
     public static String redisHost = "localhost";  // Change to your Redis host IP
     public static int redisPort = 6379;
     public static HikariDataSource dataSource;
+    private static final SingleFlight<String> userLoads = new SingleFlight<>("singleflight.user");
 
 //    static {
 //        // Configure HikariCP
@@ -45,24 +53,77 @@ class UserDatabase {
         return dataSource.getConnection();
     }
 
-
-    private Jedis connectToRedis() {
-        try {
-            Jedis jedis = new Jedis(redisHost, redisPort);
-            return jedis; // Successfully connected
-        } catch (Exception e) {
-            System.out.println("Failed to connect to Redis: " + e.getMessage());
-            return null; // Connection failed
-        }
+    /**
+     * Opens a connection for a read-only query of the given rows, on the read replica when ReplicaRouter
+     * allows it and on the primary otherwise.
+     * @param keys are the cache keys of the rows read.
+     */
+    private Connection connectForRead(String... keys) throws SQLException {
+        return ReplicaRouter.connect(dataSource, ReplicaRouter.useReplica(keys));
     }
 
 
-    public void storeInRedis(String key, String json) {
-	try {
-	        Jedis jedis = connectToRedis(); // Adjust host and port if necessary
-	        if (jedis != null) {
-	            jedis.set(key, json);
-	            jedis.close();
+    /**
+     * Looks up several keys in the L1 cache, then the rest in Redis with one MGET.
+     * @param keys are the keys to look up.
+     * @return The cached value of each key, in the same order, with null for misses.
+     */
+    public String[] retrieveManyFromRedis(String... keys) {
+	String[] values = new String[keys.length];
+	List<Integer> missing = new ArrayList<>();
+	for (int i = 0; i < keys.length; i++) {
+		values[i] = NearCache.get(keys[i]);
+		if (values[i] == null) {
+			missing.add(i);
+		}
+	}
+	if (missing.isEmpty()) {
+		return values;
+	}
+	String[] missingKeys = new String[missing.size()];
+	for (int i = 0; i < missingKeys.length; i++) {
+		missingKeys[i] = keys[missing.get(i)];
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        List<String> fetched = jedis.mget(missingKeys);
+	        for (int i = 0; i < missingKeys.length; i++) {
+	                values[missing.get(i)] = fetched.get(i);
+	                NearCache.put(missingKeys[i], fetched.get(i));
+	        }
+	} catch (Exception e) {
+		System.out.println("Failed to retrieve from Redis: " + e.getMessage());
+	}
+	return values;
+    }
+
+    /**
+     * Caches the rows read by a batch: payloads are handed to the CacheWriter as versioned fills, like the
+     * fill of a single row, so they only reach the L1 cache if Redis took them. Tombstones for the ids that
+     * do not exist are stored in one pipeline, only where Redis has nothing for them yet.
+     * @param found maps the key of each row read to its payload.
+     * @param versions maps the key of each row read to its version; older versions than the cached one are not written.
+     * @param missing are the keys of the ids that do not exist.
+     */
+    private void backfill(Map<String, String> found, Map<String, Long> versions, List<String> missing) {
+	for (Map.Entry<String, String> row : found.entrySet()) {
+		VersionedCache.store(row.getKey(), row.getValue(), versions.get(row.getKey()), false);
+	}
+	if (!NegativeCache.enabled || missing.isEmpty()) {
+		return;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        Pipeline pipeline = jedis.pipelined();
+	        Map<String, Response<String>> tombstones = new HashMap<>();
+	        for (String key : missing) {
+	                tombstones.put(key, pipeline.set(key, NegativeCache.TOMBSTONE,
+	                        SetParams.setParams().nx().px(NegativeCache.ttlMillis)));
+	        }
+	        pipeline.sync();
+	        for (Map.Entry<String, Response<String>> tombstone : tombstones.entrySet()) {
+	                if ("OK".equals(tombstone.getValue().get())) {
+	                        NearCache.put(tombstone.getKey(), NegativeCache.TOMBSTONE, NegativeCache.ttlMillis);
+	                        Metrics.increment("negativecache.stores");
+	                }
 	        }
 	} catch (Exception e) {
 		System.out.println("Failed to store in Redis: " + e.getMessage());
@@ -70,32 +131,67 @@ class UserDatabase {
     }
 
     public String retrieveFromRedis(String key) {
-	try {
-	        Jedis jedis = connectToRedis(); // Adjust host and port if necessary
-	        if (jedis != null) {
-	            String value = jedis.get(key);
-	            jedis.close();
-	            return value;
-	        }
-        return null;
+	// Serve hot keys from the in-process cache before asking Redis
+	String local = NearCache.get(key);
+	if (local != null) {
+		return local;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        String value = jedis.get(key);
+	        NearCache.put(key, value);
+	        return value;
 	} catch (Exception e) {
 		System.out.println("Failed to retrieve from Redis: " + e.getMessage());
 		return null;
 	}
     }
 
-    public void invalidateInRedis(String key) {
-	try {
-	        Jedis jedis = connectToRedis(); // Adjust host and port if necessary
-	        if (jedis != null) {
-	            jedis.del(key);
-	            jedis.close();
+    /**
+     * Records that the row behind a key does not exist. The tombstone is only written if the key is still
+     * absent in Redis, so it cannot hide a row that was created while this lookup was running.
+     * @param key is the cache key of the missing row.
+     */
+    public void storeTombstone(String key) {
+	if (!NegativeCache.enabled) {
+		return;
+	}
+	try (Jedis jedis = RedisPool.getResource()) {
+	        if ("OK".equals(jedis.set(key, NegativeCache.TOMBSTONE, SetParams.setParams().nx().px(NegativeCache.ttlMillis)))) {
+	                NearCache.put(key, NegativeCache.TOMBSTONE, NegativeCache.ttlMillis);
+	                Metrics.increment("negativecache.stores");
 	        }
 	} catch (Exception e) {
-		System.out.println("Failed to invalidate in Redis: " + e.getMessage());
+		System.out.println("Failed to store tombstone in Redis: " + e.getMessage());
 	}
     }
 
+    /**
+     * Stores the value of a newly created row with its version, replacing whatever is cached for the key
+     * (e.g. a tombstone) unless a later write of the row got there first, and tells the other instances to
+     * drop their local copies.
+     * @param key is the cache key of the new row.
+     * @param json is its payload.
+     * @param version is the version the insert gave the row.
+     */
+    public void replaceInRedis(String key, String json, long version) {
+	ReplicaRouter.wrote(key);
+	VersionedCache.store(key, json, version, true);
+    }
+
+    /**
+     * Invalidates the cached row of a key after a write.
+     * @param key is the cache key of the row.
+     * @param version is the version of the row after the write, or a version taken after it was deleted, so
+     *        that reads that started before the write cannot fill the cache with the old row.
+     */
+    public void invalidateInRedis(String key, long version) {
+	// The row was just written, so this instance reads it from the primary for a while
+	ReplicaRouter.wrote(key);
+	// Drop the local copy now; the DEL and the invalidation for the other instances go out in the next batch.
+	// The change listener invalidates the row again once the change commits, as a backstop
+	CacheWriter.delete(key, version);
+    }
+
 
 
     /**
@@ -115,14 +211,18 @@ class UserDatabase {
 	config.setJdbcUrl(url);
 	config.setUsername(user);
 	config.setPassword(password);
+	// The service invalidates the cache for its own writes, so they are not sent to the change listener
+	config.setConnectionInitSql("SET app.cache_managed = 'on'");
 
 	dataSource = new HikariDataSource(config);
+	// Send read-only queries to a replica when -Ddb.replica.host names one
+	ReplicaRouter.initialize(user, password);
 
-	// Test redis connection
-	Jedis jedis = connectToRedis();
-	if (jedis != null) {
+	// Share one pool of Redis connections across every cache call
+	RedisPool.initialize(redisHost, redisPort);
+	NearCache.initialize(redisHost, redisPort);
+	if (RedisPool.ping()) {
 		System.out.println("Connected to Redis server at " + redisHost + ":" + redisPort);
-		jedis.close();
 	} else {
 		System.out.println("Failed to connect to Redis server at " + redisHost + ":" + redisPort);
 	}
@@ -136,10 +236,22 @@ class UserDatabase {
                     "password TEXT NOT NULL," +
                     "deleted BOOLEAN NOT NULL DEFAULT FALSE)";
             statement.execute(sql);
+            // Row versions for the write-through cache, taken from a sequence so they only ever grow
+            statement.execute("CREATE SEQUENCE IF NOT EXISTS users_version_seq");
+            statement.execute("ALTER TABLE users ADD COLUMN IF NOT EXISTS version BIGINT NOT NULL " +
+                    "DEFAULT nextval('users_version_seq')");
+            // Send every change committed outside the services as a notification for the cache listener; the
+            // services invalidate their own writes, and a notification would serialise their commits (see install)
+            if (ChangeListener.isEnabled()) {
+                ChangeListener.install(con, "users", "id", true, true);
+            }
         }
         catch (SQLException e) {
             System.out.println(e.getMessage());
         }
+
+	ChangeListener.watch("users", "user:");
+	ChangeListener.start(url, user, password);
     }
 
     public static void shutdownPool() {
@@ -147,6 +259,104 @@ class UserDatabase {
             dataSource.close();
             System.out.println("User Database connection pool successfully shut down.");
         }
+        ChangeListener.shutdown();
+        ReplicaRouter.shutdown();
+        // Send the cache writes still queued while Redis is reachable
+        CacheWriter.shutdown();
+        NearCache.shutdown();
+        RedisPool.shutdown();
+    }
+
+    /**
+     * Inserts a batch of users read by a bulk import with one statement, then updates the cache for the new
+     * rows in one pipeline. Rows whose id already exists are skipped and reported, as are repeats of an id
+     * within the batch after its first line. The insert is not sent to the change listener row by row
+     * (app.cache_bulk); the batch clears the tombstones of its new ids with one script instead.
+     *
+     * @param rows are the validated users of the batch, in file order.
+     * @param lines holds the line number of each row.
+     * @param fillCache is whether the new users are stored in Redis; if not, only their tombstones are cleared.
+     * @param report receives the outcome of every row.
+     */
+    public void importUsers(List<UserRequest> rows, List<Integer> lines, boolean fillCache, ImportReport report) {
+        Integer[] ids = new Integer[rows.size()];
+        String[] usernames = new String[rows.size()];
+        String[] emails = new String[rows.size()];
+        String[] passwords = new String[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            UserRequest row = rows.get(i);
+            ids[i] = row.id;
+            usernames[i] = row.username;
+            emails[i] = row.email;
+            passwords[i] = hashPassword(row.password);
+        }
+
+        String sql = "INSERT INTO users(id, username, email, password) " +
+                "SELECT * FROM unnest(?::integer[], ?::text[], ?::text[], ?::text[]) " +
+                "ON CONFLICT DO NOTHING RETURNING id, version";
+        Map<Integer, Long> inserted = new HashMap<>();
+        try (Connection con = this.connect()) {
+            con.setAutoCommit(false);
+            try (Statement bulk = con.createStatement();
+                 PreparedStatement statement = con.prepareStatement(sql)) {
+                // The batch clears its own tombstones below, so its rows are not sent to the change listener one by one
+                bulk.execute("SET LOCAL app.cache_bulk = 'on'");
+                statement.setArray(1, con.createArrayOf("integer", ids));
+                statement.setArray(2, con.createArrayOf("text", usernames));
+                statement.setArray(3, con.createArrayOf("text", emails));
+                statement.setArray(4, con.createArrayOf("text", passwords));
+                ResultSet rs = statement.executeQuery();
+                while (rs.next()) {
+                    inserted.put(rs.getInt(1), rs.getLong(2));
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+            for (Integer line : lines) {
+                report.fail(line, "database error");
+            }
+            return;
+        }
+
+        List<String> keys = new ArrayList<>(inserted.size());
+        List<String> payloads = new ArrayList<>();
+        List<Long> versions = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            UserRequest row = rows.get(i);
+            Long version = inserted.remove(row.id);
+            if (version == null) {
+                report.fail(lines.get(i), "duplicate id");
+                continue;
+            }
+            report.imported();
+            String key = "user:" + row.id;
+            NearCache.invalidate(key);
+            keys.add(key);
+            if (fillCache) {
+                payloads.add(Payloads.user(row.id, row.username, row.email, passwords[i]));
+                versions.add(version);
+            }
+        }
+        if (keys.isEmpty()) {
+            return;
+        }
+        try (Jedis jedis = RedisPool.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            // Other instances may hold a tombstone for some of the ids; a new id can have nothing else cached
+            NegativeCache.clear(pipeline, keys);
+            for (int i = 0; i < payloads.size(); i++) {
+                VersionedCache.store(pipeline, keys.get(i), payloads.get(i), versions.get(i));
+            }
+            pipeline.sync();
+        } catch (Exception e) {
+            System.out.println("Failed to update Redis after import: " + e.getMessage());
+        }
     }
 
     /**
@@ -158,19 +368,19 @@ class UserDatabase {
      * @return An HTTP status code representing the result of the operation.
      */
     public int createUser(int id, String username, String email, String password) {
-        String sql = "INSERT INTO users(id, username, email, password) VALUES(?, ?, ?, ?)";
+        String sql = "INSERT INTO users(id, username, email, password) VALUES(?, ?, ?, ?) RETURNING version";
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sql)) {
             statement.setInt(1, id);
             statement.setString(2, username);
             statement.setString(3, email);
             statement.setString(4, hashPassword(password));
-            statement.executeUpdate();
+            ResultSet rs = statement.executeQuery();
+            rs.next();
 
-            // Cache the new user data in Redis
-            String userJson = String.format("{\"id\": %d, \"username\": \"%s\", \"email\": \"%s\", \"password\": \"%s\"}",
-                                             id, username, email, hashPassword(password));
-            storeInRedis("user:" + id, userJson);
+            // Cache the new user data in Redis, replacing any tombstone for the id
+            String userJson = Payloads.user(id, username, email, hashPassword(password));
+            replaceInRedis("user:" + id, userJson, rs.getLong("version"));
 
             return 200; // OK - User created successfully
         } catch (SQLException e) {
@@ -186,28 +396,105 @@ class UserDatabase {
     /**
      * Retrieves a user's information from the database based on the user ID.
      * @param id is the ID of the user to retrieve.
-     * @return A JSON string containing the user's information, or an empty string if not found.
+     * @return A JSON string containing the user's information, or an empty string if not found or deleted.
      */
     public String getUser(int id) {
         // Attempt to retrieve from Redis first
         String cachedUser = retrieveFromRedis("user:" + id);
+        if (NegativeCache.hit(cachedUser)) {
+            return "";
+        }
         if (cachedUser != null) {
             return cachedUser;
         }
 
-        // If not in cache, retrieve from database
-        String sql = "SELECT id, username, email, password FROM users WHERE id = ?";
-        try (Connection con = this.connect();
+        // Concurrent misses of the same user share one query
+        return userLoads.load("user:" + id, () -> loadUser(id));
+    }
+
+    /**
+     * Retrieves several users at once: the cached ones with one MGET, and all the others with one query.
+     *
+     * @param ids are the IDs of the users to retrieve, possibly repeated.
+     * @return The JSON string of each user in the order of ids, an empty string if it does not exist, or null
+     *         if it could not be read.
+     */
+    public String[] getUsers(int[] ids) {
+        String[] keys = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            keys[i] = "user:" + ids[i];
+        }
+        String[] payloads = retrieveManyFromRedis(keys);
+
+        List<Integer> misses = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (NegativeCache.hit(payloads[i])) {
+                payloads[i] = "";
+            } else if (payloads[i] == null && !misses.contains(ids[i])) {
+                misses.add(ids[i]);
+            }
+        }
+        Metrics.counter("batch.user.ids").add(ids.length);
+        if (misses.isEmpty()) {
+            return payloads;
+        }
+        Metrics.counter("batch.user.misses").add(misses.size());
+
+        String sql = "SELECT id, username, email, password, version FROM users WHERE id = ANY(?) AND NOT deleted";
+        Map<String, String> found = new HashMap<>();
+        Map<String, Long> versions = new HashMap<>();
+        String[] missKeys = new String[misses.size()];
+        for (int i = 0; i < missKeys.length; i++) {
+            missKeys[i] = "user:" + misses.get(i);
+        }
+        try (Connection con = this.connectForRead(missKeys);
+             PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.setArray(1, con.createArrayOf("integer", misses.toArray()));
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+                versions.put("user:" + rs.getInt("id"), rs.getLong("version"));
+                found.put("user:" + rs.getInt("id"), Payloads.user(rs.getInt("id"), rs.getString("username"), rs.getString("email"),
+                                           hashPassword(rs.getString("password"))));
+            }
+        } catch (SQLException e) {
+            // The misses stay null and are reported as unavailable
+            System.out.println(e.getMessage());
+            return payloads;
+        }
+
+        List<String> missing = new ArrayList<>();
+        for (Integer id : misses) {
+            if (!found.containsKey("user:" + id)) {
+                missing.add("user:" + id);
+            }
+        }
+        backfill(found, versions, missing);
+        for (int i = 0; i < ids.length; i++) {
+            if (payloads[i] == null) {
+                payloads[i] = found.getOrDefault(keys[i], "");
+            }
+        }
+        return payloads;
+    }
+
+    /**
+     * Reads a user from the database and caches the result, or a tombstone if there is no such user.
+     */
+    private String loadUser(int id) {
+        String sql = "SELECT id, username, email, password, version FROM users WHERE id = ? AND NOT deleted";
+        try (Connection con = this.connectForRead("user:" + id);
              PreparedStatement statement = con.prepareStatement(sql)) {
             statement.setInt(1, id);
             ResultSet rs = statement.executeQuery();
             if (rs.next()) {
-                String userJson = String.format("{\"id\": %d, \"username\": \"%s\", \"email\": \"%s\", \"password\": \"%s\"}",
-                                                 rs.getInt("id"), rs.getString("username"), rs.getString("email"), hashPassword(rs.getString("password")));
-                // Store in Redis for future requests
-                storeInRedis("user:" + id, userJson);
+                String userJson = Payloads.user(rs.getInt("id"), rs.getString("username"), rs.getString("email"),
+                                                hashPassword(rs.getString("password")));
+                // Store in Redis for future requests, unless an update already cached a newer version
+                VersionedCache.store("user:" + id, userJson, rs.getLong("version"), false);
                 return userJson;
             }
+            // Remember that the user does not exist so the next lookup skips the database
+            storeTombstone("user:" + id);
         } catch (SQLException e) {
             System.out.println(e.getMessage());
         }
@@ -215,7 +502,7 @@ class UserDatabase {
     }
 
     public int deleteUser(int id, String username, String email, String password) {
-        String sql = "UPDATE users SET deleted = TRUE WHERE id = ? AND username = ? AND email = ? AND password = ?";
+        String sql = "UPDATE users SET deleted = TRUE, version = nextval('users_version_seq') WHERE id = ? AND username = ? AND email = ? AND password = ? RETURNING version";
 
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sql)) {
@@ -223,11 +510,11 @@ class UserDatabase {
             statement.setString(2, username);
             statement.setString(3, email);
             statement.setString(4, password);
-            int affectedRows = statement.executeUpdate();
+            ResultSet rs = statement.executeQuery();
 
             // User had been updated if any of the columns' values have changed
-            if (affectedRows > 0) {
-                invalidateInRedis("user:" + id);
+            if (rs.next()) {
+                invalidateInRedis("user:" + id, rs.getLong(1));
                 return 200;
             }
             // As specified in Piazza post @127
@@ -257,7 +544,12 @@ class UserDatabase {
         }
     }
 
-    public int updateUser(int id, String username, String email, String password) {
+    /**
+     * Updates the given fields of a user and writes the updated row, read back by the same statement,
+     * through to the cache.
+     * @return The status, with the updated user if it is 200 and a field was changed.
+     */
+    public UpdateResult updateUser(int id, String username, String email, String password) {
         StringBuilder sqlUpdate = new StringBuilder("UPDATE users SET ");
         boolean fieldAdded = false;
 
@@ -275,11 +567,12 @@ class UserDatabase {
         }
 
         if (!fieldAdded) {
-            return 200; // No update needed
+            return UpdateResult.status(200); // No update needed
         }
 
-        sqlUpdate.delete(sqlUpdate.length() - 2, sqlUpdate.length()); // Remove last comma and space
-        sqlUpdate.append(" WHERE id = ?");
+        // Every change takes a new version, which orders the writes of this row into the cache
+        sqlUpdate.append("version = nextval('users_version_seq')");
+        sqlUpdate.append(" WHERE id = ? RETURNING id, username, email, password, deleted, version");
 
         try (Connection con = this.connect();
              PreparedStatement statement = con.prepareStatement(sqlUpdate.toString())) {
@@ -295,19 +588,22 @@ class UserDatabase {
             }
             statement.setInt(index, id);
 
-            int affectedRows = statement.executeUpdate();
-            if (affectedRows > 0) {
-                // If update was successful, invalidate Redis cache
-//                String updatedUserJson = String.format("{\"id\": %d, \"username\": \"%s\", \"email\": \"%s\", \"password\": \"%s\"}",
-//                                                        id, username, email, hashPassword(password));
-//                storeInRedis("user:" + id, updatedUserJson);
-		invalidateInRedis("user:" + id);
-                return 200;
+            ResultSet rs = statement.executeQuery();
+            if (rs.next()) {
+                if (rs.getBoolean("deleted")) {
+                    return UpdateResult.status(400); // The user was deleted
+                }
+                // Write the updated row through to Redis, unless a newer version got there first
+                String userJson = Payloads.user(rs.getInt("id"), rs.getString("username"), rs.getString("email"),
+                                                hashPassword(rs.getString("password")));
+                ReplicaRouter.wrote("user:" + id);
+                VersionedCache.store("user:" + id, userJson, rs.getLong("version"), true);
+                return new UpdateResult(200, userJson);
             } else {
-                return 404; // User not found
+                return UpdateResult.status(404); // User not found
             }
         } catch (SQLException e) {
-            return 500; // Internal Server Error
+            return UpdateResult.status(500); // Internal Server Error
         }
     }
 
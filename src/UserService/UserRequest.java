@@ -0,0 +1,57 @@
+/**
+ * UserRequest is the decoded body of a POST to /user, read straight from the request bytes.
+ * Absent and null string fields are left null.
+ */
+class UserRequest {
+
+    private static final byte[] COMMAND = JsonReader.name("command");
+    private static final byte[] ID = JsonReader.name("id");
+    private static final byte[] USERNAME = JsonReader.name("username");
+    private static final byte[] EMAIL = JsonReader.name("email");
+    private static final byte[] PASSWORD = JsonReader.name("password");
+
+    String command;
+    int id;
+    boolean hasId;
+    String username;
+    String email;
+    String password;
+
+    /**
+     * Decodes a user request. Unknown fields are skipped.
+     * @param reader is positioned at the start of the JSON body.
+     * @return The decoded request.
+     * @throws org.json.JSONException If the body is not valid JSON or a field has the wrong type.
+     */
+    static UserRequest parse(JsonReader reader) {
+        UserRequest request = new UserRequest();
+        reader.beginObject();
+        while (reader.nextField()) {
+            if (reader.readNull()) {
+                // A null field is treated as missing
+            } else if (reader.nameEquals(COMMAND)) {
+                request.command = reader.readString();
+            } else if (reader.nameEquals(ID)) {
+                request.id = reader.readInt();
+                request.hasId = true;
+            } else if (reader.nameEquals(USERNAME)) {
+                request.username = reader.readString();
+            } else if (reader.nameEquals(EMAIL)) {
+                request.email = reader.readString();
+            } else if (reader.nameEquals(PASSWORD)) {
+                request.password = reader.readString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endDocument();
+        return request;
+    }
+
+    /**
+     * @return true if the id and every user field are present.
+     */
+    boolean isComplete() {
+        return hasId && username != null && email != null && password != null;
+    }
+}
@@ -11,7 +11,8 @@ import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
 
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
@@ -56,17 +57,24 @@ public class UserService
 	dbPort = args[2];
 	redisPort = args[3];
 
-        HttpServer server = HttpServer.create(new InetSocketAddress(ip, port), 0);
-        // Example: Set a custom executor with a fixed-size thread pool
-        server.setExecutor(Executors.newFixedThreadPool(20)); // Adjust the pool size as needed
+        HttpServer server = HttpServers.create(new InetSocketAddress(ip, port));
+        // Handle requests on a fixed thread pool or on virtual threads (see ServerExecutors)
+        server.setExecutor(ServerExecutors.create());
 
-        // Set up context for a POST request
+        // Set up context for a POST request, and for batch GET requests (/user?ids=...)
         server.createContext("/user", new PostHandler());
 
         // Set up context for a GET request
         server.createContext("/user/", new GetHandler());
 
-        server.setExecutor(null); // creates a default executor
+        // Set up context for bulk imports of NDJSON
+        server.createContext("/user/import", new ImportHandler());
+
+        // Set up context for streaming every user out as NDJSON
+        server.createContext("/user/export", new ExportHandler());
+
+        // Set up context for a GET request to the service's metrics
+        server.createContext("/metrics", new MetricsHandler());
 
 	// Initialize the database with docker IP and ports
 	userDB.initialize(dockerIp, dbPort, redisPort);
@@ -82,12 +90,13 @@ public class UserService
 
     /**
      * Handles HTTP POST requests for the UserService application.
-     * Parses the request body into a JSONObject and performs actions based on the specified command.
+     * Decodes the request body into a UserRequest and performs actions based on the specified command.
+     * Also serves batch reads, GET /user?ids=1,2,3.
      */
     static class PostHandler implements HttpHandler
     {
         /**
-         * Handles HTTP POST requests by parsing the request body into a JSONObject
+         * Handles HTTP POST requests by decoding the request body into a UserRequest
          * and invoking corresponding actions based on the specified command.
          *
          * @param exchange The HTTP exchange object representing the client-server communication.
@@ -99,26 +108,36 @@ public class UserService
             {
                 if ("POST".equals(exchange.getRequestMethod()))
                 {
-                    //Initialize variables
-                    String userData = getRequestBody(exchange);
-                    JSONObject jsonObject = new JSONObject(userData);
-
-                    // Parse the command
-                    String command = jsonObject.getString("command");
+                    // Decode the body straight from its bytes into a UserRequest
+                    UserRequest request;
+                    try (RequestBody body = RequestBody.read(exchange))
+                    {
+                        request = UserRequest.parse(body.json());
+                    }
+                    catch (RequestBody.TooLargeException e)
+                    {
+                        sendResponse(exchange, 413, new JSONObject().toString());
+                        return;
+                    }
 
-                    switch (command)
+                    switch (String.valueOf(request.command))
                     {
                         case "create":
-                            create(exchange, jsonObject); break;
+                            create(exchange, request); break;
                         case "update":
-                            update(exchange, jsonObject); break;
+                            update(exchange, request); break;
                         case "delete":
-                            delete(exchange, jsonObject); break;
+                            delete(exchange, request); break;
                         default:
 			    //("HELLO 103");
                             sendResponse(exchange, 400, new JSONObject().toString()); break;
                     }
                 }
+                else if ("GET".equals(exchange.getRequestMethod()))
+                {
+                    // GET /user?ids=1,2,3 reads a batch of users
+                    getMany(exchange);
+                }
             }
             catch (Exception e)
             {
@@ -135,32 +154,28 @@ public class UserService
      * Creates a new user based on the provided JSON data.
      *
      * @param exchange The HTTP exchange object representing the client-server communication.
-     * @param jsonObject The JSONObject containing user data.
+     * @param request The decoded request containing user data.
      * @throws IOException If an I/O error occurs during the user creation process.
      */
-    private static void create(HttpExchange exchange, JSONObject jsonObject) throws IOException {
+    private static void create(HttpExchange exchange, UserRequest request) throws IOException {
         try {
             // Check if all required fields are present, including the ID
-            if (jsonObject.has("id") && jsonObject.has("username") && jsonObject.has("email") && jsonObject.has("password")) {
-
-	            JSONObject responseBody = new JSONObject();
+            if (request.isComplete()) {
 
-	            // Extracting data from JSON object
-	            int id = jsonObject.getInt("id");
-	            String username = jsonObject.getString("username");
-	            String email = jsonObject.getString("email");
-	            String password = jsonObject.getString("password"); // Consider hashing
+	            // Extracting data from the request
+	            int id = request.id;
+	            String username = request.username;
+	            String email = request.email;
+	            String password = request.password; // Consider hashing
 
 	            // Attempt to create a new user in the database, passing the ID
 	            int statusCode = userDB.createUser(id, username, email, password);
 
-	            responseBody.put("id", id);
-	            responseBody.put("username", username);
-	            responseBody.put("email", email);
-	            responseBody.put("password", UserDatabase.hashPassword(password));
-
 	            if (statusCode == 200) {
-	                sendResponse(exchange, 200, responseBody.toString());
+	                try (JsonWriter responseBody = JsonWriter.acquire()) {
+	                    Payloads.user(responseBody, id, username, email, UserDatabase.hashPassword(password));
+	                    responseBody.send(exchange, 200);
+	                }
 			return;
 	            } else {
 	                sendResponse(exchange, 409, new JSONObject().toString());
@@ -182,27 +197,33 @@ public class UserService
      * Updates an existing user based on the provided JSON data.
      *
      * @param exchange The HTTP exchange object representing the client-server communication.
-     * @param jsonObject The JSONObject containing updated user data.
+     * @param request The decoded request containing updated user data.
      * @throws IOException If an I/O error occurs during the user update process.
      */
-    private static void update(HttpExchange exchange, JSONObject jsonObject) throws IOException
+    private static void update(HttpExchange exchange, UserRequest request) throws IOException
     {
         try
         {
             int id;
             String username, email, password;
-            if (jsonObject.has("id")) {
-                id = jsonObject.getInt("id");
-                // Fields below are optional so defaultValue is null.
-                username = jsonObject.optString("username", null);
-                email = jsonObject.optString("email", null);
-                password = jsonObject.optString("password", null);
-
-                int updateStatus = userDB.updateUser(id, username, email, password);
+            if (request.hasId) {
+                id = request.id;
+                // Fields below are optional and null when absent.
+                username = request.username;
+                email = request.email;
+                password = request.password;
+
+                UpdateResult update = userDB.updateUser(id, username, email, password);
+                int updateStatus = update.status;
                 if (updateStatus == 200) {
-                    // Use getUser() to retrieve user data along with the hashed password.
-                    String userData = userDB.getUser(id);
-                    sendResponse(exchange, updateStatus, new JSONObject(userData).toString());
+                    // Answer with the row the update returned; only a no-op update has to read the user.
+                    String userData = update.json != null ? update.json : userDB.getUser(id);
+                    if (userData.equals("")) {
+                        // The user does not exist or was deleted
+                        sendResponse(exchange, 400, new JSONObject().toString());
+                        return;
+                    }
+                    sendResponse(exchange, updateStatus, userData);
 		    return;
                 } else {
                     sendResponse(exchange, updateStatus, new JSONObject().toString());
@@ -227,21 +248,21 @@ public class UserService
      * Deletes an existing user based on the provided JSON data.
      *
      * @param exchange The HTTP exchange object representing the client-server communication.
-     * @param jsonObject The JSONObject containing user data for deletion.
+     * @param request The decoded request containing user data for deletion.
      * @throws IOException If an I/O error occurs during the user deletion process.
      */
-    private static void delete(HttpExchange exchange, JSONObject jsonObject) throws IOException
+    private static void delete(HttpExchange exchange, UserRequest request) throws IOException
     {
         try
         {
             int id;
             String username, email, password;
             // All the fields are required
-            if (jsonObject.has("id") && jsonObject.has("username") && jsonObject.has("email") && jsonObject.has("password")) {
-                id = jsonObject.getInt("id");
-                username = jsonObject.getString("username");
-                email = jsonObject.getString("email");
-                password = jsonObject.getString("password");
+            if (request.isComplete()) {
+                id = request.id;
+                username = request.username;
+                email = request.email;
+                password = request.password;
                 int deleteStatus = userDB.deleteUser(id, username, email, password);
                 // The deletion is valid, and return empty response with status code 200.
                 if (deleteStatus == 200) {
@@ -268,6 +289,29 @@ public class UserService
         exchange.close();
     }
 
+    /**
+     * Retrieves a batch of users listed in the ids query parameter, answering with a JSON array that holds
+     * each user in the order requested, or a status object for each id that was not found.
+     *
+     * @param exchange The HttpExchange object representing the HTTP request and response.
+     * @throws IOException If an I/O error occurs while sending the response.
+     */
+    private static void getMany(HttpExchange exchange) throws IOException
+    {
+        int[] ids = BatchIds.parse(exchange);
+        if (ids == null)
+        {
+            sendResponse(exchange, 400, new JSONObject().toString());
+            return;
+        }
+        String[] payloads = userDB.getUsers(ids);
+        try (JsonWriter writer = JsonWriter.acquire())
+        {
+            Payloads.batch(writer, ids, payloads);
+            writer.send(exchange, 200);
+        }
+    }
+
     /**
      * Handles GET requests for user-related data in the UserService.
      */
@@ -303,7 +347,7 @@ public class UserService
                 }
                 else {
                     // Valid response, which returns user's data - id, username, email, hashed password
-                    sendResponse(exchange, 200, new JSONObject(userData).toString());
+                    sendResponse(exchange, 200, userData);
 		    return;
                 }
             }
@@ -315,47 +359,119 @@ public class UserService
     }
 
     /**
-     * Sends an HTTP response with the specified status code and response content.
-     *
-     * @param exchange The HTTP exchange object representing the client-server communication.
-     * @param rCode The HTTP status code for the response.
-     * @param response The content of the response to be sent.
-     * @throws IOException If an I/O error occurs during the response sending process.
+     * Handles bulk imports, POST /user/import, whose body holds one user per line as newline delimited JSON
+     * with the same fields as a create. The body is streamed and the users are inserted in batches, each
+     * committed on its own; the answer reports how many were imported and why each rejected line failed.
+     * New users are only stored in Redis when the query asks for it with cache=true.
      */
-    public static void sendResponse(HttpExchange exchange, int rCode, String response) throws IOException {
-        // Convert the response String to bytes to correctly measure its length in bytes
-        byte[] responseBytes = response.getBytes(StandardCharsets.UTF_8);
+    static class ImportHandler implements HttpHandler
+    {
+        private static final int batchSize = Integer.getInteger("import.batchSize", 5000);
 
-        // Set the necessary response headers before sending the response body
-        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            if (!"POST".equals(exchange.getRequestMethod()))
+            {
+                sendResponse(exchange, 405, new JSONObject().toString());
+                return;
+            }
+            boolean fillCache = "true".equals(QueryParams.parse(exchange.getRequestURI().getRawQuery()).get("cache"));
 
-        // Correctly set the content length using the byte length of the response
-        exchange.sendResponseHeaders(rCode, responseBytes.length);
+            ImportReport report = new ImportReport();
+            List<UserRequest> batch = new ArrayList<>(batchSize);
+            List<Integer> batchLines = new ArrayList<>(batchSize);
+            long start = System.nanoTime();
+            try (InputStream body = exchange.getRequestBody())
+            {
+                NdjsonReader lines = new NdjsonReader(body);
+                JsonReader line;
+                while ((line = lines.next()) != null)
+                {
+                    if (lines.tooLong())
+                    {
+                        report.fail(lines.lineNumber(), "line too long");
+                        continue;
+                    }
+                    UserRequest request;
+                    try
+                    {
+                        request = UserRequest.parse(line);
+                    }
+                    catch (JSONException e)
+                    {
+                        report.fail(lines.lineNumber(), "invalid JSON");
+                        continue;
+                    }
+                    if (!request.isComplete())
+                    {
+                        report.fail(lines.lineNumber(), "missing fields");
+                        continue;
+                    }
+                    batch.add(request);
+                    batchLines.add(lines.lineNumber());
+                    if (batch.size() == batchSize)
+                    {
+                        userDB.importUsers(batch, batchLines, fillCache, report);
+                        batch.clear();
+                        batchLines.clear();
+                    }
+                }
+                if (!batch.isEmpty())
+                {
+                    userDB.importUsers(batch, batchLines, fillCache, report);
+                }
+            }
+            catch (IOException e)
+            {
+                // The batches before the broken read are already committed and stay in the report
+                System.out.println("Import interrupted: " + e.getMessage());
+            }
+            Metrics.counter("import.user.imported").add(report.importedCount());
+            Metrics.counter("import.user.failed").add(report.failedCount());
+            Metrics.histogram("import.user.micros").record((System.nanoTime() - start) / 1000);
 
-        // Write the response bytes and close the OutputStream
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(responseBytes);
+            try (JsonWriter writer = JsonWriter.acquire())
+            {
+                report.write(writer);
+                writer.send(exchange, 200);
+            }
         }
     }
 
     /**
-     * Retrieves the request body from an HTTP exchange.
-     *
-     * @param exchange The HTTP exchange object representing the client-server communication.
-     * @return The request body as a string.
-     * @throws IOException If an I/O error occurs while reading the request body.
+     * Handles GET /user/export, which streams all users that are not deleted as newline delimited JSON, one per line in id order.
      */
-    public static String getRequestBody(HttpExchange exchange) throws IOException
+    static class ExportHandler implements HttpHandler
     {
-        try (BufferedReader br = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)))
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
         {
-            StringBuilder requestBody = new StringBuilder();
-            String line;
-            while ((line = br.readLine()) != null)
+            if (!"GET".equals(exchange.getRequestMethod()))
             {
-                requestBody.append(line);
+                sendResponse(exchange, 405, new JSONObject().toString());
+                return;
             }
-            return requestBody.toString();
+            Export.stream(exchange, ReplicaRouter.forScan(UserDatabase.dataSource), "user",
+                    "SELECT id, username, email, password FROM users WHERE NOT deleted ORDER BY id",
+                    (rs, writer) -> Payloads.user(writer, rs.getInt(1), rs.getString(2), rs.getString(3),
+                                  UserDatabase.hashPassword(rs.getString(4))));
+        }
+    }
+
+    /**
+     * Sends an HTTP response with the specified status code and response content.
+     *
+     * @param exchange The HTTP exchange object representing the client-server communication.
+     * @param rCode The HTTP status code for the response.
+     * @param response The content of the response to be sent.
+     * @throws IOException If an I/O error occurs during the response sending process.
+     */
+    public static void sendResponse(HttpExchange exchange, int rCode, String response) throws IOException {
+        // Encode the response into a pooled buffer, which also gives its exact length in bytes
+        try (JsonWriter writer = JsonWriter.acquire()) {
+            writer.raw(response);
+            writer.send(exchange, rCode);
         }
     }
 }
@@ -0,0 +1,171 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Measures how many orders per second one hot product can take as the number of concurrent buyers grows,
+ * comparing:
+ *   rowlock  the guarded UPDATE ... WHERE quantity >= ? on one products row, committed per order, as the
+ *            SQL order path does (every buyer queues on the same row lock)
+ *   redis    the reservation script of HotInventory, which checks and decrements a counter and appends the
+ *            order intent in one round trip (the reconciler that drains the intents is not part of it)
+ *
+ * The row lock runs in a scratch schema (inventory_bench) and the counter under scratch keys
+ * (inventory_bench:*); both are dropped at the end, so the service tables and keys are left alone.
+ *
+ * Run from the repository root:
+ *   javac -cp "src/*" -d /tmp/bench utility/bench/HotInventoryBenchmark.java
+ *   java -cp "/tmp/bench:src/*" HotInventoryBenchmark <dockerIp> <dbPort> <redisPort> [maxThreads] [ordersPerThread]
+ */
+public class HotInventoryBenchmark {
+
+    private static final String SCHEMA = "inventory_bench";
+    private static final String COUNTER = "inventory_bench:1";
+    private static final String INTENTS = "inventory_bench:intents";
+    private static final String SEQUENCE = "inventory_bench:seq";
+
+    // The same script as HotInventory.RESERVE
+    private static final String RESERVE =
+            "if redis.call('EXISTS', KEYS[3]) == 0 then return -1 end " +
+            "local stock = redis.call('GET', KEYS[1]) " +
+            "if not stock then return -2 end " +
+            "if tonumber(stock) < tonumber(ARGV[3]) then return 0 end " +
+            "redis.call('DECRBY', KEYS[1], ARGV[3]) " +
+            "local id = redis.call('INCR', KEYS[3]) " +
+            "redis.call('RPUSH', KEYS[2], id .. ':' .. ARGV[1] .. ':' .. ARGV[2] .. ':' .. ARGV[3]) " +
+            "return 1";
+
+    private interface Order {
+        void place(int buyer) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.out.println("Usage: HotInventoryBenchmark <dockerIp> <dbPort> <redisPort> [maxThreads] [ordersPerThread]");
+            return;
+        }
+        String url = "jdbc:postgresql://" + args[0] + ":" + args[1] + "/assignmentdb";
+        int maxThreads = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int ordersPerThread = args.length > 4 ? Integer.parseInt(args[4]) : 500;
+
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(maxThreads);
+        try (JedisPool redis = new JedisPool(poolConfig, args[0], Integer.parseInt(args[2]));
+             Connection admin = DriverManager.getConnection(url, "assignmentuser", "assignmentpassword");
+             Statement statement = admin.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            statement.execute("CREATE SCHEMA " + SCHEMA);
+            statement.execute("CREATE TABLE " + SCHEMA + ".products (id INT PRIMARY KEY, quantity INT NOT NULL)");
+
+            System.out.printf("%8s %14s %14s %12s %12s%n", "threads", "rowlock ops/s", "redis ops/s", "rowlock p99", "redis p99");
+            try {
+                for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                    int total = threads * ordersPerThread;
+                    statement.execute("TRUNCATE " + SCHEMA + ".products");
+                    statement.execute("INSERT INTO " + SCHEMA + ".products VALUES (1, " + total + ")");
+                    try (Jedis jedis = redis.getResource()) {
+                        jedis.del(INTENTS);
+                        jedis.set(SEQUENCE, "0");
+                        jedis.set(COUNTER, Integer.toString(total));
+                    }
+
+                    Connection[] connections = new Connection[threads];
+                    for (int i = 0; i < threads; i++) {
+                        connections[i] = DriverManager.getConnection(url, "assignmentuser", "assignmentpassword");
+                    }
+                    long[] rowLock;
+                    try {
+                        rowLock = run(threads, ordersPerThread, buyer -> {
+                            try (PreparedStatement update = connections[buyer].prepareStatement(
+                                    "UPDATE " + SCHEMA + ".products SET quantity = quantity - 1 WHERE id = 1 AND quantity >= 1")) {
+                                update.executeUpdate();
+                            }
+                        });
+                    } finally {
+                        for (Connection connection : connections) {
+                            connection.close();
+                        }
+                    }
+                    long[] reserve = run(threads, ordersPerThread, buyer -> {
+                        try (Jedis jedis = redis.getResource()) {
+                            jedis.eval(RESERVE, Arrays.asList(COUNTER, INTENTS, SEQUENCE),
+                                       Arrays.asList(Integer.toString(buyer), "1", "1"));
+                        }
+                    });
+                    System.out.printf("%8d %14.0f %14.0f %12s %12s%n", threads,
+                            throughput(rowLock), throughput(reserve), micros(rowLock, 99), micros(reserve, 99));
+                }
+            } finally {
+                statement.execute("DROP SCHEMA " + SCHEMA + " CASCADE");
+                try (Jedis jedis = redis.getResource()) {
+                    jedis.del(COUNTER, INTENTS, SEQUENCE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Places orders from several threads at once and returns the sorted latencies in nanoseconds, followed
+     * by the wall clock time of the whole run as the last element.
+     */
+    private static long[] run(int threads, int ordersPerThread, Order order) throws InterruptedException {
+        long[] latencies = new long[threads * ordersPerThread + 1];
+        AtomicLong failures = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(threads);
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] buyers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int buyer = t;
+            buyers[t] = new Thread(() -> {
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < ordersPerThread; i++) {
+                    long start = System.nanoTime();
+                    try {
+                        order.place(buyer);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                    latencies[buyer * ordersPerThread + i] = System.nanoTime() - start;
+                }
+            });
+            buyers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread buyer : buyers) {
+            buyer.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failures.get() > 0) {
+            System.out.println(failures.get() + " orders failed");
+        }
+        Arrays.sort(latencies, 0, latencies.length - 1);
+        latencies[latencies.length - 1] = elapsed;
+        return latencies;
+    }
+
+    private static double throughput(long[] run) {
+        return (run.length - 1) / (run[run.length - 1] / 1e9);
+    }
+
+    private static String micros(long[] run, int percentile) {
+        int orders = run.length - 1;
+        long nanos = run[Math.min(orders - 1, orders * percentile / 100)];
+        return String.format("%.0f us", nanos / 1000.0);
+    }
+}
@@ -0,0 +1,133 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures how the cache-miss query of /user/purchased behaves as the orders table grows from 10^4 to
+ * 10^7 rows. For each size it times, over many random users:
+ *   scan     the old query, SELECT prod_id, quantity FROM orders WHERE user_id = ? summed in Java, without an index
+ *   indexed  the same rows aggregated by Postgres through the orders (user_id, prod_id, quantity) index
+ *   summary  the query getPurchased runs now, against the purchases table
+ *
+ * Everything happens in a scratch schema (purchased_bench) that is dropped at the end, so the service
+ * tables are left alone. Rows are generated by Postgres itself with generate_series.
+ *
+ * Run from the repository root:
+ *   javac -d /tmp/bench utility/bench/PurchasedScalingBenchmark.java
+ *   java -cp "/tmp/bench:src/*" PurchasedScalingBenchmark <dockerIp> <dbPort> [maxOrders] [users] [products]
+ */
+public class PurchasedScalingBenchmark {
+
+    private static final String SCHEMA = "purchased_bench";
+    private static final int LOOKUPS = 2000;
+
+    public static void main(String[] args) throws SQLException {
+        if (args.length < 2) {
+            System.out.println("Usage: PurchasedScalingBenchmark <dockerIp> <dbPort> [maxOrders] [users] [products]");
+            return;
+        }
+        String url = "jdbc:postgresql://" + args[0] + ":" + args[1] + "/assignmentdb";
+        long maxOrders = args.length > 2 ? Long.parseLong(args[2]) : 10_000_000L;
+        int users = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+        int products = args.length > 4 ? Integer.parseInt(args[4]) : 1_000;
+
+        try (Connection con = DriverManager.getConnection(url, "assignmentuser", "assignmentpassword");
+             Statement statement = con.createStatement()) {
+            statement.execute("DROP SCHEMA IF EXISTS " + SCHEMA + " CASCADE");
+            statement.execute("CREATE SCHEMA " + SCHEMA);
+            statement.execute("CREATE TABLE " + SCHEMA + ".orders (id SERIAL PRIMARY KEY, user_id INT NOT NULL, "
+                    + "prod_id INT NOT NULL, quantity INT NOT NULL)");
+            statement.execute("CREATE TABLE " + SCHEMA + ".orders_indexed (LIKE " + SCHEMA + ".orders INCLUDING ALL)");
+            statement.execute("CREATE INDEX ON " + SCHEMA + ".orders_indexed (user_id, prod_id, quantity)");
+            statement.execute("CREATE TABLE " + SCHEMA + ".purchases (user_id INT NOT NULL, prod_id INT NOT NULL, "
+                    + "quantity INT NOT NULL, PRIMARY KEY (user_id, prod_id))");
+
+            System.out.printf("%12s %10s %12s %12s %12s %12s %12s %12s%n", "orders", "rows/user",
+                    "scan p50", "scan p99", "indexed p50", "indexed p99", "summary p50", "summary p99");
+            long loaded = 0;
+            try {
+                for (long size = 10_000; size <= maxOrders; size *= 10) {
+                    load(con, loaded, size, users, products);
+                    loaded = size;
+                    long[] scan = time(con, "SELECT prod_id, quantity FROM " + SCHEMA + ".orders WHERE user_id = ?", users, true);
+                    long[] indexed = time(con, "SELECT prod_id, SUM(quantity) FROM " + SCHEMA + ".orders_indexed "
+                            + "WHERE user_id = ? GROUP BY prod_id ORDER BY prod_id", users, false);
+                    long[] summary = time(con, "SELECT prod_id, quantity FROM " + SCHEMA + ".purchases "
+                            + "WHERE user_id = ? ORDER BY prod_id", users, false);
+                    System.out.printf("%12d %10d %12s %12s %12s %12s %12s %12s%n", size, size / users,
+                            micros(scan, 50), micros(scan, 99), micros(indexed, 50), micros(indexed, 99),
+                            micros(summary, 50), micros(summary, 99));
+                }
+            } finally {
+                statement.execute("DROP SCHEMA " + SCHEMA + " CASCADE");
+            }
+        }
+    }
+
+    /**
+     * Grows the tables from `from` to `to` orders and rebuilds the summary the way the backfill does.
+     */
+    private static void load(Connection con, long from, long to, int users, int products) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            String rows = "SELECT (random() * " + (users - 1) + ")::int + 1, (random() * " + (products - 1) + ")::int + 1, "
+                    + "(random() * 4)::int + 1 FROM generate_series(" + (from + 1) + ", " + to + ")";
+            statement.execute("INSERT INTO " + SCHEMA + ".orders(user_id, prod_id, quantity) " + rows);
+            statement.execute("INSERT INTO " + SCHEMA + ".orders_indexed(user_id, prod_id, quantity) "
+                    + "SELECT user_id, prod_id, quantity FROM " + SCHEMA + ".orders WHERE id > " + from);
+            statement.execute("TRUNCATE " + SCHEMA + ".purchases");
+            statement.execute("INSERT INTO " + SCHEMA + ".purchases SELECT user_id, prod_id, SUM(quantity) FROM "
+                    + SCHEMA + ".orders_indexed GROUP BY user_id, prod_id");
+            statement.execute("VACUUM ANALYZE " + SCHEMA + ".orders");
+            statement.execute("VACUUM ANALYZE " + SCHEMA + ".orders_indexed");
+            statement.execute("VACUUM ANALYZE " + SCHEMA + ".purchases");
+        }
+    }
+
+    /**
+     * Runs a per-user query for random users and returns the sorted latencies in nanoseconds.
+     * @param sumInJava is whether the rows are summed per product on the client, as the old getPurchased did.
+     */
+    private static long[] time(Connection con, String sql, int users, boolean sumInJava) throws SQLException {
+        Random random = new Random(42);
+        long[] latencies = new long[LOOKUPS];
+        long checksum = 0;
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            for (int i = -LOOKUPS / 10; i < LOOKUPS; i++) {
+                statement.setInt(1, random.nextInt(users) + 1);
+                long start = System.nanoTime();
+                try (ResultSet rs = statement.executeQuery()) {
+                    Map<Integer, Integer> totals = new HashMap<>();
+                    while (rs.next()) {
+                        if (sumInJava) {
+                            totals.merge(rs.getInt(1), rs.getInt(2), Integer::sum);
+                        } else {
+                            totals.put(rs.getInt(1), rs.getInt(2));
+                        }
+                    }
+                    checksum += totals.size();
+                }
+                // The first tenth of the lookups only warm up the connection and the plan cache
+                if (i >= 0) {
+                    latencies[i] = System.nanoTime() - start;
+                }
+            }
+        }
+        if (checksum < 0) {
+            System.out.println(checksum);
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static String micros(long[] sorted, int percentile) {
+        long nanos = sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+        return String.format("%.0f us", nanos / 1000.0);
+    }
+}
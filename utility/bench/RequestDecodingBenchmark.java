@@ -0,0 +1,97 @@
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the old request decoding path (BufferedReader line joining followed by new JSONObject)
+ * with RequestBody + OrderRequest, which parses the command straight from the body bytes.
+ *
+ * For each path it reports the time per decode and the bytes allocated per decode, measured with the
+ * per-thread allocation counter of the HotSpot ThreadMXBean. Each path is warmed up before it is measured.
+ *
+ * Run from the repository root:
+ *   javac -d /tmp/bench -cp "src/*" utility/bench/RequestDecodingBenchmark.java \
+ *       src/Common/JsonReader.java src/Common/RequestBody.java src/OrderService/OrderRequest.java
+ *   java -cp "/tmp/bench:src/*" RequestDecodingBenchmark [iterations]
+ */
+public class RequestDecodingBenchmark {
+
+    private static final byte[] BODY =
+            "{\"command\": \"place order\", \"user_id\": 1024, \"product_id\": 2048, \"quantity\": 3}"
+                    .getBytes(StandardCharsets.UTF_8);
+
+    // Written by every decode so the JIT cannot drop the work
+    private static long sink;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        for (int round = 0; round < 3; round++) {
+            runReader(iterations / 4);
+            runBytes(iterations / 4);
+        }
+
+        report("BufferedReader + JSONObject", iterations, RequestDecodingBenchmark::runReader);
+        report("RequestBody + OrderRequest", iterations, RequestDecodingBenchmark::runBytes);
+        System.out.println("(checksum " + sink + ")");
+    }
+
+    private interface Run {
+        void run(int iterations) throws IOException;
+    }
+
+    private static void report(String name, int iterations, Run run) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        run.run(iterations);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        System.out.printf("%-30s %10.1f ns/op %10.1f B/op%n", name,
+                (double) elapsed / iterations, (double) allocated / iterations);
+    }
+
+    private static void runReader(int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            String data = readLines(new ByteArrayInputStream(BODY));
+            JSONObject json = new JSONObject(data);
+            if (json.getString("command").equals("place order") && json.has("user_id")
+                    && json.has("product_id") && json.has("quantity")) {
+                sink += json.getInt("user_id") + json.getInt("product_id") + json.getInt("quantity");
+            }
+        }
+    }
+
+    private static void runBytes(int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            try (RequestBody body = RequestBody.read(new ByteArrayInputStream(BODY), BODY.length)) {
+                OrderRequest request = OrderRequest.parse(body.json());
+                if ("place order".equals(request.command) && request.hasUserId
+                        && request.hasProductId && request.hasQuantity) {
+                    sink += request.userId + request.productId + request.quantity;
+                }
+            }
+        }
+    }
+
+    /**
+     * The getRequestBody the services used before RequestBody.
+     */
+    private static String readLines(InputStream in) throws IOException {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            StringBuilder requestBody = new StringBuilder();
+            String line;
+            while ((line = br.readLine()) != null) {
+                requestBody.append(line);
+            }
+            return requestBody.toString();
+        }
+    }
+}
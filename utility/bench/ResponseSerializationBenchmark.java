@@ -0,0 +1,84 @@
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the old way of producing a product response (String.format, re-parsed with new JSONObject
+ * and encoded with getBytes) with Payloads writing it straight into a pooled JsonWriter.
+ *
+ * Reports time and allocated bytes per response, measured with the HotSpot ThreadMXBean after a warmup.
+ *
+ * Run from the repository root:
+ *   javac -d /tmp/bench -cp "src/*" utility/bench/ResponseSerializationBenchmark.java \
+ *       src/Common/JsonWriter.java src/Common/Payloads.java
+ *   java -cp "/tmp/bench:src/*" ResponseSerializationBenchmark [iterations]
+ */
+public class ResponseSerializationBenchmark {
+
+    // Discards the response bytes but keeps a count so the JIT cannot drop the work
+    private static final class Sink extends OutputStream {
+        long bytes;
+
+        @Override
+        public void write(int b) {
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            bytes += len;
+        }
+    }
+
+    private static final Sink sink = new Sink();
+
+    public static void main(String[] args) throws IOException {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        for (int round = 0; round < 3; round++) {
+            runFormat(iterations / 4);
+            runWriter(iterations / 4);
+        }
+
+        report("String.format + JSONObject", iterations, ResponseSerializationBenchmark::runFormat);
+        report("Payloads + JsonWriter", iterations, ResponseSerializationBenchmark::runWriter);
+        System.out.println("(checksum " + sink.bytes + ")");
+    }
+
+    private interface Run {
+        void run(int iterations) throws IOException;
+    }
+
+    private static void report(String name, int iterations, Run run) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        long bytesBefore = threads.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        run.run(iterations);
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(thread) - bytesBefore;
+        System.out.printf("%-30s %10.1f ns/op %10.1f B/op%n", name,
+                (double) elapsed / iterations, (double) allocated / iterations);
+    }
+
+    private static void runFormat(int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            String productJson = String.format("{\"id\": %d, \"name\": \"%s\", \"description\": \"%s\", \"price\": %.2f, \"quantity\": %d}",
+                    i, "Mechanical keyboard", "Tenkeyless, brown switches", 89.99f, 42);
+            byte[] responseBytes = new JSONObject(productJson).toString().getBytes(StandardCharsets.UTF_8);
+            sink.write(responseBytes, 0, responseBytes.length);
+        }
+    }
+
+    private static void runWriter(int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            try (JsonWriter writer = JsonWriter.acquire()) {
+                Payloads.product(writer, i, "Mechanical keyboard", "Tenkeyless, brown switches", 89.99f, 42);
+                writer.writeTo(sink);
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+#!/bin/bash
+# executor_benchmark.sh
+#
+# Compares the request executor modes of the services (see src/Common/ServerExecutors.java).
+# For every mode it starts the User, Product and Order services locally, runs stress_test.py
+# against them and saves the output in logs/executor_<mode>.txt.
+#
+# The database and Redis must already be running and hold at least N users and products, and
+# the ISCS at <iscsUrl> must forward to this machine on the ports in src/ISCS/ips.json.
+#
+# Usage: ./executor_benchmark.sh <iscsUrl> <dockerIp> <dbPort> <redisPort> <N> <seconds>
+
+if [ "$#" -ne 6 ]; then
+    echo "Usage: $0 <iscsUrl> <dockerIp> <dbPort> <redisPort> <N> <seconds>"
+    exit 1
+fi
+
+script_dir=$(dirname "$(readlink -f "$0")")
+root_dir="$script_dir/.."
+logs_dir="$root_dir/logs"
+mkdir -p "$logs_dir"
+
+ISCS_URL=$1
+DOCKER_IP=$2
+DB_PORT=$3
+REDIS_PORT=$4
+N=$5
+SECONDS_PER_RUN=$6
+
+USER_PORT=$(grep -oP "\"user_port\":\s*\K\d+" "$root_dir/src/ISCS/ips.json")
+PRODUCT_PORT=$(grep -oP "\"product_port\":\s*\K\d+" "$root_dir/src/ISCS/ips.json")
+ORDER_PORT=$(grep -oP "\"order_port\":\s*\K\d+" "$root_dir/src/ISCS/ips.json")
+
+# Mode name and the JAVA_OPTS that select it
+MODES=(
+    "fixed20:-Dserver.executor=fixed -Dserver.threads=20"
+    "fixed200:-Dserver.executor=fixed -Dserver.threads=200"
+    "virtual:-Dserver.executor=virtual -Djdk.tracePinnedThreads=short"
+)
+
+bash "$root_dir/runme.sh" -c || exit 1
+
+for entry in "${MODES[@]}"; do
+    mode="${entry%%:*}"
+    opts="${entry#*:}"
+    echo "Benchmarking executor mode $mode ($opts)"
+
+    export JAVA_OPTS="$opts"
+    bash "$root_dir/runme.sh" -u "$USER_PORT" "$DOCKER_IP" "$DB_PORT" "$REDIS_PORT" > "$logs_dir/executor_${mode}_user.log" 2>&1 &
+    bash "$root_dir/runme.sh" -p "$PRODUCT_PORT" "$DOCKER_IP" "$DB_PORT" "$REDIS_PORT" > "$logs_dir/executor_${mode}_product.log" 2>&1 &
+    bash "$root_dir/runme.sh" -o "$ORDER_PORT" "$DOCKER_IP" "$DB_PORT" "$REDIS_PORT" > "$logs_dir/executor_${mode}_order.log" 2>&1 &
+    sleep 5
+
+    python3 "$script_dir/stress_test.py" "$ISCS_URL" "$N" "$SECONDS_PER_RUN" > "$logs_dir/executor_${mode}.txt"
+    grep "Average requests per second:" "$logs_dir/executor_${mode}.txt"
+
+    pkill -f "UserService $USER_PORT"
+    pkill -f "ProductService $PRODUCT_PORT"
+    pkill -f "OrderService $ORDER_PORT"
+    sleep 2
+done
@@ -0,0 +1,115 @@
+#!/bin/python3
+'''
+flash_sale.py
+
+This script benchmarks order placement on a single hot product (a "flash sale").
+It creates one product with STOCK units and NUM_PROCESSES users, then every process
+orders one unit at a time as fast as it can until the stock runs out.
+
+At the end it prints the order throughput and checks that the remaining stock equals
+STOCK minus the number of successful orders. With a read-modify-write stock update
+concurrent orders overwrite each other and the check reports lost updates; with the
+atomic decrement every successful order is accounted for.
+
+Run it with different process counts (-p) to see how throughput scales, and against
+an older build of OrderService to compare against read-modify-write.
+'''
+
+import argparse
+import sys
+import time
+from multiprocessing import Process, Array
+import requests
+
+parser = argparse.ArgumentParser(description='Flash sale benchmark for a single product.')
+parser.add_argument('URL', type=str, help='entrypoint to the system.')
+parser.add_argument('STOCK', type=int, help='Number of units of the product on sale.')
+parser.add_argument('-p', '--processes', type=int, default=8, help='Number of concurrent buyers.')
+parser.add_argument('--product-id', type=int, default=900000, help='ID of the product created for the sale.')
+
+URL = ''
+
+HEADERS = {"Content-Type": "application/json"}
+
+def setup(product_id, stock, num_processes):
+    """
+    Create the product on sale and one user per buying process.
+    """
+    requests.post(f'{URL}/product', json={
+        'command': 'create',
+        'id': product_id,
+        'name': 'flash-sale',
+        'description': 'flash sale product',
+        'price': 1.0,
+        'quantity': stock
+    }, headers=HEADERS, timeout=5)
+    for i in range(num_processes):
+        requests.post(f'{URL}/user', json={
+            'command': 'create',
+            'id': product_id + i,
+            'username': f'buyer{i}',
+            'email': f'buyer{i}@example.com',
+            'password': 'password'
+        }, headers=HEADERS, timeout=5)
+
+def buy(process_id, product_id, successes, failures):
+    """
+    Order one unit at a time until the product is sold out.
+    """
+    order = {
+        'command': 'place order',
+        'user_id': product_id + process_id,
+        'product_id': product_id,
+        'quantity': 1
+    }
+    while True:
+        try:
+            response = requests.post(f'{URL}/order', json=order, headers=HEADERS, timeout=5)
+        except requests.exceptions.RequestException as e:
+            print(f'Process {process_id} encountered an error: {e}', file=sys.stderr)
+            return
+        if response.status_code == 200:
+            successes[process_id] += 1
+        else:
+            failures[process_id] += 1
+            # Every unit has been sold
+            if response.status_code == 400:
+                return
+
+def main():
+    """
+    Main function to run the flash sale.
+    """
+    global URL
+    args = parser.parse_args()
+    URL = args.URL
+    successes = Array('i', args.processes)
+    failures = Array('i', args.processes)
+
+    setup(args.product_id, args.STOCK, args.processes)
+
+    processes = []
+    start = time.perf_counter()
+    for i in range(args.processes):
+        p = Process(target=buy, args=(i, args.product_id, successes, failures))
+        p.start()
+        processes.append(p)
+    for p in processes:
+        p.join()
+    end = time.perf_counter()
+
+    sold = sum(successes[:])
+    product = requests.get(f'{URL}/product/{args.product_id}', timeout=5).json()
+    remaining = product.get('quantity')
+
+    print(f'Buyers: {args.processes}')
+    print(f'Successful orders: {sold} in {end - start:.2f} seconds')
+    print(f'Orders per second: {sold / (end - start):.1f}')
+    print(f'Rejected orders: {sum(failures[:])}')
+    print(f'Remaining stock: {remaining} (expected {args.STOCK - sold})')
+    if remaining != args.STOCK - sold:
+        print(f'Lost updates: {remaining - (args.STOCK - sold)}')
+        sys.exit(1)
+
+if __name__ == '__main__':
+    main()
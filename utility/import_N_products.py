@@ -0,0 +1,78 @@
+#!/bin/python3
+'''
+import_N_products.py
+This script is used to create N products in the system with one bulk import
+request, streaming the products as newline delimited JSON instead of sending
+one POST per product like create_N_products.py.
+'''
+
+import json
+import sys
+import time
+import argparse
+import requests
+
+parser = argparse.ArgumentParser(description="Stream N products to URL/product/import")
+parser.add_argument("URL", help="URL of the product service")
+parser.add_argument("N", help="Number of products to import")
+parser.add_argument("--cache", action="store_true", help="Store the new products in Redis as well")
+# Endpoint to import products
+ENDPOINT = "/product/import"
+
+def generate_products(n):
+    """
+    Generates the products as NDJSON lines, in chunks so the body is never
+    held in memory as a whole.
+    :param n: number of products to generate
+    """
+    chunk = []
+    for _i in range(n):
+        chunk.append(json.dumps({
+            "id": _i,
+            "name": "product_" + str(_i),
+            "description": "description_" + str(_i),
+            "price": _i * 10.0,
+            "quantity": 100 * _i
+        }))
+        if len(chunk) == 10000:
+            yield ("\n".join(chunk) + "\n").encode()
+            chunk = []
+    if chunk:
+        yield ("\n".join(chunk) + "\n").encode()
+
+def main():
+    """
+    Main function to import N products in the system.
+    """
+    args = parser.parse_args()
+    try:
+        n = int(args.N)
+    except ValueError:
+        print("N must be an integer", file=sys.stderr)
+        parser.print_usage()
+        sys.exit(1)
+
+    url = args.URL + ENDPOINT + ("?cache=true" if args.cache else "")
+    print("Importing", n, "products", file=sys.stderr)
+    start_time = time.perf_counter()
+    try:
+        response = requests.post(url, data=generate_products(n),
+                                 headers={"Content-Type": "application/x-ndjson"})
+    except requests.exceptions.RequestException as e:
+        print("Request exception:", e, file=sys.stderr)
+        sys.exit(1)
+    end_time = time.perf_counter()
+
+    if response.status_code != 200:
+        print("Non 200 response importing products:", response.status_code, response.text, file=sys.stderr)
+        sys.exit(1)
+
+    report = response.json()
+    print("Imported", report["imported"], "products,", report["failed"], "failed", file=sys.stderr)
+    for error in report["errors"][:10]:
+        print("  line", error["line"], ":", error["error"], file=sys.stderr)
+    print("Total time:", end_time - start_time, "seconds.", file=sys.stderr)
+    print("Average products per second:", n / (end_time - start_time), file=sys.stderr)
+
+if __name__ == "__main__":
+    main()